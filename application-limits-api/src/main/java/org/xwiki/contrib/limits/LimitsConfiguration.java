@@ -45,6 +45,21 @@ public interface LimitsConfiguration
      */
     int getTotalNumberOfUsersLimit();
 
+    /**
+     * @return {@code true} if the user limits (of the XWiki instance and of the wikis) are enforced in the soft mode:
+     * a user is accepted unless the cached count has already reached the limit, and the exact count is verified in
+     * the background afterwards
+     * @since 2.2
+     */
+    boolean isUserLimitSoft();
+
+    /**
+     * @return {@code true} if the users accepted over a soft user limit are deactivated once the background
+     * verification has found them
+     * @since 2.2
+     */
+    boolean isDeactivatingUsersOverLimit();
+
     /**
      * @return the maximum number of wikis that the XWiki instance is allowed to handle
      */
@@ -52,14 +67,104 @@ public interface LimitsConfiguration
 
     /**
      * @return an unmodifiable map of group references associated to the number of users that groups are allowed
-     * to contain
+     * to contain (the groups limited in every wiki have the {@code *} wiki)
      */
     Map<DocumentReference, Number> getGroupsLimits();
 
+    /**
+     * Get the limit of a group. A limit is set either on the group of a given wiki or, with the {@code *} wiki, on
+     * the group with the same local reference in every wiki.
+     *
+     * @param group the reference of a document
+     * @return the number of users that the group is allowed to contain, or {@code null} if the document is not a
+     * limited group
+     * @since 2.2
+     */
+    Number getGroupLimit(DocumentReference group);
+
+    /**
+     * @param group the reference of a document
+     * @return {@code true} if the document is a limited group and its limit is enforced in the soft mode: the members
+     * are accepted unless the cached count of the group has already reached the limit, and the exact count is
+     * verified in the background afterwards
+     * @since 2.2
+     */
+    boolean isGroupLimitSoft(DocumentReference group);
+
+    /**
+     * @return {@code true} if only the active users count in the group limits, {@code false} if the deactivated
+     * users count too
+     * @since 2.2
+     */
+    boolean isCountingActiveGroupMembersOnly();
+
     /**
      * @return an unmodifiable map of custom limits (that could a number or a date) that the developer is responsible
      * to implement
      * @since 1.2
      */
     Map<String, Object> getCustomLimits();
+
+    /**
+     * @return an unmodifiable map of wiki identifiers associated to the number of users that these wikis are allowed
+     * to contain (in addition to the limit of the whole XWiki instance)
+     * @since 2.2
+     */
+    Map<String, Integer> getWikiUserLimits();
+
+    /**
+     * @return the maximum number of threads used to count the users of the different wikis in parallel (1 means that
+     * the wikis are counted one after the other)
+     * @since 2.2
+     */
+    int getCounterThreads();
+
+    /**
+     * @return the maximum time, in seconds, that counting the users of a wiki can take when the wikis are counted in
+     * parallel
+     * @since 2.2
+     */
+    int getCounterTimeout();
+
+    /**
+     * @return the name of the strategy used to count the users with the database: "per-wiki" (one query for each
+     * wiki) or "cross-wiki" (one query for several wikis, when they all live in the same database), or {@code null}
+     * to use the default one
+     * @since 2.2
+     */
+    String getCounterStrategy();
+
+    /**
+     * @return the maximum number of wikis that are counted with a single query, when the strategy allows it
+     * @since 2.2
+     */
+    int getCounterBatchSize();
+
+    /**
+     * @return the name of the store where the usage of the quotas is kept: "memory" (enough for a single XWiki
+     * instance) or "database" (shared by all the instances of a cluster), or {@code null} to use the default one
+     * @since 2.2
+     */
+    String getQuotaStore();
+
+    /**
+     * @return the number of units that an XWiki instance reserves at once in the quota store, to consume them locally
+     * without reaching the store each time (1 means that the units are reserved one by one)
+     * @since 2.2
+     */
+    int getQuotaLeaseSize();
+
+    /**
+     * @return the maximum age, in seconds, of the usage returned by the REST API before it is collected again from the
+     * counters
+     * @since 2.2
+     */
+    int getUsageMaxStaleness();
+
+    /**
+     * @return an identifier of the loaded configuration, that changes each time a different configuration is loaded
+     * (and is the same on every XWiki instance loading the same configuration file)
+     * @since 2.2
+     */
+    String getVersion();
 }
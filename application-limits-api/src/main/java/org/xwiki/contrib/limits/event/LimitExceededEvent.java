@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.event;
+
+import java.io.Serializable;
+
+import org.xwiki.observation.event.Event;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Event fired when the background verification of a soft limit finds that the limit has been exceeded. The event
+ * source is the reference of the flagged document (a user accepted over a user limit, or a group over its limit).
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Unstable
+public class LimitExceededEvent implements Event, Serializable
+{
+    /**
+     * Type of the limit of the XWiki instance on the number of users.
+     */
+    public static final String USERS = "users";
+
+    /**
+     * Type of the limit of a wiki on its number of users.
+     */
+    public static final String WIKI_USERS = "wiki-users";
+
+    /**
+     * Type of the limit on the number of members of a group.
+     */
+    public static final String GROUP = "group";
+
+    private static final long serialVersionUID = 1L;
+
+    private final String type;
+
+    private final long count;
+
+    private final long limit;
+
+    /**
+     * Match any exceeded limit.
+     */
+    public LimitExceededEvent()
+    {
+        this(null, 0, 0);
+    }
+
+    /**
+     * Match the limits of a given type.
+     *
+     * @param type the type of the limit, one of the constants of this class
+     */
+    public LimitExceededEvent(String type)
+    {
+        this(type, 0, 0);
+    }
+
+    /**
+     * @param type the type of the limit, one of the constants of this class
+     * @param count the exact count found by the verification
+     * @param limit the exceeded limit
+     */
+    public LimitExceededEvent(String type, long count, long limit)
+    {
+        this.type = type;
+        this.count = count;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the type of the limit, one of the constants of this class
+     */
+    public String getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return the exact count found by the verification
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the exceeded limit
+     */
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof LimitExceededEvent
+                && (type == null || type.equals(((LimitExceededEvent) otherEvent).getType()));
+    }
+}
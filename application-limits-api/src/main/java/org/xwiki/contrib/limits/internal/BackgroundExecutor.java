@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+/**
+ * Run the background tasks of the Limits Application (counters reconciliation, etc...) in a dedicated thread that
+ * has an initialized execution context, so that these tasks can use the query manager like any request would.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = BackgroundExecutor.class)
+@Singleton
+public class BackgroundExecutor implements Initializable, Disposable
+{
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Logger logger;
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("background task"));
+    }
+
+    /**
+     * Create a thread pool for some short-lived parallel work. The caller is responsible to shut it down. Note that
+     * the tasks given to this pool must be wrapped with {@link #withContext(Callable)}.
+     *
+     * @param name the name of the pool, used to name the threads
+     * @param threads the maximum number of threads of the pool
+     * @return the new thread pool
+     */
+    public ExecutorService newFixedThreadPool(String name, int threads)
+    {
+        return Executors.newFixedThreadPool(threads, newThreadFactory(name));
+    }
+
+    /**
+     * Execute a task periodically.
+     *
+     * @param task the task to execute
+     * @param initialDelay the time to wait before the first execution
+     * @param delay the time to wait between the end of an execution and the beginning of the next one
+     * @param unit the unit of the delays
+     * @return the future allowing to cancel the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit)
+    {
+        return scheduler.scheduleWithFixedDelay(toBackgroundTask(task), initialDelay, delay, unit);
+    }
+
+    /**
+     * Execute a task once, as soon as possible.
+     *
+     * @param task the task to execute
+     * @return the future of the task
+     */
+    public Future<?> submit(Runnable task)
+    {
+        return scheduler.submit(toBackgroundTask(task));
+    }
+
+    /**
+     * Wrap a task so that it is executed inside its own execution context. Useful for tasks that are given to other
+     * executors than this one.
+     *
+     * @param task the task to wrap
+     * @param <T> the type of the result of the task
+     * @return the wrapped task
+     */
+    public <T> Callable<T> withContext(Callable<T> task)
+    {
+        return () -> {
+            try {
+                // Also set the new context in the Execution component
+                executionContextManager.initialize(new ExecutionContext());
+                return task.call();
+            } finally {
+                execution.removeContext();
+            }
+        };
+    }
+
+    private Runnable toBackgroundTask(Runnable task)
+    {
+        Callable<Void> callable = withContext(() -> {
+            task.run();
+            return null;
+        });
+        return () -> {
+            try {
+                callable.call();
+            } catch (Exception e) {
+                // An exception must not stop a periodic task
+                logger.error("Failed to execute a background task of the Limits Application.", e);
+            }
+        };
+    }
+
+    private BasicThreadFactory newThreadFactory(String name)
+    {
+        return new BasicThreadFactory.Builder().namingPattern("XWiki Limits Application " + name + " %d")
+                .daemon(true).priority(Thread.MIN_PRIORITY).build();
+    }
+
+    @Override
+    public void dispose()
+    {
+        scheduler.shutdownNow();
+    }
+}
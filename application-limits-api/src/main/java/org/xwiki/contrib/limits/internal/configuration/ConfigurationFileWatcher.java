@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.configuration;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch the configuration file and call a callback when it has been modified. The callback is only called once the
+ * file has not been touched for a short delay, so that a file written in several steps is reloaded only once.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+final class ConfigurationFileWatcher implements Runnable
+{
+    /**
+     * Time without any modification to wait before calling the callback, in milliseconds.
+     */
+    private static final long DEBOUNCE_DELAY = 500;
+
+    private final Path file;
+
+    private final Runnable callback;
+
+    private final WatchService watchService;
+
+    /**
+     * Start watching a file. The modifications are only notified once this watcher is run by a thread, which is busy
+     * until {@link #stop()} is called.
+     *
+     * @param file the file to watch
+     * @param callback the callback to call when the file has been modified
+     * @throws IOException if the directory of the file cannot be watched
+     */
+    ConfigurationFileWatcher(Path file, Runnable callback) throws IOException
+    {
+        this.file = file;
+        this.callback = callback;
+        this.watchService = file.getFileSystem().newWatchService();
+        // Editors often replace the file instead of modifying it, so the whole directory is watched
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Stop watching the file.
+     *
+     * @throws IOException if an error occurs
+     */
+    void stop() throws IOException
+    {
+        watchService.close();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            while (true) {
+                if (isFileModified(watchService.take())) {
+                    // Wait for the writes to stop
+                    WatchKey key;
+                    while ((key = watchService.poll(DEBOUNCE_DELAY, TimeUnit.MILLISECONDS)) != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                    callback.run();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // The watcher has been stopped
+        }
+    }
+
+    private boolean isFileModified(WatchKey key)
+    {
+        boolean modified = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // On overflow, some events have been lost so the file may have been modified
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                modified = true;
+            }
+        }
+        key.reset();
+        return modified;
+    }
+}
@@ -19,37 +19,49 @@
  */
 package org.xwiki.contrib.limits.internal.configuration;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
+import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.codec.binary.Hex;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.text.StringUtils;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 
 /**
- * Default implementation of {@link LimitsConfiguration}.
+ * Default implementation of {@link LimitsConfiguration}. The configuration is held by an immutable
+ * {@link LimitsConfigurationSnapshot} that is replaced at once on reload, so the getters never wait and never see a
+ * configuration being reloaded.
+ * <p>
+ * The configuration file is watched and automatically reloaded when its content changes. If the new content is not
+ * valid, the last valid configuration is kept.
  *
  * @version $Id: $
  */
 @Component
 @Singleton
-public class DefaultLimitsConfiguration implements LimitsConfiguration, Initializable
+public class DefaultLimitsConfiguration implements LimitsConfiguration, Initializable, Disposable
 {
     /**
      * Path of the config file. Windows is not supported and we don't care.
@@ -58,13 +70,29 @@ public class DefaultLimitsConfiguration implements LimitsConfiguration, Initiali
      */
     protected static Path configFile = Paths.get("/", "etc", "xwiki", "limits.xml");
 
-    private int numberOfUsers;
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
 
-    private int numberOfWikis;
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
 
-    private HashMap<DocumentReference, Number> groupLimits = new HashMap<>();
+    @Inject
+    private Logger logger;
 
-    private HashMap<String, Object> customLimits = new HashMap<>();
+    private volatile LimitsConfigurationSnapshot snapshot;
+
+    /**
+     * Hash of the content of the file that has produced the current snapshot. Guarded by "this".
+     */
+    private byte[] contentHash;
+
+    private ConfigurationFileWatcher watcher;
+
+    /**
+     * Runs the watcher, which keeps its thread until it is stopped.
+     */
+    private ExecutorService watcherExecutor;
 
     @Override
     public void initialize() throws InitializationException
@@ -74,25 +102,96 @@ public class DefaultLimitsConfiguration implements LimitsConfiguration, Initiali
         } catch (Exception e) {
             throw new InitializationException("Failed to load the configuration of the Limits Application.", e);
         }
+
+        try {
+            watcher = new ConfigurationFileWatcher(configFile, this::reloadIfChanged);
+            watcherExecutor = backgroundExecutor.newFixedThreadPool("configuration watcher", 1);
+            watcherExecutor.submit(watcher);
+        } catch (IOException e) {
+            logger.warn("Failed to watch the configuration file [{}], it will only be reloaded on demand. "
+                    + "Root cause: [{}].", configFile, e.toString());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (watcher != null) {
+            try {
+                watcher.stop();
+            } catch (IOException e) {
+                logger.warn("Failed to stop watching the configuration file. Root cause: [{}].", e.toString());
+            }
+        }
+        if (watcherExecutor != null) {
+            watcherExecutor.shutdownNow();
+        }
     }
 
     @Override
     public void reload() throws Exception
     {
-        Element limitsElem = getLimitsElement();
+        reload(true);
+    }
 
-        numberOfUsers = parseIntFromElement(limitsElem, "number-of-users");
-        numberOfWikis = parseIntFromElement(limitsElem, "number-of-wikis");
+    private void reloadIfChanged()
+    {
+        try {
+            reload(false);
+        } catch (Exception e) {
+            logger.error("Failed to reload the modified configuration of the Limits Application, the previous "
+                    + "configuration is kept.", e);
+        }
+    }
 
-        parseGroupLimits(limitsElem);
+    /**
+     * Reload the configuration file. Package-private to allow the test class to reload the file like the watcher does.
+     *
+     * @param force {@code true} to rebuild the configuration even when the content of the file has not changed
+     * @throws Exception if the file is not valid, in which case the current configuration is kept
+     */
+    synchronized void reload(boolean force) throws Exception
+    {
+        // The file is read once, so that the hash is always the one of the parsed content even when the file is
+        // modified meanwhile
+        byte[] content = getContent();
+        byte[] newContentHash = MessageDigest.getInstance("SHA-256").digest(content);
+        if (!force && Arrays.equals(newContentHash, contentHash)) {
+            // The file has been touched but its content is the same: nothing to rebuild
+            return;
+        }
+
+        // The current snapshot is kept if the new configuration is not valid
+        LimitsConfigurationSnapshot newSnapshot = new LimitsConfigurationSnapshot(getLimitsElement(content),
+                Hex.encodeHexString(newContentHash), explicitDocumentReferenceResolver);
+        LimitsConfigurationSnapshot oldSnapshot = snapshot;
+        snapshot = newSnapshot;
+        contentHash = newContentHash;
+
+        if (oldSnapshot != null) {
+            List<String> changes = oldSnapshot.diff(newSnapshot);
+            if (!changes.isEmpty()) {
+                logger.info("The configuration of the Limits Application has been reloaded. Changes: {}.", changes);
+            }
+        }
+    }
 
-        parseCustomLimits(limitsElem);
+    private byte[] getContent() throws Exception
+    {
+        try {
+            return Files.readAllBytes(configFile);
+        } catch (IOException e) {
+            throw new Exception(
+                    String.format("Failed to read the configuration file for the Limits Application [%s].", configFile),
+                    e);
+        }
     }
 
-    private Document getXMLDocument() throws Exception
+    private Document getXMLDocument(byte[] content) throws Exception
     {
         try {
-            return (new SAXBuilder()).build(configFile.toFile());
+            // The system id lets the parser resolve the relative references of the file like when it reads the file
+            return (new SAXBuilder()).build(new ByteArrayInputStream(content), configFile.toUri().toString());
         } catch (JDOMException | IOException e) {
             throw new Exception(
                     String.format(
@@ -102,114 +201,117 @@ public class DefaultLimitsConfiguration implements LimitsConfiguration, Initiali
         }
     }
 
-    private Element getLimitsElement() throws Exception
+    private Element getLimitsElement(byte[] content) throws Exception
     {
         // The result cannot be null, otherwise an exception has already been thrown by getXMLDocument().
-        return getXMLDocument().getRootElement();
+        return getXMLDocument(content).getRootElement();
     }
 
+    @Override
+    public int getTotalNumberOfUsersLimit()
+    {
+        return snapshot.getNumberOfUsers();
+    }
 
-    private int parseIntFromElement(Element element, String childName) throws Exception
+    @Override
+    public boolean isUserLimitSoft()
     {
-        String value = element.getChildTextTrim(childName);
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException e) {
-            throw new Exception(
-                    String.format("[%s] is not a valid number for the limit of [%s].", value, childName), e);
-        }
+        return snapshot.isUserLimitSoft();
     }
 
-    private void parseGroupLimits(Element limitsElement) throws Exception
-    {
-        groupLimits.clear();
-
-        Element groupsElem = limitsElement.getChild("groups");
-        if (groupsElem != null) {
-            for (Object child : groupsElem.getChildren("limit")) {
-                if (child instanceof Element) {
-                    Element childElem = (Element) child;
-                    String group = StringUtils.trimToNull(childElem.getAttributeValue("group"));
-                    if (group != null) {
-                        DocumentReference groupReference = new DocumentReference("xwiki", "XWiki", group);
-                        String value = childElem.getTextTrim();
-                        try {
-                            int limit = Integer.parseInt(value);
-                            groupLimits.put(groupReference, limit);
-                        } catch (NumberFormatException e) {
-                            throw new Exception(String.format(
-                                    "[%s] is not a valid number for the limit of [%s].", value, group), e);
-                        }
-                    }
-                }
-            }
-        }
+    @Override
+    public boolean isDeactivatingUsersOverLimit()
+    {
+        return snapshot.isDeactivatingUsersOverLimit();
     }
 
-    private void parseCustomLimits(Element limitsElem) throws Exception
-    {
-        customLimits.clear();
-
-        Element customElem = limitsElem.getChild("custom");
-        if (customElem != null) {
-            for (Object child : customElem.getChildren("limit")) {
-                if (child instanceof Element) {
-                    Element childElem = (Element) child;
-                    String limitName = StringUtils.trim(childElem.getAttributeValue("name"));
-                    String limitType = childElem.getAttributeValue("type");
-                    String value = childElem.getTextTrim();
-                    if (StringUtils.isNotBlank(limitName)) {
-                        if ("long".equals(limitType)) {
-                            try {
-                                Long limitValue = Long.parseLong(value);
-                                customLimits.put(limitName, limitValue);
-                            } catch (NumberFormatException e) {
-                                throw new Exception(String.format(
-                                        "[%s] is not a valid number for the limit [%s].", value, limitName), e);
-                            }
-                        } else if ("date".equals(limitType)) {
-                            SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-                            try {
-                                Date date = parser.parse(value);
-                                customLimits.put(limitName, date);
-                            } catch (ParseException e) {
-                                throw new Exception(String.format(
-                                        "[%s] is a not a valid date for the limit [%s]. Supported format is "
-                                                + "yyyy-MM-dd HH:mm.", value, limitName), e);
-                            }
-                        } else if ("string".equals(limitType)) {
-                            customLimits.put(limitName, value);
-                        } else {
-                            throw new Exception(
-                                    String.format("Missing attribute \"type\" for the limit [%s].", limitName));
-                        }
-                    }
-                }
-            }
-        }
+    @Override
+    public int getWikisNumberLimit()
+    {
+        return snapshot.getNumberOfWikis();
     }
 
     @Override
-    public int getTotalNumberOfUsersLimit()
+    public Map<DocumentReference, Number> getGroupsLimits()
     {
-        return numberOfUsers;
+        return snapshot.getGroupLimits();
     }
 
     @Override
-    public int getWikisNumberLimit()
+    public Number getGroupLimit(DocumentReference group)
     {
-        return numberOfWikis;
+        return snapshot.getGroupLimit(group);
     }
 
     @Override
-    public Map<DocumentReference, Number> getGroupsLimits()
+    public boolean isGroupLimitSoft(DocumentReference group)
+    {
+        return snapshot.isGroupLimitSoft(group);
+    }
+
+    @Override
+    public boolean isCountingActiveGroupMembersOnly()
     {
-        return Collections.unmodifiableMap(groupLimits);
+        return snapshot.isCountingActiveGroupMembersOnly();
     }
 
     @Override
     public Map<String, Object> getCustomLimits()
     {
-        return Collections.unmodifiableMap(customLimits);
+        return snapshot.getCustomLimits();
+    }
+
+    @Override
+    public Map<String, Integer> getWikiUserLimits()
+    {
+        return snapshot.getWikiUserLimits();
+    }
+
+    @Override
+    public int getCounterThreads()
+    {
+        return snapshot.getCounterThreads();
+    }
+
+    @Override
+    public int getCounterTimeout()
+    {
+        return snapshot.getCounterTimeout();
+    }
+
+    @Override
+    public String getCounterStrategy()
+    {
+        return snapshot.getCounterStrategy();
+    }
+
+    @Override
+    public int getCounterBatchSize()
+    {
+        return snapshot.getCounterBatchSize();
+    }
+
+    @Override
+    public String getQuotaStore()
+    {
+        return snapshot.getQuotaStore();
+    }
+
+    @Override
+    public int getQuotaLeaseSize()
+    {
+        return snapshot.getQuotaLeaseSize();
+    }
+
+    @Override
+    public int getUsageMaxStaleness()
+    {
+        return snapshot.getUsageMaxStaleness();
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return snapshot.getVersion();
     }
 }
@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Immutable lookup structure of the group limits. The group listener looks up every document saved in the farm, so
+ * a document whose name is not the name of any limited group is rejected with a single lookup of its name (whose
+ * hash is cached by the string), before any reference is hashed or compared.
+ * <p>
+ * A limit is either set on a group of a given wiki ({@code subwiki:Space.Group}) or on the group with the same local
+ * reference in every wiki ({@code *:Space.Group}). The limit of a given wiki wins over the one set for every wiki.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+public final class GroupLimits
+{
+    /**
+     * The wiki of the groups limited in every wiki.
+     */
+    static final String ANY_WIKI = "*";
+
+    private static final String DEFAULT_WIKI = "xwiki";
+
+    private static final String DEFAULT_SPACE = "XWiki";
+
+    /**
+     * Gives the default wiki and space to the references of the configuration.
+     */
+    private static final SpaceReference DEFAULT_SPACE_REFERENCE =
+            new SpaceReference(DEFAULT_SPACE, new WikiReference(DEFAULT_WIKI));
+
+    private final Map<DocumentReference, Number> limits;
+
+    private final Set<DocumentReference> softLimits;
+
+    /**
+     * The groups limited in every wiki, by local reference.
+     */
+    private final Map<EntityReference, DocumentReference> anyWikiGroups;
+
+    private final Set<String> names;
+
+    /**
+     * @param limits the group limits, with the groups limited in every wiki in the {@link #ANY_WIKI} wiki
+     * @param softLimits the groups of the limits that are enforced in the soft mode
+     */
+    GroupLimits(Map<DocumentReference, Number> limits, Set<DocumentReference> softLimits)
+    {
+        this.limits = Collections.unmodifiableMap(limits);
+        this.softLimits = Collections.unmodifiableSet(softLimits);
+
+        Map<EntityReference, DocumentReference> anyWikiGroups = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        for (DocumentReference group : limits.keySet()) {
+            names.add(group.getName());
+            if (isAnyWiki(group)) {
+                anyWikiGroups.put(getLocalReference(group), group);
+            }
+        }
+        this.anyWikiGroups = anyWikiGroups;
+        this.names = names;
+    }
+
+    /**
+     * @param group a group of the configuration
+     * @return {@code true} if the limit of the group applies to the group with the same local reference in every wiki
+     */
+    public static boolean isAnyWiki(DocumentReference group)
+    {
+        return ANY_WIKI.equals(group.getWikiReference().getName());
+    }
+
+    /**
+     * Parse a group reference of the configuration file. A reference without wiki is the whole name of a group of
+     * the {@code XWiki} space of the main wiki, as in the previous versions (so {@code My.Group} is the group
+     * {@code xwiki:XWiki.My\.Group}). A reference with a wiki is a document reference, with {@code XWiki} as default
+     * space.
+     *
+     * @param group the group reference, either {@code Group} or {@code wiki:[Space.]Group}, with {@code *} as wiki to
+     * limit the group in every wiki
+     * @param resolver the resolver of the references with a wiki
+     * @return the reference of the group
+     */
+    static DocumentReference parseGroupReference(String group, DocumentReferenceResolver<String> resolver)
+    {
+        if (hasWiki(group)) {
+            return resolver.resolve(group, DEFAULT_SPACE_REFERENCE);
+        }
+        return new DocumentReference(DEFAULT_WIKI, DEFAULT_SPACE, group);
+    }
+
+    /**
+     * @return {@code true} if the reference has a wiki separator, which is not escaped
+     */
+    private static boolean hasWiki(String reference)
+    {
+        for (int i = 0; i < reference.length(); ++i) {
+            char c = reference.charAt(i);
+            if (c == '\\') {
+                // The escaped character is skipped
+                ++i;
+            } else if (c == ':') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return an unmodifiable map of the group limits, as configured
+     */
+    Map<DocumentReference, Number> getLimits()
+    {
+        return limits;
+    }
+
+    /**
+     * @param group the reference of a document
+     * @return the limit of the group, or {@code null} if the document is not a limited group
+     */
+    Number getLimit(DocumentReference group)
+    {
+        DocumentReference limitedGroup = getLimitedGroup(group);
+        return limitedGroup != null ? limits.get(limitedGroup) : null;
+    }
+
+    /**
+     * @return an unmodifiable set of the groups, as configured, which limits are enforced in the soft mode
+     */
+    Set<DocumentReference> getSoftLimits()
+    {
+        return softLimits;
+    }
+
+    /**
+     * @param group the reference of a document
+     * @return {@code true} if the document is a limited group and its limit is enforced in the soft mode
+     */
+    boolean isSoft(DocumentReference group)
+    {
+        DocumentReference limitedGroup = getLimitedGroup(group);
+        return limitedGroup != null && softLimits.contains(limitedGroup);
+    }
+
+    /**
+     * @return the group, as configured, which limit applies to the given document, or {@code null} if there is none
+     */
+    private DocumentReference getLimitedGroup(DocumentReference group)
+    {
+        if (!names.contains(group.getName())) {
+            return null;
+        }
+        if (limits.containsKey(group)) {
+            return group;
+        }
+        return !anyWikiGroups.isEmpty() ? anyWikiGroups.get(getLocalReference(group)) : null;
+    }
+
+    private static EntityReference getLocalReference(DocumentReference group)
+    {
+        return group.removeParent(group.getWikiReference());
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.configuration;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.jdom.Element;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.text.StringUtils;
+
+/**
+ * Immutable state of the configuration, parsed from the limits element of the configuration file. A new snapshot is
+ * created on each reload and published at once, so that a reader never sees a configuration being reloaded.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+final class LimitsConfigurationSnapshot
+{
+    private static final int DEFAULT_COUNTER_TIMEOUT = 60;
+
+    private static final int DEFAULT_COUNTER_BATCH_SIZE = 50;
+
+    private static final int DEFAULT_USAGE_MAX_STALENESS = 60;
+
+    private static final String LIMIT = "limit";
+
+    private static final String NUMBER_OF_USERS = "number-of-users";
+
+    private static final String ENFORCEMENT = "enforcement";
+
+    private static final String SOFT = "soft";
+
+    private final int numberOfUsers;
+
+    private final boolean userLimitSoft;
+
+    private final boolean deactivatingUsersOverLimit;
+
+    private final int numberOfWikis;
+
+    private final GroupLimits groupLimits;
+
+    private final boolean countingActiveGroupMembersOnly;
+
+    private final Map<String, Object> customLimits;
+
+    private final Map<String, Integer> wikiUserLimits;
+
+    private final int counterThreads;
+
+    private final int counterTimeout;
+
+    private final String counterStrategy;
+
+    private final int counterBatchSize;
+
+    private final String quotaStore;
+
+    private final int quotaLeaseSize;
+
+    private final int usageMaxStaleness;
+
+    private final String version;
+
+    /**
+     * Parse the configuration.
+     *
+     * @param limitsElem the root element of the configuration file
+     * @param version the identifier of this configuration (the hash of the configuration file)
+     * @param resolver the resolver of the references of the configuration
+     * @throws Exception if the configuration is not valid
+     */
+    LimitsConfigurationSnapshot(Element limitsElem, String version, DocumentReferenceResolver<String> resolver)
+        throws Exception
+    {
+        this.version = version;
+
+        numberOfUsers = parseIntFromElement(limitsElem, NUMBER_OF_USERS);
+        // The user limits are enforced in the hard mode unless the soft mode is asked explicitly
+        Element numberOfUsersElem = limitsElem.getChild(NUMBER_OF_USERS);
+        userLimitSoft = SOFT.equals(numberOfUsersElem.getAttributeValue(ENFORCEMENT));
+        deactivatingUsersOverLimit = userLimitSoft
+                && Boolean.parseBoolean(numberOfUsersElem.getAttributeValue("deactivate"));
+        numberOfWikis = parseIntFromElement(limitsElem, "number-of-wikis");
+
+        groupLimits = parseGroupLimits(limitsElem, resolver);
+        // By default, the deactivated users count in the group limits too
+        Element groupsElem = limitsElem.getChild("groups");
+        countingActiveGroupMembersOnly = groupsElem != null
+                && Boolean.parseBoolean(groupsElem.getAttributeValue("active-only"));
+
+        customLimits = parseCustomLimits(limitsElem);
+
+        wikiUserLimits = parseWikiUserLimits(limitsElem);
+
+        // This section is optional: by default, the wikis are counted one after the other
+        Element countersElem = limitsElem.getChild("counters");
+        counterThreads = parseIntFromElement(countersElem, "threads", 1);
+        counterTimeout = parseIntFromElement(countersElem, "timeout", DEFAULT_COUNTER_TIMEOUT);
+        counterStrategy = countersElem != null ? StringUtils.trimToNull(countersElem.getChildTextTrim("strategy"))
+                : null;
+        counterBatchSize = parseIntFromElement(countersElem, "batch-size", DEFAULT_COUNTER_BATCH_SIZE);
+
+        // This section is optional too: by default, the quotas are kept in memory and reserved one by one
+        Element quotaElem = limitsElem.getChild("quota");
+        quotaStore = quotaElem != null ? StringUtils.trimToNull(quotaElem.getChildTextTrim("store")) : null;
+        quotaLeaseSize = parseIntFromElement(quotaElem, "lease-size", 1);
+
+        // Optional as well: by default, the usage served by the REST API can be one minute old
+        usageMaxStaleness = parseIntFromElement(limitsElem.getChild("usage"), "max-staleness",
+                DEFAULT_USAGE_MAX_STALENESS);
+    }
+
+    private static int parseIntFromElement(Element element, String childName) throws Exception
+    {
+        String value = element.getChildTextTrim(childName);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Exception(
+                    String.format("[%s] is not a valid number for the limit of [%s].", value, childName), e);
+        }
+    }
+
+    private static int parseIntFromElement(Element element, String childName, int defaultValue) throws Exception
+    {
+        if (element == null || element.getChild(childName) == null) {
+            return defaultValue;
+        }
+        return parseIntFromElement(element, childName);
+    }
+
+    private static List<?> getLimitElements(Element limitsElement, String sectionName)
+    {
+        Element sectionElem = limitsElement.getChild(sectionName);
+        return sectionElem != null ? sectionElem.getChildren(LIMIT) : Collections.emptyList();
+    }
+
+    /**
+     * @return a map big enough to hold the given number of entries without being resized
+     */
+    private static <K, V> Map<K, V> newMap(int size)
+    {
+        return new HashMap<>(Math.max(16, (int) (size / 0.75f) + 1));
+    }
+
+    private static GroupLimits parseGroupLimits(Element limitsElement, DocumentReferenceResolver<String> resolver)
+        throws Exception
+    {
+        List<?> children = getLimitElements(limitsElement, "groups");
+        Map<DocumentReference, Number> groupLimits = newMap(children.size());
+        Set<DocumentReference> softLimits = new HashSet<>();
+        for (Object child : children) {
+            if (child instanceof Element) {
+                Element childElem = (Element) child;
+                String group = StringUtils.trimToNull(childElem.getAttributeValue("group"));
+                if (group != null) {
+                    DocumentReference groupReference = GroupLimits.parseGroupReference(group, resolver);
+                    String value = childElem.getTextTrim();
+                    try {
+                        int limit = Integer.parseInt(value);
+                        groupLimits.put(groupReference, limit);
+                        if (SOFT.equals(childElem.getAttributeValue(ENFORCEMENT))) {
+                            softLimits.add(groupReference);
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new Exception(String.format(
+                                "[%s] is not a valid number for the limit of [%s].", value, group), e);
+                    }
+                }
+            }
+        }
+        return new GroupLimits(groupLimits, softLimits);
+    }
+
+    private static Map<String, Integer> parseWikiUserLimits(Element limitsElement) throws Exception
+    {
+        Element wikisElem = limitsElement.getChild("wikis");
+        List<?> children = wikisElem != null ? wikisElem.getChildren("wiki") : Collections.emptyList();
+        Map<String, Integer> wikiUserLimits = newMap(children.size());
+        for (Object child : children) {
+            if (child instanceof Element) {
+                Element childElem = (Element) child;
+                String wiki = StringUtils.trimToNull(childElem.getAttributeValue("id"));
+                String value = StringUtils.trimToNull(childElem.getAttributeValue("users"));
+                if (wiki != null && value != null) {
+                    try {
+                        wikiUserLimits.put(wiki, Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        throw new Exception(String.format(
+                                "[%s] is not a valid number for the user limit of the wiki [%s].", value, wiki), e);
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableMap(wikiUserLimits);
+    }
+
+    private static Map<String, Object> parseCustomLimits(Element limitsElem) throws Exception
+    {
+        List<?> children = getLimitElements(limitsElem, "custom");
+        Map<String, Object> customLimits = newMap(children.size());
+        for (Object child : children) {
+            if (child instanceof Element) {
+                Element childElem = (Element) child;
+                String limitName = StringUtils.trim(childElem.getAttributeValue("name"));
+                String limitType = childElem.getAttributeValue("type");
+                String value = childElem.getTextTrim();
+                if (StringUtils.isNotBlank(limitName)) {
+                    customLimits.put(limitName, parseCustomLimit(limitName, limitType, value));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(customLimits);
+    }
+
+    private static Object parseCustomLimit(String limitName, String limitType, String value) throws Exception
+    {
+        if ("long".equals(limitType)) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new Exception(String.format(
+                        "[%s] is not a valid number for the limit [%s].", value, limitName), e);
+            }
+        } else if ("date".equals(limitType)) {
+            SimpleDateFormat parser = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            try {
+                return parser.parse(value);
+            } catch (ParseException e) {
+                throw new Exception(String.format(
+                        "[%s] is a not a valid date for the limit [%s]. Supported format is "
+                                + "yyyy-MM-dd HH:mm.", value, limitName), e);
+            }
+        } else if ("string".equals(limitType)) {
+            return value;
+        } else {
+            throw new Exception(
+                    String.format("Missing attribute \"type\" for the limit [%s].", limitName));
+        }
+    }
+
+    /**
+     * Describe what differs between this configuration and another one.
+     *
+     * @param other the other configuration
+     * @return a list of human readable changes, empty if the configurations are identical
+     */
+    List<String> diff(LimitsConfigurationSnapshot other)
+    {
+        List<String> changes = new ArrayList<>();
+        addChange(changes, NUMBER_OF_USERS, numberOfUsers, other.numberOfUsers);
+        addChange(changes, "number-of-users/soft", userLimitSoft, other.userLimitSoft);
+        addChange(changes, "number-of-users/deactivate", deactivatingUsersOverLimit,
+                other.deactivatingUsersOverLimit);
+        addChange(changes, "number-of-wikis", numberOfWikis, other.numberOfWikis);
+        addChanges(changes, "group", groupLimits.getLimits(), other.groupLimits.getLimits());
+        addChange(changes, "groups/soft", groupLimits.getSoftLimits(), other.groupLimits.getSoftLimits());
+        addChange(changes, "groups/active-only", countingActiveGroupMembersOnly,
+                other.countingActiveGroupMembersOnly);
+        addChanges(changes, "custom", customLimits, other.customLimits);
+        addChanges(changes, "wiki", wikiUserLimits, other.wikiUserLimits);
+        addChange(changes, "counters/threads", counterThreads, other.counterThreads);
+        addChange(changes, "counters/timeout", counterTimeout, other.counterTimeout);
+        addChange(changes, "counters/strategy", counterStrategy, other.counterStrategy);
+        addChange(changes, "counters/batch-size", counterBatchSize, other.counterBatchSize);
+        addChange(changes, "quota/store", quotaStore, other.quotaStore);
+        addChange(changes, "quota/lease-size", quotaLeaseSize, other.quotaLeaseSize);
+        addChange(changes, "usage/max-staleness", usageMaxStaleness, other.usageMaxStaleness);
+        return changes;
+    }
+
+    private static void addChange(List<String> changes, String name, Object value, Object otherValue)
+    {
+        if (!Objects.equals(value, otherValue)) {
+            changes.add(String.format("[%s]: [%s] -> [%s]", name, value, otherValue));
+        }
+    }
+
+    private static <K> void addChanges(List<String> changes, String prefix, Map<K, ?> values, Map<K, ?> otherValues)
+    {
+        Set<K> keys = new HashSet<>(values.keySet());
+        keys.addAll(otherValues.keySet());
+        for (K key : keys) {
+            addChange(changes, prefix + ' ' + key, values.get(key), otherValues.get(key));
+        }
+    }
+
+    int getNumberOfUsers()
+    {
+        return numberOfUsers;
+    }
+
+    boolean isUserLimitSoft()
+    {
+        return userLimitSoft;
+    }
+
+    boolean isDeactivatingUsersOverLimit()
+    {
+        return deactivatingUsersOverLimit;
+    }
+
+    int getNumberOfWikis()
+    {
+        return numberOfWikis;
+    }
+
+    Map<DocumentReference, Number> getGroupLimits()
+    {
+        return groupLimits.getLimits();
+    }
+
+    Number getGroupLimit(DocumentReference group)
+    {
+        return groupLimits.getLimit(group);
+    }
+
+    boolean isCountingActiveGroupMembersOnly()
+    {
+        return countingActiveGroupMembersOnly;
+    }
+
+    boolean isGroupLimitSoft(DocumentReference group)
+    {
+        return groupLimits.isSoft(group);
+    }
+
+    Map<String, Object> getCustomLimits()
+    {
+        return customLimits;
+    }
+
+    Map<String, Integer> getWikiUserLimits()
+    {
+        return wikiUserLimits;
+    }
+
+    int getCounterThreads()
+    {
+        return counterThreads;
+    }
+
+    int getCounterTimeout()
+    {
+        return counterTimeout;
+    }
+
+    String getCounterStrategy()
+    {
+        return counterStrategy;
+    }
+
+    int getCounterBatchSize()
+    {
+        return counterBatchSize;
+    }
+
+    String getQuotaStore()
+    {
+        return quotaStore;
+    }
+
+    int getQuotaLeaseSize()
+    {
+        return quotaLeaseSize;
+    }
+
+    int getUsageMaxStaleness()
+    {
+        return usageMaxStaleness;
+    }
+
+    String getVersion()
+    {
+        return version;
+    }
+}
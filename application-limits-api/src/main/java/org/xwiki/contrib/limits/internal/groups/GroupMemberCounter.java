@@ -19,44 +19,271 @@
  */
 package org.xwiki.contrib.limits.internal.groups;
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
-import javax.inject.Named;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.context.Execution;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.usage.UsageSnapshotStore;
+import org.xwiki.contrib.limits.internal.users.InactiveUsers;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
 
-import com.xpn.xwiki.internal.plugin.rightsmanager.ReferenceUserIterator;
+import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
+ * Count the users of the groups, thanks to the {@link GroupMembershipIndex}. Until a group is resolved by the index,
+ * its last known count kept by the {@link UsageSnapshotStore} is available for the checks that must not count.
+ * <p>
+ * When the configuration asks to count only the active users, the users of a group that are part of the
+ * {@link InactiveUsers} are not counted.
+ *
  * @version $Id: $
  */
 @Component(roles = GroupMemberCounter.class)
 @Singleton
-public class GroupMemberCounter
+public class GroupMemberCounter implements Initializable
 {
     @Inject
-    @Named("explicit")
-    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+    private GroupMembershipIndex groupMembershipIndex;
+
+    @Inject
+    private UsageSnapshotStore usageSnapshotStore;
+
+    @Inject
+    private InactiveUsers inactiveUsers;
 
     @Inject
-    private Provider<Execution> executionProvider;
+    private LimitsConfiguration limitsConfiguration;
+
+    /**
+     * The last known counts of the groups that have not been resolved since the XWiki instance has started.
+     */
+    private final Map<DocumentReference, Long> lastKnownCounts = new ConcurrentHashMap<>();
+
+    private volatile InactiveMembers inactiveMembers;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        lastKnownCounts.putAll(usageSnapshotStore.getGroupCounts());
+    }
 
+    /**
+     * @param groupReference the reference of a saved group
+     * @return the number of users that the group contains, directly or through its subgroups
+     * @throws Exception if something bad happens
+     */
     public long getUserCount(DocumentReference groupReference) throws Exception
     {
-        HashSet<DocumentReference> members = new HashSet<>();
+        long count = count(groupMembershipIndex.getMembers(groupReference));
+        // From now on, the index knows the group
+        lastKnownCounts.remove(groupReference);
+        return count;
+    }
 
-        ReferenceUserIterator userIterator = new ReferenceUserIterator(groupReference,
-                explicitDocumentReferenceResolver, executionProvider.get());
-        while (userIterator.hasNext()) {
-            members.add(userIterator.next());
+    /**
+     * @param groupReference the reference of a saved group
+     * @return the number of users that the group contains, as known by the index or, if the group has not been
+     * resolved since the XWiki instance has started, before the XWiki instance was stopped; {@code null} if unknown
+     * @since 2.2
+     */
+    public Long getCachedUserCount(DocumentReference groupReference)
+    {
+        Set<DocumentReference> users = groupMembershipIndex.getCachedMembers(groupReference);
+        if (users == null) {
+            return lastKnownCounts.get(groupReference);
         }
+        // Until the inactive users are loaded, they are counted: better to over-estimate the count
+        Set<DocumentReference> inactive =
+                limitsConfiguration.isCountingActiveGroupMembersOnly() ? inactiveUsers.getCachedInactiveUsers() : null;
+        return inactive != null ? countActive(users, inactive) : users.size();
+    }
+
+    /**
+     * @param groupDocument a group document, that may not be saved yet
+     * @return the number of users that the group document contains, directly or through its subgroups
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public long getUserCount(XWikiDocument groupDocument) throws Exception
+    {
+        return count(groupMembershipIndex.getMembers(groupDocument));
+    }
+
+    /**
+     * @param groupReference the reference of a saved group
+     * @return the users that the group contains, directly or through its subgroups, or {@code null} if they have not
+     * been resolved yet
+     * @since 2.2
+     */
+    public Set<DocumentReference> getCachedUsers(DocumentReference groupReference)
+    {
+        return groupMembershipIndex.getCachedMembers(groupReference);
+    }
+
+    /**
+     * Compute the members (users or groups) that a group document adds to the saved version of the group, without
+     * resolving them.
+     *
+     * @param groupDocument a group document, that may not be saved yet
+     * @return the members that the group document directly contains but that the saved version does not contain
+     * @since 2.2
+     */
+    public Set<DocumentReference> getAddedMembers(XWikiDocument groupDocument)
+    {
+        Set<DocumentReference> addedMembers = new HashSet<>(groupMembershipIndex.getDirectMembers(groupDocument));
+        XWikiDocument originalDocument = groupDocument.getOriginalDocument();
+        if (originalDocument != null) {
+            addedMembers.removeAll(groupMembershipIndex.getDirectMembers(originalDocument));
+        }
+        return addedMembers;
+    }
+
+    /**
+     * Compute the users that a group document adds to the saved version of the group. Only the members that are
+     * added by the document are resolved, so the cost depends on the size of the change instead of the size of the
+     * group.
+     *
+     * @param groupDocument a group document, that may not be saved yet
+     * @return the users that the group document contains but that the saved version of the group does not contain
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public Set<DocumentReference> getAddedUsers(XWikiDocument groupDocument) throws Exception
+    {
+        Set<DocumentReference> addedMembers = getAddedMembers(groupDocument);
+        if (addedMembers.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        return filterActive(
+                groupMembershipIndex.getMembersNotIn(addedMembers, groupDocument.getDocumentReference()));
+    }
+
+    /**
+     * Compute the users that some members added to a subgroup add to a group containing this subgroup.
+     *
+     * @param groupReference the reference of a saved group
+     * @param addedMembers the members (users or groups) added to a subgroup of the group
+     * @return the users that the added members contain but that the saved group does not contain yet
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public Set<DocumentReference> getAddedUsers(DocumentReference groupReference,
+            Set<DocumentReference> addedMembers) throws Exception
+    {
+        return filterActive(groupMembershipIndex.getMembersNotIn(addedMembers, groupReference));
+    }
 
-        return members.size();
+    /**
+     * @param reference the reference of a document (usually a group)
+     * @return the limited groups that contain the document, directly or not, excluding the document itself
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public Set<DocumentReference> getLimitedAncestors(DocumentReference reference) throws Exception
+    {
+        return groupMembershipIndex.getLimitedAncestors(reference);
+    }
+
+    /**
+     * @param document a document, that may not be saved yet
+     * @return {@code true} if the document is a group, that may add some members to the groups containing it
+     * @since 2.2
+     */
+    public boolean isGroup(XWikiDocument document)
+    {
+        return groupMembershipIndex.isGroup(document);
+    }
+
+    /**
+     * Load the limited groups in the background, so that the limited groups containing a document are found with a
+     * lookup.
+     *
+     * @param wiki the wiki of the documents that are going to be saved
+     * @since 2.2
+     */
+    public void preloadLimitedGroups(String wiki)
+    {
+        groupMembershipIndex.preloadLimitedGroups(wiki);
+    }
+
+    private long count(Set<DocumentReference> users) throws Exception
+    {
+        if (!limitsConfiguration.isCountingActiveGroupMembersOnly()) {
+            return users.size();
+        }
+        return countActive(users, inactiveUsers.getInactiveUsers());
+    }
+
+    private long countActive(Set<DocumentReference> users, Set<DocumentReference> inactive)
+    {
+        if (users.isEmpty()) {
+            return 0;
+        }
+        MemberSet members = (MemberSet) users;
+        BitSet activeIds = (BitSet) members.getIds().clone();
+        activeIds.andNot(getInactiveMembers(members.getDictionary(), inactive).getIds());
+        return activeIds.cardinality();
+    }
+
+    private Set<DocumentReference> filterActive(Set<DocumentReference> users) throws Exception
+    {
+        if (users.isEmpty() || !limitsConfiguration.isCountingActiveGroupMembersOnly()) {
+            return users;
+        }
+        MemberSet members = (MemberSet) users;
+        BitSet activeIds = (BitSet) members.getIds().clone();
+        activeIds.andNot(getInactiveMembers(members.getDictionary(), inactiveUsers.getInactiveUsers()).getIds());
+        return new MemberSet(members.getDictionary(), activeIds);
+    }
+
+    /**
+     * @return the inactive users as a set of the same dictionary as the members of the groups, computed again only
+     *         when the inactive users or the dictionary change
+     */
+    private MemberSet getInactiveMembers(MemberDictionary dictionary, Set<DocumentReference> inactive)
+    {
+        // Read before the users, so that a change made while they are copied is seen by the next call
+        long version = inactiveUsers.getVersion();
+        InactiveMembers current = inactiveMembers;
+        if (current == null || current.dictionary != dictionary || current.version != version) {
+            BitSet ids = new BitSet();
+            for (DocumentReference user : inactive) {
+                // Registered, so that the identifier stays valid when the user is added to a group later
+                ids.set(dictionary.getId(user));
+            }
+            current = new InactiveMembers(dictionary, version, new MemberSet(dictionary, ids));
+            inactiveMembers = current;
+        }
+        return current.members;
+    }
+
+    /**
+     * The inactive users converted for a dictionary. Immutable, so that it can be replaced without locking.
+     */
+    private static final class InactiveMembers
+    {
+        private final MemberDictionary dictionary;
+
+        private final long version;
+
+        private final MemberSet members;
+
+        InactiveMembers(MemberDictionary dictionary, long version, MemberSet members)
+        {
+            this.dictionary = dictionary;
+            this.version = version;
+            this.members = members;
+        }
     }
 }
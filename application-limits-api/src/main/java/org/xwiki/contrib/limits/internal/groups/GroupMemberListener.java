@@ -20,32 +20,30 @@
 package org.xwiki.contrib.limits.internal.groups;
 
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.bridge.event.DocumentUpdatingEvent;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.context.Execution;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.soft.SoftLimitVerifier;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.CancelableEvent;
 import org.xwiki.observation.event.Event;
-import org.xwiki.text.StringUtils;
 
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.internal.plugin.rightsmanager.ReferenceUserIterator;
-import com.xpn.xwiki.objects.BaseObject;
 
 /**
- * Cancel the saving of a group is the number of member is superior to the limit fixed for this group.
+ * Cancel the saving of a group is the number of member is superior to the limit fixed for this group, or to the limit
+ * of a group containing it.
  *
  * @version $Id: $
  */
@@ -54,9 +52,6 @@ import com.xpn.xwiki.objects.BaseObject;
 @Singleton
 public class GroupMemberListener implements EventListener
 {
-    private static final DocumentReference GROUP_CLASS =
-            new DocumentReference("xwiki", "XWiki", "XWikiGroups");
-
     private static final List<Event> EVENTS = Arrays.<Event>asList(new DocumentUpdatingEvent());
 
     @Inject
@@ -66,14 +61,13 @@ public class GroupMemberListener implements EventListener
     private LimitsConfiguration limitsConfiguration;
 
     @Inject
-    @Named("current")
-    private DocumentReferenceResolver<String> documentReferenceResolver;
+    private SoftLimitVerifier softLimitVerifier;
 
     @Inject
-    private Logger logger;
+    private LimitsMetrics metrics;
 
     @Inject
-    private Provider<Execution> executionProvider;
+    private Logger logger;
 
     @Override
     public String getName()
@@ -92,63 +86,162 @@ public class GroupMemberListener implements EventListener
     {
         XWikiDocument document = (XWikiDocument) source;
 
+        if (limitsConfiguration.getGroupsLimits().isEmpty()) {
+            return;
+        }
+
+        DocumentReference documentReference = document.getDocumentReference();
+        groupMemberCounter.preloadLimitedGroups(documentReference.getWikiReference().getName());
+        // Cheap for the documents that are not limited groups, whatever the number of limits
+        Number limit = limitsConfiguration.getGroupLimit(documentReference);
+        // Only a group can add some users to the limited groups containing it
+        boolean group = groupMemberCounter.isGroup(document);
+        if (limit == null && !group) {
+            return;
+        }
+
+        long start = System.nanoTime();
         try {
-            DocumentReference documentReference = document.getDocumentReference();
-            Number limit = limitsConfiguration.getGroupsLimits().get(documentReference);
-            if (limit != null) {
-                // New user count is computed by parsing the received document
-                long count = getUserCount(document);
-                // Meanwhile current count is computed by watching the database
-                long oldCount = groupMemberCounter.getUserCount(documentReference);
-                maybeCancelUpdate(event, documentReference, oldCount, count, limit.intValue());
+            if ((limit == null || !checkLimit(event, document, limit.intValue())) && group) {
+                // The users added to a subgroup are added to the limited groups containing it too
+                checkLimitedAncestors(event, document, getLimitedAncestors(documentReference));
             }
         } catch (Exception e) {
             logger.error("Failed to check if the group limits are respected.", e);
+        } finally {
+            metrics.record(LimitsMetrics.GROUP_CHECK, start);
         }
     }
 
-    private void maybeCancelUpdate(Event event, DocumentReference documentReference, long oldCount, long count,
-            long limit)
+    private Set<DocumentReference> getLimitedAncestors(DocumentReference documentReference)
     {
-        // It's ok to save the document that have more users than allowed if it decreases the number of members
-        // (use-case: the group already exist but the limit is decreased afterwards. The user must be able to save the
-        // group to remove some users, even one by one - that's how works the UI)
-        if (count > limit && count > oldCount) {
-            logger.warn("Forbid the addition of a user [{}] in the group [{}] because the group limit" +
-                    " has been reached [{}/{}].", documentReference, count, limit);
-            if (event instanceof CancelableEvent) {
-                CancelableEvent cancelableEvent = (CancelableEvent) event;
-                cancelableEvent.cancel(String.format(
-                        "The limit of number of users in the group [%s] has been reached [%d/%d].",
-                        documentReference, count, limit));
-            } else {
-                // Should never happen actually
-                logger.error("Failed to cancel the event [{}].", event);
+        try {
+            return groupMemberCounter.getLimitedAncestors(documentReference);
+        } catch (Exception e) {
+            logger.error("Failed to find the limited groups containing [{}].", documentReference, e);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * @return {@code true} if the save has been cancelled
+     */
+    private boolean checkLimit(Event event, XWikiDocument document, long limit) throws Exception
+    {
+        DocumentReference documentReference = document.getDocumentReference();
+        if (limitsConfiguration.isGroupLimitSoft(documentReference)) {
+            return checkSoftLimit(event, documentReference, documentReference,
+                    groupMemberCounter.getAddedMembers(document), limit);
+        }
+
+        // Removing some members cannot exceed the limit, so only the added users need to be resolved
+        Set<DocumentReference> addedUsers = groupMemberCounter.getAddedUsers(document);
+        if (!addedUsers.isEmpty()) {
+            // Current count is computed from the saved version of the group
+            long oldCount = groupMemberCounter.getUserCount(documentReference);
+            if (oldCount + addedUsers.size() > limit) {
+                // Some members may have been removed in the same time, so the new count is computed by
+                // parsing the received document
+                long count = groupMemberCounter.getUserCount(document);
+                return maybeCancelUpdate(event, documentReference, oldCount, count, limit);
             }
         }
+        return false;
     }
 
-    private long getUserCount(XWikiDocument document)
+    /**
+     * Check the limits of the groups containing the saved group with the users that it adds. The users removed by the
+     * same save are not taken into account, since a limited group may still contain them through another subgroup.
+     */
+    private void checkLimitedAncestors(Event event, XWikiDocument document, Set<DocumentReference> limitedAncestors)
+            throws Exception
     {
-        // Hashset is used to avoid counting twice the same member if multiple objects have the same value.
-        HashSet<DocumentReference> members = new HashSet<>();
-        for (BaseObject obj : document.getXObjects(GROUP_CLASS)) {
-            if (obj == null) {
+        if (limitedAncestors.isEmpty()) {
+            return;
+        }
+        Set<DocumentReference> addedMembers = groupMemberCounter.getAddedMembers(document);
+        if (addedMembers.isEmpty()) {
+            return;
+        }
+
+        DocumentReference documentReference = document.getDocumentReference();
+        for (DocumentReference group : limitedAncestors) {
+            // The configuration may have been reloaded since the ancestors have been found
+            Number limit = limitsConfiguration.getGroupLimit(group);
+            if (limit == null) {
                 continue;
             }
-            String member = obj.getStringValue("member");
-            if (StringUtils.isNotBlank(member)) {
-                // The member could be... an other group!
-                // So we need to use the ReferenceUserIterator to have the proper count of users that the document
-                // is holding (being a user or a group).
-                DocumentReference memberReference = documentReferenceResolver.resolve(member);
-                ReferenceUserIterator referenceUserIterator = new ReferenceUserIterator(memberReference,
-                        documentReferenceResolver, executionProvider.get());
-                while (referenceUserIterator.hasNext()) {
-                    members.add(referenceUserIterator.next());
+
+            boolean cancelled;
+            if (limitsConfiguration.isGroupLimitSoft(group)) {
+                cancelled = checkSoftLimit(event, documentReference, group, addedMembers, limit.intValue());
+            } else {
+                Set<DocumentReference> addedUsers = groupMemberCounter.getAddedUsers(group, addedMembers);
+                long count = addedUsers.isEmpty() ? 0 : groupMemberCounter.getUserCount(group) + addedUsers.size();
+                cancelled = count > limit.intValue();
+                if (cancelled) {
+                    cancel(event, group, count, limit.intValue());
                 }
             }
+            if (cancelled) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decide from the members already known, without resolving anything: the save is only cancelled if the group has
+     * already reached its limit, otherwise the exact count is verified in the background once the document is saved.
+     *
+     * @return {@code true} if the save has been cancelled
+     */
+    private boolean checkSoftLimit(Event event, DocumentReference documentReference, DocumentReference group,
+            Set<DocumentReference> addedMembers, long limit)
+    {
+        if (addedMembers.isEmpty()) {
+            return false;
+        }
+
+        // The last known count is used when the group has not been resolved since the XWiki instance has started
+        Long cachedCount = groupMemberCounter.getCachedUserCount(group);
+        if (cachedCount != null && cachedCount >= limit) {
+            // Saving some members that the group already contains is allowed
+            Set<DocumentReference> cachedUsers = groupMemberCounter.getCachedUsers(group);
+            if (cachedUsers == null || !cachedUsers.containsAll(addedMembers)) {
+                cancel(event, group, cachedCount, limit);
+                return true;
+            }
+        }
+        softLimitVerifier.expectGroup(documentReference, group);
+        return false;
+    }
+
+    private boolean maybeCancelUpdate(Event event, DocumentReference documentReference, long oldCount, long count,
+            long limit)
+    {
+        // It's ok to save the document that have more users than allowed if it decreases the number of members
+        // (use-case: the group already exist but the limit is decreased afterwards. The user must be able to save the
+        // group to remove some users, even one by one - that's how works the UI)
+        if (count > limit && count > oldCount) {
+            cancel(event, documentReference, count, limit);
+            return true;
+        }
+        return false;
+    }
+
+    private void cancel(Event event, DocumentReference documentReference, long count, long limit)
+    {
+        logger.warn("Forbid the addition of a user [{}] in the group [{}] because the group limit" +
+                " has been reached [{}/{}].", documentReference, count, limit);
+        metrics.increment(LimitsMetrics.GROUP_REJECTIONS);
+        if (event instanceof CancelableEvent) {
+            CancelableEvent cancelableEvent = (CancelableEvent) event;
+            cancelableEvent.cancel(String.format(
+                    "The limit of number of users in the group [%s] has been reached [%d/%d].",
+                    documentReference, count, limit));
+        } else {
+            // Should never happen actually
+            logger.error("Failed to cancel the event [{}].", event);
         }
-        return members.size();
     }
 }
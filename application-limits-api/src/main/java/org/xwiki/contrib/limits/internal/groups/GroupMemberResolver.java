@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.text.StringUtils;
+
+/**
+ * Find out what some documents are (groups with their direct members, users, or nothing) with projection queries
+ * on the objects, instead of loading each document with all its objects. The documents of a wiki are resolved with
+ * two queries (one for the members of the groups, one for the users) for each batch of {@value #BATCH_SIZE}
+ * documents, so that the {@link GroupMembershipIndex} expands a nested group with a few queries per level.
+ * <p>
+ * When the queries cannot be executed (the store is not Hibernate, the schema is not the expected one), a warning is
+ * logged and the index loads the documents for the next {@value #RETRY_DELAY} milliseconds before the queries are tried
+ * again.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = GroupMemberResolver.class)
+@Singleton
+public class GroupMemberResolver
+{
+    /**
+     * Maximum number of documents in the IN clause of a query (some databases do not accept more than 1000).
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String MEMBERS_QUERY = "select obj.name, prop.value from BaseObject obj, StringProperty prop "
+        + "where obj.className = 'XWiki.XWikiGroups' and obj.name in (:names) and prop.id.id = obj.id "
+        + "and prop.id.name = 'member'";
+
+    private static final String USERS_QUERY = "select distinct obj.name from BaseObject obj "
+        + "where obj.className = 'XWiki.XWikiUsers' and obj.name in (:names)";
+
+    private static final String NAMES = "names";
+
+    /**
+     * Delay before the queries are tried again after a failure.
+     */
+    private static final long RETRY_DELAY = 10 * 60 * 1000L;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localEntityReferenceSerializer;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @Inject
+    private Logger logger;
+
+    private volatile long disabledUntil;
+
+    /**
+     * Resolve some documents.
+     *
+     * @param references the documents to resolve
+     * @param members filled with the direct members of the documents that are groups
+     * @param users filled with the documents that are users
+     * @return {@code false} if the documents could not be resolved with queries, in which case they must be loaded
+     */
+    public boolean resolve(Collection<DocumentReference> references, Map<DocumentReference,
+            Set<DocumentReference>> members, Set<DocumentReference> users)
+    {
+        if (System.currentTimeMillis() < disabledUntil) {
+            return false;
+        }
+
+        // The queries are executed on each wiki, with the local names of the documents
+        Map<String, Map<String, DocumentReference>> referencesPerWiki = new HashMap<>();
+        for (DocumentReference reference : references) {
+            referencesPerWiki.computeIfAbsent(reference.getWikiReference().getName(), wiki -> new HashMap<>())
+                    .put(localEntityReferenceSerializer.serialize(reference), reference);
+        }
+
+        try {
+            for (Map.Entry<String, Map<String, DocumentReference>> wikiReferences : referencesPerWiki.entrySet()) {
+                List<String> names = new ArrayList<>(wikiReferences.getValue().keySet());
+                for (int i = 0; i < names.size(); i += BATCH_SIZE) {
+                    List<String> batch = names.subList(i, Math.min(names.size(), i + BATCH_SIZE));
+                    resolveBatch(wikiReferences.getKey(), batch, wikiReferences.getValue(), members, users);
+                }
+            }
+            return true;
+        } catch (QueryException e) {
+            disabledUntil = System.currentTimeMillis() + RETRY_DELAY;
+            logger.warn("Failed to resolve the members of the groups with queries, the group documents will be "
+                    + "loaded for the next [{}] minutes. Root cause: [{}].", RETRY_DELAY / 60000, e.toString());
+            return false;
+        }
+    }
+
+    private void resolveBatch(String wiki, List<String> names, Map<String, DocumentReference> references,
+            Map<DocumentReference, Set<DocumentReference>> members, Set<DocumentReference> users) throws QueryException
+    {
+        List<Object[]> memberRows = queryManager.createQuery(MEMBERS_QUERY, Query.HQL).setWiki(wiki)
+                .bindValue(NAMES, names).execute();
+        for (Object[] row : memberRows) {
+            String member = (String) row[1];
+            if (StringUtils.isNotBlank(member)) {
+                DocumentReference group = references.get(row[0]);
+                // Resolved relatively to the group, as when the group document is loaded
+                members.computeIfAbsent(group, key -> new HashSet<>())
+                        .add(explicitDocumentReferenceResolver.resolve(member, group));
+            }
+        }
+
+        List<String> userNames = queryManager.createQuery(USERS_QUERY, Query.HQL).setWiki(wiki)
+                .bindValue(NAMES, names).execute();
+        for (String userName : userNames) {
+            users.add(references.get(userName));
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.configuration.GroupLimits;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.text.StringUtils;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Memoize the members of the groups, so that the groups do not need to be loaded and walked recursively each time
+ * their members are counted.
+ * <p>
+ * The index keeps, for every document that is a group or a member of a group, what it is (a user, a group holding
+ * some direct members, or nothing), plus the reverse edges (the groups directly containing each member) and the
+ * flattened set of users of the groups that have been asked. When a document changes, the index is updated from the
+ * saved document and the flattened sets of all the groups containing it, directly or not, are invalidated.
+ * <p>
+ * The documents that the index does not know yet are resolved with some queries by the {@link GroupMemberResolver},
+ * level by level, and only loaded one by one when these queries cannot be used.
+ * <p>
+ * The flattened sets are stored as bit sets of the identifiers given to the users by a {@link MemberDictionary}, so
+ * that expanding a group merges some words instead of hashing each user of each subgroup.
+ * <p>
+ * The limited groups are loaded in the index in the background (or as soon as the limited groups containing a document
+ * are asked, if they are not loaded yet), and the limited groups containing each nested document (its limited
+ * ancestors) are memoized until an edge of the index or the configuration changes, so that saving a subgroup finds the
+ * limits it affects with a lookup.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = GroupMembershipIndex.class)
+@Singleton
+public class GroupMembershipIndex
+{
+    private static final LocalDocumentReference USER_CLASS = new LocalDocumentReference("XWiki", "XWikiUsers");
+
+    private static final String GROUP_CLASS_SPACE = "XWiki";
+
+    private static final String GROUP_CLASS_NAME = "XWikiGroups";
+
+    /**
+     * What a document referenced by a group is.
+     */
+    private static final class Entry
+    {
+        private static final Entry NONE = new Entry(false, Collections.<DocumentReference>emptySet());
+
+        private static final Entry USER = new Entry(true, Collections.<DocumentReference>emptySet());
+
+        private final boolean user;
+
+        private final Set<DocumentReference> members;
+
+        private Entry(boolean user, Set<DocumentReference> members)
+        {
+            this.user = user;
+            this.members = members;
+        }
+    }
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private GroupMemberResolver groupMemberResolver;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<DocumentReference, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * For each member, the groups that directly contain it. Guarded by "this".
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> containers = new ConcurrentHashMap<>();
+
+    private final Map<DocumentReference, MemberSet> flattenedMembers = new ConcurrentHashMap<>();
+
+    /**
+     * Replaced when the index is cleared, so that the identifiers never grow with the deleted wikis.
+     */
+    private volatile MemberDictionary dictionary = new MemberDictionary();
+
+    /**
+     * Incremented on each change, so that a value computed while the index was changing is not stored.
+     */
+    private long version;
+
+    /**
+     * For each document nested in some limited groups, the limited groups that contain it, directly or not.
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> limitedAncestors = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented each time the edges of the index (or the limited groups) change, so that some limited ancestors
+     * computed meanwhile are not stored. Guarded by "this".
+     */
+    private long edgesVersion;
+
+    /**
+     * Incremented each time the index is cleared, so that the limited groups are loaded again. Guarded by "this".
+     */
+    private volatile long generation;
+
+    /**
+     * The version of the configuration for which the limited groups are loaded.
+     */
+    private volatile String limitedGroupsConfigurationVersion;
+
+    /**
+     * The generation of the index in which the limited groups are loaded.
+     */
+    private volatile long limitedGroupsGeneration = -1;
+
+    private volatile boolean limitedGroupsLoaded;
+
+    /**
+     * The wikis in which the groups limited in every wiki are loaded.
+     */
+    private final Set<String> limitedGroupsLoadedWikis = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The wikis in which the limited groups are being loaded in the background.
+     */
+    private final Set<String> preloadingWikis = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param reference the reference of a group (or a user)
+     * @return the users that the group contains, directly or through its subgroups (or the user itself)
+     * @throws XWikiException if a document cannot be loaded
+     */
+    public Set<DocumentReference> getMembers(DocumentReference reference) throws XWikiException
+    {
+        return getMemberSet(reference);
+    }
+
+    /**
+     * @param reference the reference of a group
+     * @return the users that the group contains, directly or through its subgroups, or {@code null} if they are not
+     * known yet by the index
+     */
+    public Set<DocumentReference> getCachedMembers(DocumentReference reference)
+    {
+        return flattenedMembers.get(reference);
+    }
+
+    /**
+     * Compute the users that a group document (that may not be saved yet) contains, using the index for its members.
+     *
+     * @param groupDocument the group document
+     * @return the users that the group contains, directly or through its subgroups
+     * @throws XWikiException if a document cannot be loaded
+     */
+    public Set<DocumentReference> getMembers(XWikiDocument groupDocument) throws XWikiException
+    {
+        Set<DocumentReference> directMembers = getDirectMembers(groupDocument);
+        prefetch(directMembers);
+        MemberDictionary currentDictionary = dictionary;
+        BitSet users = new BitSet();
+        Set<DocumentReference> visited = new HashSet<>();
+        visited.add(groupDocument.getDocumentReference());
+        for (DocumentReference member : directMembers) {
+            collectUsers(member, currentDictionary, users, visited);
+        }
+        return new MemberSet(currentDictionary, users);
+    }
+
+    /**
+     * Compute the users that some documents add to a saved group.
+     *
+     * @param references the documents (groups or users) that are added to the group
+     * @param groupReference the reference of the saved group
+     * @return the users that the given documents contain, directly or through their subgroups, and that the saved
+     * group does not contain yet
+     * @throws XWikiException if a document cannot be loaded
+     */
+    public Set<DocumentReference> getMembersNotIn(Collection<DocumentReference> references,
+            DocumentReference groupReference) throws XWikiException
+    {
+        MemberSet currentUsers = getMemberSet(groupReference);
+        // Resolve all the added documents at once instead of one by one
+        prefetch(references);
+        MemberDictionary currentDictionary = currentUsers.getDictionary();
+        BitSet users = new BitSet();
+        for (DocumentReference reference : references) {
+            collectUsers(reference, currentDictionary, users, new HashSet<DocumentReference>());
+        }
+        users.andNot(currentUsers.getIds());
+        return new MemberSet(currentDictionary, users);
+    }
+
+    /**
+     * Find the limited groups that contain a document through some other groups, typically to check their limits when
+     * a subgroup is saved. The first call loads the limited groups in the index, then the limited ancestors of each
+     * document are kept until the groups or the configuration change.
+     *
+     * @param reference the reference of a document (usually a group)
+     * @return the limited groups that contain the document, directly or not (excluding the document itself)
+     * @throws XWikiException if a limited group cannot be loaded
+     */
+    public Set<DocumentReference> getLimitedAncestors(DocumentReference reference) throws XWikiException
+    {
+        loadLimitedGroups(reference.getWikiReference().getName());
+
+        // Most of the documents are not contained by any group (read once, the index may be cleared meanwhile)
+        Set<DocumentReference> directContainers = containers.get(reference);
+        if (directContainers == null) {
+            return Collections.emptySet();
+        }
+
+        Set<DocumentReference> ancestors = limitedAncestors.get(reference);
+        if (ancestors == null) {
+            long startVersion = getEdgesVersion();
+            ancestors = Collections.unmodifiableSet(collectLimitedAncestors(reference, directContainers));
+            synchronized (this) {
+                if (edgesVersion == startVersion) {
+                    limitedAncestors.put(reference, ancestors);
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    /**
+     * Load the limited groups of a wiki in the index in the background, unless they are already loaded for the current
+     * configuration, so that the first save of a subgroup does not have to wait for them.
+     *
+     * @param wiki the wiki in which the groups limited in every wiki are loaded too
+     */
+    public void preloadLimitedGroups(String wiki)
+    {
+        if (!isLimitedGroupsLoaded(wiki) && preloadingWikis.add(wiki)) {
+            backgroundExecutor.submit(() -> {
+                try {
+                    loadLimitedGroups(wiki);
+                } catch (Exception e) {
+                    logger.warn("Failed to load the limited groups of the wiki [{}]. Root cause: [{}].", wiki,
+                            e.toString());
+                } finally {
+                    preloadingWikis.remove(wiki);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param document a document
+     * @return {@code true} if the document holds some group objects, whatever their members
+     */
+    public boolean isGroup(XWikiDocument document)
+    {
+        List<BaseObject> objects = document.getXObjects(getGroupClass(document.getDocumentReference()));
+        return objects != null && !objects.isEmpty();
+    }
+
+    /**
+     * Resolve in advance the given documents and, recursively, their members, so that they are known by the index
+     * without loading them one by one. The documents are resolved breadth-first, with a few queries for each level
+     * of nesting.
+     *
+     * @param references the documents (groups or users) that are going to be expanded
+     */
+    public void prefetch(Collection<DocumentReference> references)
+    {
+        long startVersion = getVersion();
+        Map<DocumentReference, Entry> resolved = new HashMap<>();
+        Set<DocumentReference> visited = new HashSet<>();
+        Collection<DocumentReference> level = references;
+        while (!level.isEmpty()) {
+            List<DocumentReference> unknown = new ArrayList<>();
+            List<DocumentReference> nextLevel = new ArrayList<>();
+            for (DocumentReference reference : level) {
+                // The users of the flattened groups are already known
+                if (visited.add(reference) && !flattenedMembers.containsKey(reference)) {
+                    Entry entry = entries.get(reference);
+                    if (entry == null) {
+                        unknown.add(reference);
+                    } else {
+                        nextLevel.addAll(entry.members);
+                    }
+                }
+            }
+
+            if (!unknown.isEmpty()) {
+                Map<DocumentReference, Set<DocumentReference>> members = new HashMap<>();
+                Set<DocumentReference> users = new HashSet<>();
+                if (!groupMemberResolver.resolve(unknown, members, users)) {
+                    // The documents will be loaded by the expansion
+                    return;
+                }
+                for (DocumentReference reference : unknown) {
+                    Entry entry = toEntry(members.get(reference), users.contains(reference));
+                    resolved.put(reference, entry);
+                    nextLevel.addAll(entry.members);
+                }
+            }
+            level = nextLevel;
+        }
+
+        synchronized (this) {
+            if (version == startVersion) {
+                for (Map.Entry<DocumentReference, Entry> entry : resolved.entrySet()) {
+                    if (!entries.containsKey(entry.getKey())) {
+                        entries.put(entry.getKey(), entry.getValue());
+                        addContainers(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param document a group document
+     * @return the members (users or groups) that the group document directly contains
+     */
+    public Set<DocumentReference> getDirectMembers(XWikiDocument document)
+    {
+        DocumentReference reference = document.getDocumentReference();
+        List<BaseObject> objects = document.getXObjects(getGroupClass(reference));
+        if (objects == null || objects.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        // Hashset is used to avoid counting twice the same member if multiple objects have the same value.
+        Set<DocumentReference> members = new HashSet<>();
+        for (BaseObject obj : objects) {
+            if (obj == null) {
+                continue;
+            }
+            String member = obj.getStringValue("member");
+            if (StringUtils.isNotBlank(member)) {
+                members.add(explicitDocumentReferenceResolver.resolve(member, reference));
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Take into account a document that has been saved or deleted.
+     *
+     * @param document the new version of the document (without any object if it has been deleted)
+     */
+    public void update(XWikiDocument document)
+    {
+        DocumentReference reference = document.getDocumentReference();
+        // Most of the documents are neither groups nor members of a group: nothing to do
+        if (!entries.containsKey(reference) && !containers.containsKey(reference)) {
+            return;
+        }
+
+        Entry entry = toEntry(document);
+        synchronized (this) {
+            ++version;
+            invalidate(reference);
+            Entry oldEntry = entries.put(reference, entry);
+            if (oldEntry != null) {
+                removeContainers(reference, oldEntry, entry);
+            }
+            addContainers(reference, entry);
+        }
+    }
+
+    /**
+     * Forget everything (used when a wiki is deleted).
+     */
+    public synchronized void clear()
+    {
+        ++version;
+        entries.clear();
+        containers.clear();
+        flattenedMembers.clear();
+        dictionary = new MemberDictionary();
+        ++edgesVersion;
+        ++generation;
+        limitedAncestors.clear();
+    }
+
+    private synchronized long getVersion()
+    {
+        return version;
+    }
+
+    private synchronized long getEdgesVersion()
+    {
+        return edgesVersion;
+    }
+
+    /**
+     * Make sure that the limited groups, and recursively their members, are known by the index: the edges of the
+     * index are then enough to find the limited groups containing a document.
+     */
+    private void loadLimitedGroups(String wiki) throws XWikiException
+    {
+        String configurationVersion = limitsConfiguration.getVersion();
+        if (limitedGroupsGeneration != generation
+            || !Objects.equals(configurationVersion, limitedGroupsConfigurationVersion)) {
+            synchronized (this) {
+                ++edgesVersion;
+                limitedAncestors.clear();
+                limitedGroupsLoaded = false;
+                limitedGroupsLoadedWikis.clear();
+                limitedGroupsConfigurationVersion = configurationVersion;
+                limitedGroupsGeneration = generation;
+            }
+        }
+
+        if (!limitedGroupsLoaded) {
+            for (DocumentReference group : limitsConfiguration.getGroupsLimits().keySet()) {
+                if (!GroupLimits.isAnyWiki(group)) {
+                    getMemberSet(group);
+                }
+            }
+            limitedGroupsLoaded = true;
+        }
+
+        if (!limitedGroupsLoadedWikis.contains(wiki)) {
+            for (DocumentReference group : limitsConfiguration.getGroupsLimits().keySet()) {
+                if (GroupLimits.isAnyWiki(group)) {
+                    getMemberSet(new DocumentReference(
+                            group.replaceParent(group.getWikiReference(), new WikiReference(wiki))));
+                }
+            }
+            limitedGroupsLoadedWikis.add(wiki);
+        }
+    }
+
+    private boolean isLimitedGroupsLoaded(String wiki)
+    {
+        return limitedGroupsLoaded && limitedGroupsGeneration == generation
+            && Objects.equals(limitsConfiguration.getVersion(), limitedGroupsConfigurationVersion)
+            && limitedGroupsLoadedWikis.contains(wiki);
+    }
+
+    private Set<DocumentReference> collectLimitedAncestors(DocumentReference reference,
+            Set<DocumentReference> directContainers)
+    {
+        Set<DocumentReference> ancestors = new HashSet<>();
+        Set<DocumentReference> visited = new HashSet<>();
+        visited.add(reference);
+        Deque<DocumentReference> queue = new ArrayDeque<>(directContainers);
+        while (!queue.isEmpty()) {
+            DocumentReference current = queue.poll();
+            if (visited.add(current)) {
+                if (limitsConfiguration.getGroupLimit(current) != null) {
+                    ancestors.add(current);
+                }
+                Set<DocumentReference> currentContainers = containers.get(current);
+                if (currentContainers != null) {
+                    queue.addAll(currentContainers);
+                }
+            }
+        }
+        return ancestors;
+    }
+
+    private MemberSet getMemberSet(DocumentReference reference) throws XWikiException
+    {
+        MemberSet members = flattenedMembers.get(reference);
+        if (members == null) {
+            long startVersion = getVersion();
+            long start = System.nanoTime();
+            prefetch(Collections.singleton(reference));
+            MemberDictionary currentDictionary = dictionary;
+            BitSet users = new BitSet();
+            collectUsers(reference, currentDictionary, users, new HashSet<DocumentReference>());
+            members = new MemberSet(currentDictionary, users);
+            metrics.record(LimitsMetrics.GROUP_EXPANSION, start);
+            synchronized (this) {
+                if (version == startVersion) {
+                    flattenedMembers.put(reference, members);
+                }
+            }
+        }
+        return members;
+    }
+
+    private void collectUsers(DocumentReference reference, MemberDictionary currentDictionary, BitSet users,
+            Set<DocumentReference> visited) throws XWikiException
+    {
+        // Avoid infinite loops when groups contain each other
+        if (!visited.add(reference)) {
+            return;
+        }
+
+        // The flattened sets computed with a previous dictionary (before the index was cleared) cannot be merged
+        MemberSet members = flattenedMembers.get(reference);
+        if (members != null && members.getDictionary() == currentDictionary) {
+            users.or(members.getIds());
+            return;
+        }
+
+        Entry entry = getEntry(reference);
+        if (entry.user) {
+            users.set(currentDictionary.getId(reference));
+        } else {
+            for (DocumentReference member : entry.members) {
+                collectUsers(member, currentDictionary, users, visited);
+            }
+        }
+    }
+
+    private Entry getEntry(DocumentReference reference) throws XWikiException
+    {
+        Entry entry = entries.get(reference);
+        if (entry == null) {
+            long startVersion = getVersion();
+            XWikiContext xcontext = xcontextProvider.get();
+            entry = toEntry(xcontext.getWiki().getDocument(reference, xcontext));
+            synchronized (this) {
+                if (version == startVersion && !entries.containsKey(reference)) {
+                    entries.put(reference, entry);
+                    addContainers(reference, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void addContainers(DocumentReference reference, Entry entry)
+    {
+        boolean added = false;
+        for (DocumentReference member : entry.members) {
+            Set<DocumentReference> memberContainers = containers.get(member);
+            if (memberContainers == null) {
+                memberContainers = ConcurrentHashMap.newKeySet();
+                containers.put(member, memberContainers);
+            }
+            added |= memberContainers.add(reference);
+        }
+        if (added) {
+            ++edgesVersion;
+            limitedAncestors.clear();
+        }
+    }
+
+    /**
+     * Remove the edges of the members that the old entry has but that the new entry does not have.
+     */
+    private void removeContainers(DocumentReference reference, Entry oldEntry, Entry entry)
+    {
+        boolean removed = false;
+        for (DocumentReference member : oldEntry.members) {
+            Set<DocumentReference> memberContainers = containers.get(member);
+            if (memberContainers != null && !entry.members.contains(member)) {
+                removed |= memberContainers.remove(reference);
+            }
+        }
+        if (removed) {
+            ++edgesVersion;
+            limitedAncestors.clear();
+        }
+    }
+
+    /**
+     * Remove the flattened members of the given document and of all the groups containing it, directly or not.
+     */
+    private void invalidate(DocumentReference reference)
+    {
+        Set<DocumentReference> visited = new HashSet<>();
+        Deque<DocumentReference> queue = new ArrayDeque<>();
+        queue.add(reference);
+        while (!queue.isEmpty()) {
+            DocumentReference current = queue.poll();
+            if (visited.add(current)) {
+                flattenedMembers.remove(current);
+                Set<DocumentReference> currentContainers = containers.get(current);
+                if (currentContainers != null) {
+                    queue.addAll(currentContainers);
+                }
+            }
+        }
+    }
+
+    private Entry toEntry(XWikiDocument document)
+    {
+        if (document == null || document.isNew()) {
+            return Entry.NONE;
+        }
+        return toEntry(getDirectMembers(document), document.getXObject(USER_CLASS) != null);
+    }
+
+    private Entry toEntry(Set<DocumentReference> members, boolean user)
+    {
+        if (members != null && !members.isEmpty()) {
+            return new Entry(false, members);
+        }
+        return user ? Entry.USER : Entry.NONE;
+    }
+
+    private static DocumentReference getGroupClass(DocumentReference reference)
+    {
+        return new DocumentReference(reference.getWikiReference().getName(), GROUP_CLASS_SPACE, GROUP_CLASS_NAME);
+    }
+}
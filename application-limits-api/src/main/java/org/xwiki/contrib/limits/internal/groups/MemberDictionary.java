@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Intern the references of the members of the groups as dense integer identifiers, so that the sets of members can
+ * be stored as bit sets and merged without allocating a reference for each member.
+ * <p>
+ * Identifiers are never reused: a dictionary only grows, and it is replaced by a new one when the whole index is
+ * cleared.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+final class MemberDictionary
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<DocumentReference, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * The references indexed by their identifiers. Written under the lock of the dictionary, before the identifier is
+     * published in {@link #ids}.
+     */
+    private volatile DocumentReference[] references = new DocumentReference[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * @param reference the reference of a member
+     * @return the identifier of the member, allocated on its first use
+     */
+    int getId(DocumentReference reference)
+    {
+        Integer id = ids.get(reference);
+        return id != null ? id : register(reference);
+    }
+
+    /**
+     * @param reference the reference of a member
+     * @return the identifier of the member, or -1 if it has never been used
+     */
+    int findId(DocumentReference reference)
+    {
+        Integer id = ids.get(reference);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @param id the identifier of a member
+     * @return the reference of the member
+     */
+    DocumentReference getReference(int id)
+    {
+        return references[id];
+    }
+
+    private synchronized int register(DocumentReference reference)
+    {
+        Integer id = ids.get(reference);
+        if (id != null) {
+            return id;
+        }
+
+        DocumentReference[] currentReferences = references;
+        if (size == currentReferences.length) {
+            currentReferences = Arrays.copyOf(currentReferences, size * 2);
+        }
+        currentReferences[size] = reference;
+        references = currentReferences;
+        ids.put(reference, size);
+        return size++;
+    }
+}
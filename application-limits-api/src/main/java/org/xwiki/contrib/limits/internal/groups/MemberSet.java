@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * An unmodifiable set of members backed by a bit set of the identifiers of a {@link MemberDictionary}. The size is
+ * computed once, and the references are only looked up when the set is iterated.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+final class MemberSet extends AbstractSet<DocumentReference>
+{
+    private final MemberDictionary dictionary;
+
+    private final BitSet ids;
+
+    private final int size;
+
+    /**
+     * @param dictionary the dictionary of the identifiers
+     * @param ids the identifiers of the members, that must not be modified anymore
+     */
+    MemberSet(MemberDictionary dictionary, BitSet ids)
+    {
+        this.dictionary = dictionary;
+        this.ids = ids;
+        this.size = ids.cardinality();
+    }
+
+    /**
+     * @return the dictionary of the identifiers of the members
+     */
+    MemberDictionary getDictionary()
+    {
+        return dictionary;
+    }
+
+    /**
+     * @return the identifiers of the members, that must not be modified
+     */
+    BitSet getIds()
+    {
+        return ids;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o)
+    {
+        if (!(o instanceof DocumentReference)) {
+            return false;
+        }
+        int id = dictionary.findId((DocumentReference) o);
+        return id >= 0 && ids.get(id);
+    }
+
+    @Override
+    public Iterator<DocumentReference> iterator()
+    {
+        return new Iterator<DocumentReference>()
+        {
+            private int next = ids.nextSetBit(0);
+
+            @Override
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            @Override
+            public DocumentReference next()
+            {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                DocumentReference reference = dictionary.getReference(next);
+                next = ids.nextSetBit(next + 1);
+                return reference;
+            }
+        };
+    }
+}
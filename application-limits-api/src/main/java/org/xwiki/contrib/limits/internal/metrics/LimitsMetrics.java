@@ -0,0 +1,248 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.usage.Usage;
+import org.xwiki.contrib.limits.internal.usage.UsageCollector;
+
+/**
+ * Measure what the enforcement of the limits costs: timers for the checks and the counts, counters for the rejected
+ * operations, and gauges for the usage of the limits. The metrics are exposed as JMX MBeans under the
+ * {@value #DOMAIN} domain, and in the Prometheus text format by the REST API.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = LimitsMetrics.class)
+@Singleton
+public class LimitsMetrics implements Initializable, Disposable
+{
+    /**
+     * Time spent to check the user limit when a user is created or activated.
+     */
+    public static final String USER_CHECK = "user_check";
+
+    /**
+     * Time spent to check a group limit when a limited group is saved.
+     */
+    public static final String GROUP_CHECK = "group_check";
+
+    /**
+     * Time spent to check the wiki limit when a wiki is created.
+     */
+    public static final String WIKI_CHECK = "wiki_check";
+
+    /**
+     * Time spent to count the users of the whole farm.
+     */
+    public static final String USER_COUNT = "user_count";
+
+    /**
+     * Time spent by the query counting the users of a wiki.
+     */
+    public static final String USER_COUNT_QUERY = "user_count_query";
+
+    /**
+     * Time spent to expand the members of a group (when they are not already known).
+     */
+    public static final String GROUP_EXPANSION = "group_expansion";
+
+    /**
+     * Time spent by the background verification of the soft limits.
+     */
+    public static final String SOFT_LIMIT_VERIFICATION = "soft_limit_verification";
+
+    /**
+     * Number of users that have not been created or activated because of the user limit.
+     */
+    public static final String USER_REJECTIONS = "user_rejections";
+
+    /**
+     * Number of group saves that have been cancelled because of a group limit.
+     */
+    public static final String GROUP_REJECTIONS = "group_rejections";
+
+    /**
+     * Number of wikis that have not been created because of the wiki limit.
+     */
+    public static final String WIKI_REJECTIONS = "wiki_rejections";
+
+    /**
+     * Number of users and groups that the verification of the soft limits has found over their limits.
+     */
+    public static final String SOFT_LIMIT_OVERSHOOTS = "soft_limit_overshoots";
+
+    /**
+     * JMX domain of the MBeans.
+     */
+    public static final String DOMAIN = "org.xwiki.contrib.limits";
+
+    private static final String PROMETHEUS_PREFIX = "xwiki_limits_";
+
+    private static final String TYPE = "# TYPE ";
+
+    private static final char NEW_LINE = '\n';
+
+    private static final char SPACE = ' ';
+
+    private static final double MILLIS_PER_SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    @Inject
+    private Provider<UsageCollector> usageCollectorProvider;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private UsageGauges usageGauges;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        usageGauges = new UsageGauges(this::getUsage, logger);
+        register(usageGauges, "type=Usage");
+    }
+
+    @Override
+    public void dispose()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to unregister the MBeans of the Limits Application. Root cause: [{}].",
+                    e.toString());
+        }
+    }
+
+    /**
+     * Record the time spent by an operation.
+     *
+     * @param timerName the name of the timer, one of the constants of this class
+     * @param startNanos the value of {@link System#nanoTime()} when the operation has started
+     */
+    public void record(String timerName, long startNanos)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        Timer timer = timers.get(timerName);
+        if (timer == null) {
+            timer = timers.computeIfAbsent(timerName, name -> register(new Timer(), "type=Timer,name=" + name));
+        }
+        timer.record(nanos);
+    }
+
+    /**
+     * Count one more event.
+     *
+     * @param counterName the name of the counter, one of the constants of this class
+     */
+    public void increment(String counterName)
+    {
+        Counter counter = counters.get(counterName);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(counterName,
+                name -> register(new Counter(), "type=Counter,name=" + name));
+        }
+        counter.increment();
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format
+     */
+    public String toPrometheus()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            String name = PROMETHEUS_PREFIX + entry.getKey() + "_seconds";
+            Timer timer = entry.getValue();
+            builder.append(TYPE).append(name).append(" summary").append(NEW_LINE);
+            builder.append(name).append("_count ").append(timer.getCount()).append(NEW_LINE);
+            builder.append(name).append("_sum ").append(timer.getTotalTime() / MILLIS_PER_SECOND).append(NEW_LINE);
+        }
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            String name = PROMETHEUS_PREFIX + entry.getKey() + "_total";
+            builder.append(TYPE).append(name).append(" counter").append(NEW_LINE);
+            builder.append(name).append(SPACE).append(entry.getValue().getCount()).append(NEW_LINE);
+        }
+        appendGauge(builder, "users", usageGauges.getUserCount());
+        appendGauge(builder, "users_limit", usageGauges.getUserLimit());
+        appendGauge(builder, "wikis", usageGauges.getWikiCount());
+        appendGauge(builder, "wikis_limit", usageGauges.getWikiLimit());
+        return builder.toString();
+    }
+
+    private Usage getUsage() throws Exception
+    {
+        // The provider avoids a dependency cycle between the counters, which are measured, and the usage collector,
+        // which reads them
+        Callable<Usage> task = () -> usageCollectorProvider.get().getUsage();
+        // The MBeans are read from JMX threads, which have no execution context
+        return execution.getContext() != null ? task.call() : backgroundExecutor.withContext(task).call();
+    }
+
+    private static void appendGauge(StringBuilder builder, String gaugeName, long value)
+    {
+        String name = PROMETHEUS_PREFIX + gaugeName;
+        builder.append(TYPE).append(name).append(" gauge").append(NEW_LINE);
+        builder.append(name).append(SPACE).append(value).append(NEW_LINE);
+    }
+
+    private <T> T register(T mbean, String properties)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                new ObjectName(DOMAIN + ':' + properties));
+        } catch (Exception e) {
+            // The metric is still available through the REST API
+            logger.warn("Failed to register the MBean [{}]. Root cause: [{}].", properties, e.toString());
+        }
+        return mbean;
+    }
+}
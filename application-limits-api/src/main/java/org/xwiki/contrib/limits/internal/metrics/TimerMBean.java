@@ -0,0 +1,49 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.metrics;
+
+/**
+ * JMX view of a {@link Timer}.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+public interface TimerMBean
+{
+    /**
+     * @return the number of recorded operations
+     */
+    long getCount();
+
+    /**
+     * @return the total time of the recorded operations, in milliseconds
+     */
+    double getTotalTime();
+
+    /**
+     * @return the mean time of the recorded operations, in milliseconds
+     */
+    double getMeanTime();
+
+    /**
+     * @return the time of the longest recorded operation, in milliseconds
+     */
+    double getMaxTime();
+}
@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.metrics;
+
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.xwiki.contrib.limits.internal.usage.LimitUsage;
+import org.xwiki.contrib.limits.internal.usage.Usage;
+
+/**
+ * Expose the usage of the limits, as collected by the {@link org.xwiki.contrib.limits.internal.usage.UsageCollector}
+ * (so reading the gauges never counts all the users).
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+public class UsageGauges implements UsageGaugesMBean
+{
+    private final Callable<Usage> usageSupplier;
+
+    private final Logger logger;
+
+    /**
+     * @param usageSupplier how to get the usage of the limits
+     * @param logger the logger used to report the errors
+     */
+    public UsageGauges(Callable<Usage> usageSupplier, Logger logger)
+    {
+        this.usageSupplier = usageSupplier;
+        this.logger = logger;
+    }
+
+    @Override
+    public long getUserCount()
+    {
+        Usage usage = getUsage();
+        return usage != null ? getCount(usage.getUsers()) : -1;
+    }
+
+    @Override
+    public long getUserLimit()
+    {
+        Usage usage = getUsage();
+        return usage != null ? getLimit(usage.getUsers()) : -1;
+    }
+
+    @Override
+    public long getWikiCount()
+    {
+        Usage usage = getUsage();
+        return usage != null ? getCount(usage.getWikis()) : -1;
+    }
+
+    @Override
+    public long getWikiLimit()
+    {
+        Usage usage = getUsage();
+        return usage != null ? getLimit(usage.getWikis()) : -1;
+    }
+
+    private Usage getUsage()
+    {
+        try {
+            return usageSupplier.call();
+        } catch (Exception e) {
+            logger.warn("Failed to get the usage of the limits. Root cause: [{}].", e.toString());
+            return null;
+        }
+    }
+
+    private static long getCount(LimitUsage limitUsage)
+    {
+        return limitUsage.getCount() != null ? limitUsage.getCount().longValue() : -1;
+    }
+
+    private static long getLimit(LimitUsage limitUsage)
+    {
+        return limitUsage.getLimit().longValue();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.hibernate.Session;
+import org.xwiki.component.annotation.Component;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * Keep the quotas in a table of the main wiki database, so that all the XWiki instances of a cluster share them. Each
+ * reservation is a single conditional {@code UPDATE}, which the database executes atomically.
+ * <p>
+ * The units leased by each instance are kept in the same table, in rows named after the quota and the instance.
+ * <p>
+ * The table is created the first time this store is used rather than by a data migration, since the migrations of an
+ * extension only run when XWiki starts, after the extension has been installed. When several instances create it in
+ * the same time, the instances that fail to create it use the table created by the other one.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named(DatabaseQuotaStore.HINT)
+@Singleton
+public class DatabaseQuotaStore implements QuotaStore
+{
+    /**
+     * Hint of this component, and name of this store in the configuration.
+     */
+    public static final String HINT = "database";
+
+    private static final String TABLE = "xwikilimitsquota";
+
+    private static final String NAME = "name";
+
+    private static final String COUNT = "count";
+
+    private static final String USED = "used";
+
+    private static final String SELECT_USED = "SELECT XWLQ_USED FROM " + TABLE + " WHERE XWLQ_NAME = :name";
+
+    /**
+     * Number of times a reset is tried when the quota is reserved concurrently.
+     */
+    private static final int MAX_RESET_ATTEMPTS = 10;
+
+    /**
+     * Separates the name of a quota and the identifier of an instance in the name of the row of a lease.
+     */
+    private static final String LEASE_SEPARATOR = "#";
+
+    @Inject
+    @Named("hibernate")
+    private XWikiStoreInterface store;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    private volatile boolean tableCreated;
+
+    @Override
+    public void initialize(String quota, long used) throws Exception
+    {
+        createTable();
+        boolean exists = execute(false, session -> session.createSQLQuery(SELECT_USED).setParameter(NAME, quota)
+                .uniqueResult() != null);
+        if (!exists) {
+            try {
+                execute(true, session -> session.createSQLQuery(
+                        "INSERT INTO " + TABLE + " (XWLQ_NAME, XWLQ_USED) VALUES (:name, :used)")
+                        .setParameter(NAME, quota).setParameter(USED, used).executeUpdate());
+            } catch (Exception e) {
+                // Another instance of the cluster may have created it in the same time, which is fine
+                if (!execute(false, session -> session.createSQLQuery(SELECT_USED).setParameter(NAME, quota)
+                        .uniqueResult() != null)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(String quota, long count, long limit) throws Exception
+    {
+        return execute(true, session -> session.createSQLQuery("UPDATE " + TABLE
+                + " SET XWLQ_USED = XWLQ_USED + :count WHERE XWLQ_NAME = :name AND XWLQ_USED + :count <= :limit")
+                .setParameter(NAME, quota).setParameter(COUNT, count).setParameter("limit", limit)
+                .executeUpdate() > 0);
+    }
+
+    @Override
+    public void release(String quota, long count) throws Exception
+    {
+        execute(true, session -> session.createSQLQuery("UPDATE " + TABLE
+                + " SET XWLQ_USED = XWLQ_USED - :count WHERE XWLQ_NAME = :name AND XWLQ_USED >= :count")
+                .setParameter(NAME, quota).setParameter(COUNT, count).executeUpdate());
+    }
+
+    @Override
+    public void reset(String quota, long used) throws Exception
+    {
+        // Each attempt is a new transaction, so that it reads the value written by the concurrent reservations
+        for (int attempt = 0; attempt < MAX_RESET_ATTEMPTS; attempt++) {
+            if (execute(true, session -> tryReset(session, quota, used))) {
+                return;
+            }
+        }
+        throw new Exception(String.format("Failed to reset the quota [%s]: it is reserved concurrently.", quota));
+    }
+
+    /**
+     * Apply the difference between the exact usage and the value read, unless the value has changed meanwhile.
+     *
+     * @return {@code false} if the quota has been reserved or given back concurrently
+     */
+    private boolean tryReset(Session session, String quota, long used)
+    {
+        Number current = (Number) session.createSQLQuery(SELECT_USED).setParameter(NAME, quota).uniqueResult();
+        if (current == null) {
+            return true;
+        }
+
+        // The prefix is checked again since '_' is a wildcard for LIKE
+        String leasePrefix = quota + LEASE_SEPARATOR;
+        List<Object[]> leases = session.createSQLQuery(
+                "SELECT XWLQ_NAME, XWLQ_USED FROM " + TABLE + " WHERE XWLQ_NAME LIKE :prefix")
+                .setParameter("prefix", leasePrefix + '%').list();
+        long leased = 0;
+        for (Object[] lease : leases) {
+            if (((String) lease[0]).startsWith(leasePrefix)) {
+                leased += ((Number) lease[1]).longValue();
+            }
+        }
+
+        long delta = used + leased - current.longValue();
+        return delta == 0 || session.createSQLQuery("UPDATE " + TABLE
+                + " SET XWLQ_USED = XWLQ_USED + :count WHERE XWLQ_NAME = :name AND XWLQ_USED = :used")
+                .setParameter(NAME, quota).setParameter(COUNT, delta).setParameter(USED, current.longValue())
+                .executeUpdate() > 0;
+    }
+
+    @Override
+    public void setLeased(String quota, String instance, long leased) throws Exception
+    {
+        createTable();
+        String name = quota + LEASE_SEPARATOR + instance;
+        boolean updated = execute(true, session -> session.createSQLQuery("UPDATE " + TABLE
+                + " SET XWLQ_USED = :used WHERE XWLQ_NAME = :name")
+                .setParameter(NAME, name).setParameter(USED, leased).executeUpdate() > 0);
+        if (!updated) {
+            // Each instance only writes its own rows, so the row cannot be created in the same time
+            execute(true, session -> session.createSQLQuery(
+                    "INSERT INTO " + TABLE + " (XWLQ_NAME, XWLQ_USED) VALUES (:name, :used)")
+                    .setParameter(NAME, name).setParameter(USED, leased).executeUpdate());
+        }
+    }
+
+    @Override
+    public void clearLeased(String quota, String instance) throws Exception
+    {
+        createTable();
+        String name = quota + LEASE_SEPARATOR + instance;
+        // In the same transaction, so that the units are not given back twice by concurrent calls
+        execute(true, session -> {
+            Number leased = (Number) session.createSQLQuery(SELECT_USED).setParameter(NAME, name).uniqueResult();
+            if (leased != null && leased.longValue() > 0) {
+                session.createSQLQuery("UPDATE " + TABLE
+                        + " SET XWLQ_USED = XWLQ_USED - :count WHERE XWLQ_NAME = :name AND XWLQ_USED >= :count")
+                        .setParameter(NAME, quota).setParameter(COUNT, leased.longValue()).executeUpdate();
+                session.createSQLQuery("UPDATE " + TABLE + " SET XWLQ_USED = 0 WHERE XWLQ_NAME = :name")
+                        .setParameter(NAME, name).executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    private void createTable() throws Exception
+    {
+        if (!tableCreated) {
+            try {
+                countRows();
+            } catch (Exception missingTableException) {
+                try {
+                    // NUMERIC is used instead of BIGINT because it is supported by all the databases
+                    execute(true, session -> session.createSQLQuery("CREATE TABLE " + TABLE
+                            + " (XWLQ_NAME VARCHAR(255) NOT NULL PRIMARY KEY, XWLQ_USED NUMERIC(19, 0) NOT NULL)")
+                            .executeUpdate());
+                } catch (Exception e) {
+                    // Another instance of the cluster may have created it in the same time, which is fine
+                    try {
+                        countRows();
+                    } catch (Exception stillMissingException) {
+                        e.addSuppressed(missingTableException);
+                        throw new Exception(String.format("Failed to create the table [%s].", TABLE), e);
+                    }
+                }
+            }
+            tableCreated = true;
+        }
+    }
+
+    private void countRows() throws Exception
+    {
+        execute(false, session -> session.createSQLQuery("SELECT COUNT(*) FROM " + TABLE).uniqueResult());
+    }
+
+    /**
+     * Execute a callback on the database of the main wiki.
+     */
+    private <T> T execute(boolean write, HibernateCallback<T> callback) throws Exception
+    {
+        if (!(store instanceof XWikiHibernateBaseStore)) {
+            throw new Exception("The quotas can only be stored in the database when the store is Hibernate.");
+        }
+        XWikiHibernateBaseStore hibernateStore = (XWikiHibernateBaseStore) store;
+
+        XWikiContext xcontext = xcontextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+        try {
+            xcontext.setWikiId(xcontext.getMainXWiki());
+            return write ? hibernateStore.executeWrite(xcontext, callback)
+                    : hibernateStore.executeRead(xcontext, callback);
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Keep the quotas in memory. Enough when only one XWiki instance uses the database.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named(MemoryQuotaStore.HINT)
+@Singleton
+public class MemoryQuotaStore implements QuotaStore
+{
+    /**
+     * Hint of this component, and name of this store in the configuration.
+     */
+    public static final String HINT = "memory";
+
+    private final Map<String, AtomicLong> quotas = new ConcurrentHashMap<>();
+
+    /**
+     * Units leased by each instance, for each quota.
+     */
+    private final Map<String, Map<String, Long>> leases = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize(String quota, long used)
+    {
+        quotas.putIfAbsent(quota, new AtomicLong(used));
+    }
+
+    @Override
+    public boolean tryAcquire(String quota, long count, long limit)
+    {
+        AtomicLong used = quotas.computeIfAbsent(quota, name -> new AtomicLong());
+        long current;
+        do {
+            current = used.get();
+            if (current + count > limit) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + count));
+        return true;
+    }
+
+    @Override
+    public void release(String quota, long count)
+    {
+        AtomicLong used = quotas.get(quota);
+        if (used != null) {
+            long current;
+            do {
+                current = used.get();
+            } while (!used.compareAndSet(current, Math.max(0, current - count)));
+        }
+    }
+
+    @Override
+    public void reset(String quota, long used)
+    {
+        AtomicLong current = quotas.get(quota);
+        if (current != null) {
+            long leased = 0;
+            for (long units : leases.getOrDefault(quota, Collections.emptyMap()).values()) {
+                leased += units;
+            }
+            current.set(used + leased);
+        }
+    }
+
+    @Override
+    public void setLeased(String quota, String instance, long leased)
+    {
+        leases.computeIfAbsent(quota, name -> new ConcurrentHashMap<>()).put(instance, leased);
+    }
+
+    @Override
+    public void clearLeased(String quota, String instance)
+    {
+        Map<String, Long> quotaLeases = leases.get(quota);
+        Long leased = quotaLeases != null ? quotaLeases.remove(instance) : null;
+        if (leased != null && leased > 0) {
+            release(quota, leased);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Keep track of the units reserved for an entity that is not created yet (a user being saved, a wiki being created).
+ * The units are reserved before the creation, which can still be cancelled or fail: unless the creation is confirmed
+ * within {@value #EXPIRATION} milliseconds, the units are given back to their quotas.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = PendingReservations.class)
+@Singleton
+public class PendingReservations implements Initializable
+{
+    /**
+     * Time after which a reservation that has not been confirmed is given back, in milliseconds.
+     */
+    static final long EXPIRATION = 10 * 60 * 1000L;
+
+    /**
+     * Time between two checks of the expired reservations, in minutes.
+     */
+    private static final long CHECK_PERIOD = 1;
+
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    private final Map<EntityReference, Reservation> reservations = new ConcurrentHashMap<>();
+
+    /**
+     * The units reserved for an entity. Immutable, so that an expired reservation is only removed if it has not been
+     * replaced meanwhile.
+     */
+    private static final class Reservation
+    {
+        private final List<String> quotas;
+
+        private final long time;
+
+        Reservation(List<String> quotas, long time)
+        {
+            this.quotas = quotas;
+            this.time = time;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        backgroundExecutor.scheduleWithFixedDelay(() -> releaseExpired(System.currentTimeMillis()), CHECK_PERIOD,
+                CHECK_PERIOD, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Record the units reserved for an entity that is about to be created.
+     *
+     * @param entity the entity that is about to be created
+     * @param quotas the quotas of which one unit has been reserved for the entity
+     */
+    public void add(EntityReference entity, List<String> quotas)
+    {
+        reservations.compute(entity, (key, reservation) -> {
+            // The same entity may be saved twice before the first save is done
+            List<String> allQuotas = new ArrayList<>(quotas);
+            if (reservation != null) {
+                allQuotas.addAll(reservation.quotas);
+            }
+            return new Reservation(allQuotas, System.currentTimeMillis());
+        });
+        for (String quota : quotas) {
+            quotaManager.updatePending(quota, 1);
+        }
+    }
+
+    /**
+     * Confirm that an entity has been created, so that the units reserved for it are not given back.
+     *
+     * @param entity the entity that has been created
+     */
+    public void confirm(EntityReference entity)
+    {
+        Reservation reservation = reservations.remove(entity);
+        if (reservation != null) {
+            for (String quota : reservation.quotas) {
+                quotaManager.updatePending(quota, -1);
+            }
+        }
+    }
+
+    /**
+     * Give back the units of the reservations that have not been confirmed in time. Package-private to allow the test
+     * class to expire the reservations without waiting.
+     *
+     * @param now the current time, in milliseconds
+     */
+    void releaseExpired(long now)
+    {
+        Iterator<Map.Entry<EntityReference, Reservation>> iterator = reservations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<EntityReference, Reservation> entry = iterator.next();
+            // Removed only if it has not been replaced meanwhile
+            if (now - entry.getValue().time >= EXPIRATION && reservations.remove(entry.getKey(), entry.getValue())) {
+                for (String quota : entry.getValue().quotas) {
+                    quotaManager.updatePending(quota, -1);
+                    quotaManager.release(quota);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.environment.Environment;
+
+/**
+ * Check the limits and reserve the new items atomically, using the {@link QuotaStore} selected by the configuration.
+ * <p>
+ * To avoid a round-trip to a remote store for each reservation, this instance can lease a block of units from the
+ * store (the "lease size" of the configuration) and consume them locally. The leased units are counted as used by
+ * the store, so a limit cannot be exceeded because of the leases. When the limit is close, units are reserved one by
+ * one. The units leased by each instance are recorded in the store, with the units it has reserved for the entities
+ * not created yet, so that the periodic reset of the quotas with the exact counts keeps them. The quotas are only
+ * reset with the count of this instance, which can lag behind the other instances, when they are known to be wrong:
+ * a quota that is shared by the cluster is not reset each time an instance starts.
+ * <p>
+ * When the configuration selects another store, the quotas are initialized again in the new store and the units
+ * leased from the previous one are forgotten.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = QuotaManager.class)
+@Singleton
+public class QuotaManager implements Initializable, Disposable
+{
+    /**
+     * Name of the quota of users.
+     */
+    public static final String USERS = "users";
+
+    /**
+     * Prefix of the name of the quota of users of a given wiki.
+     *
+     * @since 2.2
+     */
+    public static final String WIKI_USERS_PREFIX = "users@";
+
+    /**
+     * Name of the quota of wikis.
+     */
+    public static final String WIKIS = "wikis";
+
+    /**
+     * Time between two resets of the quotas with the exact counts, in minutes.
+     */
+    private static final long RECONCILIATION_PERIOD = 60;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    @Named(MemoryQuotaStore.HINT)
+    private QuotaStore memoryStore;
+
+    @Inject
+    @Named(DatabaseQuotaStore.HINT)
+    private QuotaStore databaseStore;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Units leased from the store but not consumed yet, for each quota.
+     */
+    private final Map<String, AtomicInteger> leasedUnits = new ConcurrentHashMap<>();
+
+    /**
+     * Limit of each quota when its units have been leased, to give them back if the limit is lowered.
+     */
+    private final Map<String, Long> leaseLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Units reserved for the entities that are not created yet, which the exact counts do not include, for each
+     * quota.
+     */
+    private final Map<String, AtomicInteger> pendingUnits = new ConcurrentHashMap<>();
+
+    /**
+     * How to count the exact usage of each quota used by this instance.
+     */
+    private final Map<String, Callable<Long>> usageCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Quotas initialized by this instance in {@link #currentStore}.
+     */
+    private final Set<String> initializedQuotas = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Quotas to reset with the exact count when they are initialized, because some items have been created or removed
+     * without updating them.
+     */
+    private final Set<String> staleQuotas = ConcurrentHashMap.newKeySet();
+
+    private volatile QuotaStore currentStore;
+
+    /**
+     * Identifier of this instance in the store, kept across restarts so that a restarted instance replaces the leases
+     * it had recorded before.
+     */
+    private String instanceId;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        instanceId = loadInstanceId();
+        backgroundExecutor.scheduleWithFixedDelay(this::reconcile, RECONCILIATION_PERIOD, RECONCILIATION_PERIOD,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * Reserve one unit of a quota if the limit allows it.
+     *
+     * @param quota the name of the quota
+     * @param limit the maximum usage of the quota
+     * @param usageCounter how to count the exact usage of the quota, used the first time the quota is reserved
+     * @return {@code true} if the unit has been reserved, {@code false} if the limit has been reached
+     * @throws Exception if the store cannot be reached or the usage cannot be counted
+     */
+    public boolean tryAcquire(String quota, long limit, Callable<Long> usageCounter) throws Exception
+    {
+        return tryAcquire(quota, 1, limit, usageCounter);
+    }
+
+    /**
+     * Reserve several units of a quota at once, if the limit allows all of them (nothing is reserved otherwise).
+     *
+     * @param quota the name of the quota
+     * @param count the number of units to reserve
+     * @param limit the maximum usage of the quota
+     * @param usageCounter how to count the exact usage of the quota, used the first time the quota is reserved
+     * @return {@code true} if the units have been reserved, {@code false} if they would exceed the limit
+     * @throws Exception if the store cannot be reached or the usage cannot be counted
+     * @since 2.2
+     */
+    public boolean tryAcquire(String quota, int count, long limit, Callable<Long> usageCounter) throws Exception
+    {
+        // Selected first, since the units leased from a previous store must not be consumed
+        QuotaStore store = getStore();
+        AtomicInteger units = getLeasedUnits(quota);
+        Long leaseLimit = leaseLimits.get(quota);
+        if (leaseLimit != null && limit < leaseLimit) {
+            // The configuration has lowered the limit, which the units leased before may exceed: they are given back
+            // and reserved again against the new limit
+            giveBackLeasedUnits(store, quota);
+        }
+        // Fast path: some units that have already been leased
+        int available;
+        while ((available = units.get()) >= count) {
+            if (units.compareAndSet(available, available - count)) {
+                return true;
+            }
+        }
+
+        usageCounters.put(quota, usageCounter);
+        if (!initializedQuotas.contains(quota)) {
+            initialize(store, quota, usageCounter.call());
+        }
+
+        int leaseSize = limitsConfiguration.getQuotaLeaseSize();
+        if (count < leaseSize && store.tryAcquire(quota, leaseSize, limit)) {
+            leaseLimits.put(quota, limit);
+            units.addAndGet(leaseSize - count);
+            recordLeasedUnits(store, quota);
+            return true;
+        }
+        // Close to the limit, reserve only what is needed
+        return store.tryAcquire(quota, count, limit);
+    }
+
+    /**
+     * Give back one unit of a quota (when an item is deleted, or the creation of a reserved item has failed). The
+     * unit is kept locally for the next reservation.
+     *
+     * @param quota the name of the quota
+     */
+    public void release(String quota)
+    {
+        release(quota, 1);
+    }
+
+    /**
+     * Give back several units of a quota. The units are kept locally for the next reservations, up to the lease size,
+     * and the other ones are given back to the store.
+     *
+     * @param quota the name of the quota
+     * @param count the number of units to give back
+     * @since 2.2
+     */
+    public void release(String quota, int count)
+    {
+        QuotaStore store = getStore();
+        int kept = 0;
+        if (initializedQuotas.contains(quota)) {
+            AtomicInteger units = getLeasedUnits(quota);
+            int leaseSize = limitsConfiguration.getQuotaLeaseSize();
+            int current;
+            do {
+                current = units.get();
+                kept = Math.max(0, Math.min(count, leaseSize - current));
+            } while (kept > 0 && !units.compareAndSet(current, current + kept));
+            if (kept > 0) {
+                recordLeasedUnits(store, quota);
+            }
+        }
+
+        if (count > kept) {
+            try {
+                store.release(quota, count - kept);
+            } catch (Exception e) {
+                // The quota will be corrected by the next reset
+                logger.warn("Failed to give back [{}] units of the quota [{}]. Root cause: [{}].", count - kept,
+                        quota, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Correct the usage of a quota with its exact count (after some items have been created without reserving them).
+     *
+     * @param quota the name of the quota
+     * @param used the exact usage of the quota
+     * @throws Exception if the store cannot be reached
+     * @since 2.2
+     */
+    public void reset(String quota, long used) throws Exception
+    {
+        QuotaStore store = getStore();
+        // The units leased by the instances are not used yet, but they are still reserved: the store adds them, so
+        // the units leased by this instance are recorded first
+        reset(store, quota, used);
+    }
+
+    /**
+     * Take into account the units of a quota reserved for entities that are not created yet (see
+     * {@link PendingReservations}). They are recorded in the store with the units leased by this instance, since the
+     * exact counts do not include them yet.
+     *
+     * @param quota the name of the quota
+     * @param delta the number of units reserved, or the opposite of the number of units that are not pending anymore
+     *            (the entity has been created, or the reservation has expired)
+     * @since 2.2
+     */
+    public void updatePending(String quota, int delta)
+    {
+        AtomicInteger units = pendingUnits.get(quota);
+        if (units == null) {
+            pendingUnits.putIfAbsent(quota, new AtomicInteger());
+            units = pendingUnits.get(quota);
+        }
+        units.addAndGet(delta);
+        if (initializedQuotas.contains(quota)) {
+            recordLeasedUnits(getStore(), quota);
+        }
+    }
+
+    /**
+     * Forget the usage of a quota known by this instance, after some items have been created or removed without
+     * reserving or giving back their units (while the limit was enforced in the soft mode). The quota is initialized
+     * again with the exact count on the next reservation.
+     *
+     * @param quota the name of the quota
+     * @since 2.2
+     */
+    public void invalidate(String quota)
+    {
+        staleQuotas.add(quota);
+        if (initializedQuotas.remove(quota)) {
+            // The units leased from the store are given back by the next initialization
+            AtomicInteger units = leasedUnits.get(quota);
+            if (units != null) {
+                units.set(0);
+            }
+        }
+    }
+
+    /**
+     * Forget a quota that is not needed anymore (the quota of the users of a deleted wiki), with the units leased for
+     * it by this instance.
+     *
+     * @param quota the name of the quota
+     * @since 2.2
+     */
+    public void remove(String quota)
+    {
+        usageCounters.remove(quota);
+        initializedQuotas.remove(quota);
+        staleQuotas.remove(quota);
+        leasedUnits.remove(quota);
+        leaseLimits.remove(quota);
+        pendingUnits.remove(quota);
+        try {
+            QuotaStore store = getStore();
+            store.setLeased(quota, instanceId, 0);
+            store.reset(quota, 0);
+        } catch (Exception e) {
+            logger.warn("Failed to reset the quota [{}]. Root cause: [{}].", quota, e.toString());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        // Give back the units that have not been consumed
+        QuotaStore store = getStore();
+        for (Map.Entry<String, AtomicInteger> entry : leasedUnits.entrySet()) {
+            int units = entry.getValue().getAndSet(0);
+            if (units > 0) {
+                try {
+                    store.release(entry.getKey(), units);
+                    store.setLeased(entry.getKey(), instanceId, 0);
+                } catch (Exception e) {
+                    logger.warn("Failed to give back [{}] units of the quota [{}]. Root cause: [{}].", units,
+                            entry.getKey(), e.toString());
+                }
+            }
+        }
+    }
+
+    private void initialize(QuotaStore store, String quota, long used) throws Exception
+    {
+        // Only created with the count of this instance if it does not exist: the other instances keep it up to date
+        store.initialize(quota, used);
+        // The units this instance had leased (before a restart, or before the quota was invalidated) are lost
+        store.clearLeased(quota, instanceId);
+        if (staleQuotas.remove(quota)) {
+            reset(store, quota, used);
+        }
+        initializedQuotas.add(quota);
+    }
+
+    private void reset(QuotaStore store, String quota, long used) throws Exception
+    {
+        // The units leased by the instances are not used yet, but they are still reserved: the store adds them, so
+        // the units leased by this instance are recorded first
+        AtomicInteger units = getLeasedUnits(quota);
+        synchronized (units) {
+            store.setLeased(quota, instanceId, getReservedUnits(quota, units));
+        }
+        store.reset(quota, used);
+    }
+
+    private void giveBackLeasedUnits(QuotaStore store, String quota)
+    {
+        leaseLimits.remove(quota);
+        int units = getLeasedUnits(quota).getAndSet(0);
+        if (units > 0) {
+            try {
+                store.release(quota, units);
+            } catch (Exception e) {
+                // The quota will be corrected by the next reset
+                logger.warn("Failed to give back [{}] units of the quota [{}]. Root cause: [{}].", units, quota,
+                        e.toString());
+            }
+            recordLeasedUnits(store, quota);
+        }
+    }
+
+    private void recordLeasedUnits(QuotaStore store, String quota)
+    {
+        AtomicInteger units = getLeasedUnits(quota);
+        try {
+            // Synchronized so that the records of concurrent updates are not stored in the wrong order
+            synchronized (units) {
+                store.setLeased(quota, instanceId, getReservedUnits(quota, units));
+            }
+        } catch (Exception e) {
+            // The leases will be recorded by the next reset
+            logger.warn("Failed to record the units of the quota [{}] leased by this instance. Root cause: [{}].",
+                    quota, e.toString());
+        }
+    }
+
+    private void reconcile()
+    {
+        for (Map.Entry<String, Callable<Long>> entry : usageCounters.entrySet()) {
+            if (!initializedQuotas.contains(entry.getKey())) {
+                // Initialized with the exact count by the next reservation
+                continue;
+            }
+            try {
+                reset(entry.getKey(), entry.getValue().call());
+            } catch (Exception e) {
+                logger.warn("Failed to reset the quota [{}] with the exact count. Root cause: [{}].",
+                        entry.getKey(), e.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the units of a quota reserved by this instance but not counted yet: the leased units, and the units
+     *         reserved for the entities that are not created yet
+     */
+    private long getReservedUnits(String quota, AtomicInteger units)
+    {
+        AtomicInteger pending = pendingUnits.get(quota);
+        return units.get() + (pending != null ? Math.max(0, pending.get()) : 0);
+    }
+
+    private AtomicInteger getLeasedUnits(String quota)
+    {
+        AtomicInteger units = leasedUnits.get(quota);
+        if (units == null) {
+            leasedUnits.putIfAbsent(quota, new AtomicInteger());
+            units = leasedUnits.get(quota);
+        }
+        return units;
+    }
+
+    private QuotaStore getStore()
+    {
+        QuotaStore store =
+                DatabaseQuotaStore.HINT.equals(limitsConfiguration.getQuotaStore()) ? databaseStore : memoryStore;
+        if (store != currentStore) {
+            synchronized (this) {
+                if (store != currentStore) {
+                    // The configuration has been reloaded with another store: the quotas have to be initialized in
+                    // the new store, where the usage of this instance has not been counted, and the units leased from
+                    // the previous one cannot be consumed anymore
+                    if (currentStore != null) {
+                        staleQuotas.addAll(usageCounters.keySet());
+                    }
+                    initializedQuotas.clear();
+                    for (AtomicInteger units : leasedUnits.values()) {
+                        units.set(0);
+                    }
+                    currentStore = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    private String loadInstanceId()
+    {
+        Path file = null;
+        try {
+            file = environment.getPermanentDirectory().toPath().resolve("limits").resolve("instance.id");
+            if (Files.exists(file)) {
+                return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            }
+            String newInstanceId = UUID.randomUUID().toString();
+            Files.createDirectories(file.getParent());
+            Files.write(file, newInstanceId.getBytes(StandardCharsets.UTF_8));
+            return newInstanceId;
+        } catch (IOException e) {
+            // A new identifier at each start: the leases recorded before a restart stay counted
+            logger.warn("Failed to read the identifier of this instance from [{}]. Root cause: [{}].", file,
+                    e.toString());
+            return UUID.randomUUID().toString();
+        }
+    }
+}
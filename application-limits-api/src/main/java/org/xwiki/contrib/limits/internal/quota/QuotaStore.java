@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Store the usage of some quotas (number of users, number of wikis...) so that the check of a limit and the
+ * reservation of a new item are done atomically, even when several XWiki instances share the same database. The hint
+ * of the implementation to use is given by the configuration.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Role
+public interface QuotaStore
+{
+    /**
+     * Create the quota with the given usage, if it does not exist yet.
+     *
+     * @param quota the name of the quota
+     * @param used the current usage of the quota
+     * @throws Exception if the store cannot be reached
+     */
+    void initialize(String quota, long used) throws Exception;
+
+    /**
+     * Reserve some units of a quota if the limit allows it.
+     *
+     * @param quota the name of the quota
+     * @param count the number of units to reserve
+     * @param limit the maximum usage of the quota
+     * @return {@code true} if the units have been reserved, {@code false} if the limit would have been exceeded
+     * @throws Exception if the store cannot be reached
+     */
+    boolean tryAcquire(String quota, long count, long limit) throws Exception;
+
+    /**
+     * Give back some units of a quota.
+     *
+     * @param quota the name of the quota
+     * @param count the number of units to give back
+     * @throws Exception if the store cannot be reached
+     */
+    void release(String quota, long count) throws Exception;
+
+    /**
+     * Correct the usage of a quota with an exact count. The units leased by the instances, as recorded with
+     * {@link #setLeased(String, String, long)}, are added to the count since they are reserved but not used yet. The
+     * correction must not lose the units reserved by another instance while it is computed.
+     *
+     * @param quota the name of the quota
+     * @param used the exact usage of the quota, without the leased units
+     * @throws Exception if the store cannot be reached
+     */
+    void reset(String quota, long used) throws Exception;
+
+    /**
+     * Record the number of units of a quota leased by an instance and not consumed yet.
+     *
+     * @param quota the name of the quota
+     * @param instance the identifier of the instance
+     * @param leased the number of units leased by the instance
+     * @throws Exception if the store cannot be reached
+     */
+    void setLeased(String quota, String instance, long leased) throws Exception;
+
+    /**
+     * Give back the units that an instance has leased and not consumed (before a restart), and forget its lease.
+     *
+     * @param quota the name of the quota
+     * @param instance the identifier of the instance
+     * @throws Exception if the store cannot be reached
+     */
+    void clearLeased(String quota, String instance) throws Exception;
+}
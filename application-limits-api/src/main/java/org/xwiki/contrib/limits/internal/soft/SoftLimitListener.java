@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.soft;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Give the saved documents to the {@link SoftLimitVerifier}, so that the documents accepted by a soft limit are
+ * verified once they are saved.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named("LimitsApplication_SoftLimitListener")
+@Singleton
+public class SoftLimitListener implements EventListener
+{
+    private static final List<Event> EVENTS =
+            Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+
+    @Inject
+    private SoftLimitVerifier softLimitVerifier;
+
+    @Override
+    public String getName()
+    {
+        return "Limits Application - Soft Limit Listener";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        softLimitVerifier.onSaved(((XWikiDocument) source).getDocumentReference());
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.soft;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.event.LimitExceededEvent;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberCounter;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.observation.ObservationManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiRightService;
+
+/**
+ * Verify the soft limits in the background. A user or a group accepted by a soft limit is expected to be saved; once
+ * it is, the exact count is computed off the request thread and, if the limit has been exceeded, the document is
+ * flagged, a {@link LimitExceededEvent} is fired and, if the configuration asks for it, the user is deactivated.
+ * <p>
+ * The saves that happen while a user verification is waiting share this verification, so a burst of user creations
+ * costs a single recount. A document that is not saved within {@value #EXPIRATION} milliseconds after being accepted
+ * (because its save has been cancelled or has failed) is not expected anymore.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = SoftLimitVerifier.class)
+@Singleton
+public class SoftLimitVerifier implements Initializable
+{
+    /**
+     * Time after which a document accepted by a soft limit is not expected anymore, in milliseconds.
+     */
+    static final long EXPIRATION = 10 * 60 * 1000L;
+
+    /**
+     * Time between two removals of the expired expectations, in minutes.
+     */
+    private static final long EXPIRATION_CHECK_PERIOD = 1;
+
+    private static final String XWIKI_SPACE = "XWiki";
+
+    private static final LocalDocumentReference USER_CLASS = new LocalDocumentReference(XWIKI_SPACE, "XWikiUsers");
+
+    @Inject
+    private UserCounter userCounter;
+
+    @Inject
+    private GroupMemberCounter groupMemberCounter;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The users accepted by a soft limit, that are verified once they are saved, with the time they were accepted.
+     */
+    private final Map<DocumentReference, Long> expectedUsers = new ConcurrentHashMap<>();
+
+    /**
+     * The limited groups to verify once each document is saved (a group, or a subgroup nested in some groups).
+     */
+    private final Map<DocumentReference, ExpectedGroups> expectedGroups = new ConcurrentHashMap<>();
+
+    /**
+     * The saved users waiting for the next verification, in the order of their saves.
+     */
+    private final Queue<DocumentReference> pendingUsers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean userVerificationScheduled = new AtomicBoolean();
+
+    private final Set<DocumentReference> pendingGroups = ConcurrentHashMap.newKeySet();
+
+    private final Set<DocumentReference> flaggedUsers = ConcurrentHashMap.newKeySet();
+
+    private final Set<DocumentReference> flaggedGroups = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The limited groups to verify once a document is saved, with the last time the document was accepted.
+     */
+    private static final class ExpectedGroups
+    {
+        private final Set<DocumentReference> groups = ConcurrentHashMap.newKeySet();
+
+        private volatile long time;
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        backgroundExecutor.scheduleWithFixedDelay(() -> removeExpired(System.currentTimeMillis()),
+                EXPIRATION_CHECK_PERIOD, EXPIRATION_CHECK_PERIOD, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Verify a user accepted by a soft user limit, once it is saved.
+     *
+     * @param user the reference of the user being saved
+     */
+    public void expectUser(DocumentReference user)
+    {
+        expectedUsers.put(user, System.currentTimeMillis());
+    }
+
+    /**
+     * Verify a group accepted by its soft limit, once it is saved.
+     *
+     * @param group the reference of the group being saved
+     */
+    public void expectGroup(DocumentReference group)
+    {
+        expectGroup(group, group);
+    }
+
+    /**
+     * Verify a group accepted by its soft limit, once a document that it contains, directly or not, is saved.
+     *
+     * @param document the reference of the document being saved (the group itself or one of its subgroups)
+     * @param group the reference of the limited group
+     */
+    public void expectGroup(DocumentReference document, DocumentReference group)
+    {
+        ExpectedGroups documentGroups = expectedGroups.computeIfAbsent(document, key -> new ExpectedGroups());
+        documentGroups.groups.add(group);
+        documentGroups.time = System.currentTimeMillis();
+    }
+
+    /**
+     * Take into account that a document has been saved: its verification is scheduled if it has been accepted by a
+     * soft limit.
+     *
+     * @param reference the reference of the saved document
+     */
+    public void onSaved(DocumentReference reference)
+    {
+        // Most of the saved documents have not been accepted by a soft limit
+        if (!expectedUsers.isEmpty() && expectedUsers.remove(reference) != null) {
+            pendingUsers.add(reference);
+            if (userVerificationScheduled.compareAndSet(false, true)) {
+                backgroundExecutor.submit(this::verifyUsers);
+            }
+        }
+        ExpectedGroups groups = expectedGroups.isEmpty() ? null : expectedGroups.remove(reference);
+        if (groups != null) {
+            for (DocumentReference group : groups.groups) {
+                if (pendingGroups.add(group)) {
+                    backgroundExecutor.submit(() -> verifyGroup(group));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop expecting the documents that have not been saved in time. Package-private to allow the test class to
+     * expire the expectations without waiting.
+     *
+     * @param now the current time, in milliseconds
+     */
+    void removeExpired(long now)
+    {
+        long limit = now - EXPIRATION;
+        expectedUsers.values().removeIf(time -> time <= limit);
+        expectedGroups.values().removeIf(groups -> groups.time <= limit);
+    }
+
+    /**
+     * Verify the user limits once some users have been created without being checked (by an import of users, see
+     * {@link org.xwiki.contrib.limits.internal.users.UserImportMode}), with the users counted again by the caller.
+     * The users over the limits are handled like the users accepted over a soft limit: they are flagged, a
+     * {@link LimitExceededEvent} is fired for each of them and, if the configuration asks for it, they are
+     * deactivated.
+     *
+     * @param users the users that have been created without being checked, in the order of their creation
+     * @return {@code true} if the user limits are respected
+     * @throws Exception if the users cannot be counted
+     */
+    public boolean verifyUncheckedUsers(List<DocumentReference> users) throws Exception
+    {
+        long start = System.nanoTime();
+        try {
+            return flagUsersOverLimits(users);
+        } finally {
+            metrics.record(LimitsMetrics.SOFT_LIMIT_VERIFICATION, start);
+        }
+    }
+
+    /**
+     * @return the users that have been accepted over a soft user limit, since the user limits were last found
+     * respected
+     */
+    public Set<DocumentReference> getFlaggedUsers()
+    {
+        return Collections.unmodifiableSet(new HashSet<>(flaggedUsers));
+    }
+
+    /**
+     * @return the groups that have been found over their soft limits
+     */
+    public Set<DocumentReference> getFlaggedGroups()
+    {
+        return Collections.unmodifiableSet(new HashSet<>(flaggedGroups));
+    }
+
+    private void verifyUsers()
+    {
+        // The users saved from now on are verified by the next verification
+        userVerificationScheduled.set(false);
+        List<DocumentReference> users = new ArrayList<>();
+        for (DocumentReference user = pendingUsers.poll(); user != null; user = pendingUsers.poll()) {
+            users.add(user);
+        }
+
+        long start = System.nanoTime();
+        try {
+            userCounter.reconcile();
+            flagUsersOverLimits(users);
+        } catch (Exception e) {
+            logger.warn("Failed to verify the soft user limits. Root cause: [{}].", e.toString());
+        } finally {
+            metrics.record(LimitsMetrics.SOFT_LIMIT_VERIFICATION, start);
+        }
+    }
+
+    /**
+     * @return {@code true} if the user limits are respected
+     */
+    private boolean flagUsersOverLimits(List<DocumentReference> users) throws Exception
+    {
+        boolean exceeded = flagUsers(LimitExceededEvent.USERS, users, userCounter.getUserCount(),
+                limitsConfiguration.getTotalNumberOfUsersLimit());
+
+        Map<String, Integer> wikiUserLimits = limitsConfiguration.getWikiUserLimits();
+        if (!wikiUserLimits.isEmpty()) {
+            Map<String, List<DocumentReference>> usersPerWiki = new LinkedHashMap<>();
+            for (DocumentReference user : users) {
+                usersPerWiki.computeIfAbsent(user.getWikiReference().getName(), wiki -> new ArrayList<>()).add(user);
+            }
+            for (Map.Entry<String, Integer> wikiUserLimit : wikiUserLimits.entrySet()) {
+                String wiki = wikiUserLimit.getKey();
+                exceeded |= flagUsers(LimitExceededEvent.WIKI_USERS,
+                        usersPerWiki.getOrDefault(wiki, Collections.<DocumentReference>emptyList()),
+                        userCounter.getUserCount(wiki), wikiUserLimit.getValue());
+            }
+        }
+
+        if (!exceeded) {
+            flaggedUsers.clear();
+        }
+        return !exceeded;
+    }
+
+    /**
+     * @return {@code true} if the count exceeds the limit
+     */
+    private boolean flagUsers(String type, List<DocumentReference> users, int count, int limit)
+    {
+        if (count <= limit) {
+            return false;
+        }
+
+        // The last accepted users are the ones over the limit
+        for (int i = Math.max(0, users.size() - (count - limit)); i < users.size(); i++) {
+            DocumentReference user = users.get(i);
+            if (flaggedUsers.add(user)) {
+                metrics.increment(LimitsMetrics.SOFT_LIMIT_OVERSHOOTS);
+                logger.warn("The user [{}] has been accepted over the limit [{}] [{}/{}].", user, type, count,
+                        limit);
+                observationManager.notify(new LimitExceededEvent(type, count, limit), user);
+                if (limitsConfiguration.isDeactivatingUsersOverLimit()) {
+                    deactivate(user, type, count, limit);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void deactivate(DocumentReference user, String type, int count, int limit)
+    {
+        XWikiContext xcontext = xcontextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+        DocumentReference currentUser = xcontext.getUserReference();
+        try {
+            xcontext.setWikiId(user.getWikiReference().getName());
+            // The verification usually runs in the background, where there is no user to author the save
+            xcontext.setUserReference(
+                    new DocumentReference(xcontext.getMainXWiki(), XWIKI_SPACE, XWikiRightService.SUPERADMIN_USER));
+            XWikiDocument document = xcontext.getWiki().getDocument(user, xcontext).clone();
+            BaseObject userObject = document.getXObject(new DocumentReference(USER_CLASS, user.getWikiReference()));
+            if (userObject != null) {
+                userObject.setIntValue("active", 0);
+                xcontext.getWiki().saveDocument(document, String.format(
+                        "Deactivated because the limit [%s] has been exceeded [%d/%d].", type, count, limit), true,
+                        xcontext);
+            }
+        } catch (XWikiException e) {
+            logger.error("Failed to deactivate the user [{}] accepted over the user limit.", user, e);
+        } finally {
+            xcontext.setWikiId(currentWiki);
+            xcontext.setUserReference(currentUser);
+        }
+    }
+
+    private void verifyGroup(DocumentReference group)
+    {
+        // The saves from now on are verified by a new verification
+        pendingGroups.remove(group);
+
+        long start = System.nanoTime();
+        try {
+            Number limit = limitsConfiguration.getGroupLimit(group);
+            long count = limit != null ? groupMemberCounter.getUserCount(group) : 0;
+            if (limit == null || count <= limit.longValue()) {
+                flaggedGroups.remove(group);
+            } else if (flaggedGroups.add(group)) {
+                metrics.increment(LimitsMetrics.SOFT_LIMIT_OVERSHOOTS);
+                logger.warn("The group [{}] has exceeded its soft limit [{}/{}].", group, count, limit);
+                observationManager.notify(new LimitExceededEvent(LimitExceededEvent.GROUP, count,
+                        limit.longValue()), group);
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to verify the soft limit of the group [{}]. Root cause: [{}].", group, e.toString());
+        } finally {
+            metrics.record(LimitsMetrics.SOFT_LIMIT_VERIFICATION, start);
+        }
+    }
+}
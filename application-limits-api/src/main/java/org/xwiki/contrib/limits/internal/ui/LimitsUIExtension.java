@@ -24,13 +24,20 @@ import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.CompositeBlock;
 import org.xwiki.template.TemplateManager;
 import org.xwiki.uiextension.UIExtension;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
 /**
  * @version $Id: $
  */
@@ -39,10 +46,22 @@ import org.xwiki.uiextension.UIExtension;
 @Named("LimitsUIExtension")
 public class LimitsUIExtension implements UIExtension
 {
+    private static final String TEMPLATE_NAME = "limits-uix.vm";
+
+    private static final String XWIKI_SPACE = "XWiki";
+
+    private static final LocalDocumentReference CREATE_WIKI = new LocalDocumentReference("WikiManager", "CreateWiki");
+
+    private static final LocalDocumentReference PREFERENCES =
+            new LocalDocumentReference(XWIKI_SPACE, "XWikiPreferences");
+
+    private static final LocalDocumentReference REGISTER = new LocalDocumentReference(XWIKI_SPACE, "XWikiRegister");
+
     @Inject
     private TemplateManager templateManager;
 
-    private static final String TEMPLATE_NAME = "limits-uix.vm";
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
 
     @Override
     public String getId()
@@ -65,6 +84,29 @@ public class LimitsUIExtension implements UIExtension
     @Override
     public Block execute()
     {
+        // This extension is displayed on every page, so avoid rendering the template when it has nothing to display
+        if (!isTemplateNeeded()) {
+            return new CompositeBlock();
+        }
         return templateManager.executeNoException(TEMPLATE_NAME);
     }
+
+    /**
+     * Same conditions as the controller of the template.
+     */
+    private boolean isTemplateNeeded()
+    {
+        XWikiContext xcontext = xcontextProvider.get();
+        XWikiDocument document = xcontext.getDoc();
+        if (document == null) {
+            return false;
+        }
+        EntityReference reference = document.getDocumentReference().removeParent(
+                document.getDocumentReference().getWikiReference());
+        if (CREATE_WIKI.equals(reference) || REGISTER.equals(reference)) {
+            return true;
+        }
+        return PREFERENCES.equals(reference) && xcontext.getRequest() != null
+                && "Users".equals(xcontext.getRequest().getParameter("section"));
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.usage;
+
+/**
+ * The usage of a limit.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+public final class LimitUsage
+{
+    private final Number count;
+
+    private final Number limit;
+
+    /**
+     * @param count the current count, or {@code null} if it is not known yet
+     * @param limit the limit of the count, or {@code null} if there is no limit
+     */
+    public LimitUsage(Number count, Number limit)
+    {
+        this.count = count;
+        this.limit = limit;
+    }
+
+    /**
+     * @return the current count, or {@code null} if it is not known yet
+     */
+    public Number getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the limit of the count, or {@code null} if there is no limit
+     */
+    public Number getLimit()
+    {
+        return limit;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.usage;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The usage of the limits at a given time.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+public final class Usage
+{
+    private final LimitUsage users;
+
+    private final LimitUsage wikis;
+
+    private final Map<String, LimitUsage> wikiUsers;
+
+    private final Map<String, LimitUsage> groups;
+
+    private final long computedAt;
+
+    /**
+     * @param users the usage of the user limit
+     * @param wikis the usage of the wiki limit
+     * @param wikiUsers the usage of the user limit of each wiki, by wiki identifier
+     * @param groups the usage of the group limits, by group reference
+     * @param computedAt when the usage has been collected, in milliseconds since the epoch
+     */
+    public Usage(LimitUsage users, LimitUsage wikis, Map<String, LimitUsage> wikiUsers,
+            Map<String, LimitUsage> groups, long computedAt)
+    {
+        this.users = users;
+        this.wikis = wikis;
+        this.wikiUsers = wikiUsers;
+        this.groups = groups;
+        this.computedAt = computedAt;
+    }
+
+    /**
+     * @return the usage of the user limit
+     */
+    public LimitUsage getUsers()
+    {
+        return users;
+    }
+
+    /**
+     * @return the usage of the wiki limit
+     */
+    public LimitUsage getWikis()
+    {
+        return wikis;
+    }
+
+    /**
+     * @return an unmodifiable map of the number of users of each wiki, with the user limit of the wiki if it has one
+     */
+    public Map<String, LimitUsage> getWikiUsers()
+    {
+        return wikiUsers;
+    }
+
+    /**
+     * @return an unmodifiable map of the usage of the group limits, by group reference
+     */
+    public Map<String, LimitUsage> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * @return when the usage has been collected
+     */
+    public Date getComputedAt()
+    {
+        return new Date(computedAt);
+    }
+
+    long getAge(long now)
+    {
+        return now - computedAt;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.usage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.configuration.GroupLimits;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberCounter;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.contrib.limits.internal.wikis.WikiCounter;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Collect the usage of the limits from the counters, which are kept up to date by the listeners. The collected usage
+ * is kept for the maximum staleness allowed by the configuration, and collecting it never counts all the users.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = UsageCollector.class)
+@Singleton
+public class UsageCollector
+{
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private UserCounter userCounter;
+
+    @Inject
+    private WikiCounter wikiCounter;
+
+    @Inject
+    private GroupMemberCounter groupMemberCounter;
+
+    private volatile Usage usage;
+
+    /**
+     * @return the usage of the limits, at most as old as the maximum staleness allowed by the configuration
+     * @throws Exception if the usage cannot be collected
+     */
+    public Usage getUsage() throws Exception
+    {
+        Usage current = usage;
+        long now = System.currentTimeMillis();
+        if (current == null || current.getAge(now) > TimeUnit.SECONDS.toMillis(
+                limitsConfiguration.getUsageMaxStaleness())) {
+            // Concurrent requests may collect the usage at the same time, which is cheap enough
+            current = collect(now);
+            usage = current;
+        }
+        return current;
+    }
+
+    private Usage collect(long now) throws Exception
+    {
+        LimitUsage users = new LimitUsage(userCounter.getCachedUserCount(),
+                limitsConfiguration.getTotalNumberOfUsersLimit());
+        LimitUsage wikis = new LimitUsage(wikiCounter.getCachedWikiCount(),
+                limitsConfiguration.getWikisNumberLimit());
+
+        Map<String, Integer> wikiUserLimits = limitsConfiguration.getWikiUserLimits();
+        Map<String, Integer> wikiUserCounts = userCounter.getCachedUserCounts();
+        Map<String, LimitUsage> wikiUsers = new TreeMap<>();
+        for (Map.Entry<String, Integer> wikiUserCount : wikiUserCounts.entrySet()) {
+            wikiUsers.put(wikiUserCount.getKey(),
+                new LimitUsage(wikiUserCount.getValue(), wikiUserLimits.get(wikiUserCount.getKey())));
+        }
+
+        Map<DocumentReference, Number> groupLimits = limitsConfiguration.getGroupsLimits();
+        Map<String, LimitUsage> groups = new LinkedHashMap<>(groupLimits.size() * 4 / 3 + 1);
+        for (Map.Entry<DocumentReference, Number> groupLimit : groupLimits.entrySet()) {
+            Long count = null;
+            // A group limited in every wiki has no single count to report, and a group that has not been resolved
+            // yet is reported as unknown rather than resolved by the request
+            if (!GroupLimits.isAnyWiki(groupLimit.getKey())) {
+                count = groupMemberCounter.getCachedUserCount(groupLimit.getKey());
+            }
+            groups.put(groupLimit.getKey().toString(), new LimitUsage(count, groupLimit.getValue()));
+        }
+
+        return new Usage(users, wikis, Collections.unmodifiableMap(wikiUsers), Collections.unmodifiableMap(groups),
+                now);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.usage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberCounter;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.contrib.limits.internal.wikis.WikiCounter;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * Keep the last known usage (the users of each wiki, the number of wikis and the members of the limited groups) in a
+ * small file of the permanent directory, so that the usage can be displayed without querying every wiki when the XWiki
+ * instance restarts. The restored values are only used until the counters have counted everything again, in the
+ * background: they are never used to enforce a limit.
+ * <p>
+ * The file is written periodically and when the XWiki instance stops. A file written by another format version, or
+ * older than an hour, is ignored.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = UsageSnapshotStore.class)
+@Singleton
+public class UsageSnapshotStore implements Initializable, Disposable
+{
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Time between two writes of the file, in minutes.
+     */
+    private static final long SAVE_PERIOD = 5;
+
+    /**
+     * Age after which the file is too old to be trusted, even to display the usage.
+     */
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private static final String VERSION = "version";
+
+    private static final String TIMESTAMP = "timestamp";
+
+    private static final String WIKIS = "wikis";
+
+    private static final String USERS_PREFIX = "users.";
+
+    private static final String GROUP_PREFIX = "group.";
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private Provider<UserCounter> userCounterProvider;
+
+    @Inject
+    private Provider<WikiCounter> wikiCounterProvider;
+
+    @Inject
+    private Provider<GroupMemberCounter> groupMemberCounterProvider;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentReferenceResolver;
+
+    @Inject
+    private EntityReferenceSerializer<String> entityReferenceSerializer;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Logger logger;
+
+    private Path file;
+
+    private Map<String, Integer> userCounts = Collections.emptyMap();
+
+    private int wikiCount;
+
+    private Map<DocumentReference, Long> groupCounts = Collections.emptyMap();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        file = environment.getPermanentDirectory().toPath().resolve("limits").resolve("usage.properties");
+        try {
+            load();
+        } catch (Exception e) {
+            // The counters will count everything, as if there were no file
+            logger.warn("Failed to read the last known usage of the limits from [{}]. Root cause: [{}].", file,
+                    e.toString());
+        }
+
+        backgroundExecutor.scheduleWithFixedDelay(this::saveInBackground, SAVE_PERIOD, SAVE_PERIOD,
+                TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void dispose()
+    {
+        saveInBackground();
+    }
+
+    /**
+     * @return the number of active users of each wiki when the XWiki instance was stopped, empty if unknown
+     */
+    public Map<String, Integer> getUserCounts()
+    {
+        return userCounts;
+    }
+
+    /**
+     * @return the number of wikis when the XWiki instance was stopped, 0 if unknown
+     */
+    public int getWikiCount()
+    {
+        return wikiCount;
+    }
+
+    /**
+     * @return the number of users of each limited group when the XWiki instance was stopped, empty if unknown
+     */
+    public Map<DocumentReference, Long> getGroupCounts()
+    {
+        return groupCounts;
+    }
+
+    private void load() throws IOException
+    {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(file)) {
+            properties.load(stream);
+        }
+
+        long age = System.currentTimeMillis() - Long.parseLong(properties.getProperty(TIMESTAMP, "0"));
+        if (!String.valueOf(FORMAT_VERSION).equals(properties.getProperty(VERSION)) || age > MAX_AGE) {
+            logger.info("The last known usage of the limits [{}] is obsolete, the counters will count everything.",
+                    file);
+            return;
+        }
+
+        Map<String, Integer> loadedUserCounts = new HashMap<>();
+        Map<DocumentReference, Long> loadedGroupCounts = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.startsWith(USERS_PREFIX)) {
+                loadedUserCounts.put(key.substring(USERS_PREFIX.length()), Integer.valueOf(value));
+            } else if (key.startsWith(GROUP_PREFIX)) {
+                loadedGroupCounts.put(documentReferenceResolver.resolve(key.substring(GROUP_PREFIX.length())),
+                        Long.valueOf(value));
+            }
+        }
+        userCounts = Collections.unmodifiableMap(loadedUserCounts);
+        groupCounts = Collections.unmodifiableMap(loadedGroupCounts);
+        wikiCount = Integer.parseInt(properties.getProperty(WIKIS, "0"));
+    }
+
+    /**
+     * Write the current usage known by the counters. Nothing is counted to write the file: what the counters do not
+     * know yet is not written.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException
+    {
+        Properties properties = new Properties();
+        properties.setProperty(VERSION, String.valueOf(FORMAT_VERSION));
+        properties.setProperty(TIMESTAMP, String.valueOf(System.currentTimeMillis()));
+
+        Map<String, Integer> knownUserCounts = userCounterProvider.get().getKnownUserCounts();
+        if (knownUserCounts != null) {
+            for (Map.Entry<String, Integer> userCount : knownUserCounts.entrySet()) {
+                properties.setProperty(USERS_PREFIX + userCount.getKey(), String.valueOf(userCount.getValue()));
+            }
+        }
+
+        Integer knownWikiCount = wikiCounterProvider.get().getKnownWikiCount();
+        if (knownWikiCount != null) {
+            properties.setProperty(WIKIS, String.valueOf(knownWikiCount));
+        }
+
+        GroupMemberCounter groupMemberCounter = groupMemberCounterProvider.get();
+        for (DocumentReference group : limitsConfiguration.getGroupsLimits().keySet()) {
+            Long groupCount = groupMemberCounter.getCachedUserCount(group);
+            if (groupCount != null) {
+                properties.setProperty(GROUP_PREFIX + entityReferenceSerializer.serialize(group),
+                        String.valueOf(groupCount));
+            }
+        }
+
+        // Written next to the file then moved, so that a crash never leaves a truncated file
+        Files.createDirectories(file.getParent());
+        Path temporaryFile = Files.createTempFile(file.getParent(), "usage", ".tmp");
+        try {
+            try (OutputStream stream = Files.newOutputStream(temporaryFile)) {
+                properties.store(stream, "Last known usage of the XWiki Limits Application");
+            }
+            try {
+                Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private void saveInBackground()
+    {
+        try {
+            save();
+        } catch (Exception e) {
+            logger.warn("Failed to write the last known usage of the limits to [{}]. Root cause: [{}].", file,
+                    e.toString());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * Count the users of several wikis with a single SQL query, for the deployments where all the wikis can be reached
+ * from the same database connection (MySQL databases, PostgreSQL schemas, etc...). The wikis are grouped in batches
+ * and each batch is counted with one {@code UNION ALL} query.
+ * <p>
+ * When the store layout does not allow it (the query fails, the schema name cannot be used as is, the store is not
+ * Hibernate), the wikis are counted with the {@link PerWikiUserCountStrategy}. A failing query disables this strategy
+ * for {@value #RETRY_DELAY} milliseconds, so that a transient database error does not disable it for good.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named(CrossWikiUserCountStrategy.HINT)
+@Singleton
+public class CrossWikiUserCountStrategy implements UserCountStrategy
+{
+    /**
+     * Hint of this component, and name of this strategy in the configuration.
+     */
+    public static final String HINT = "cross-wiki";
+
+    /**
+     * Schema names are injected in the query without escaping, so only the simplest names are accepted.
+     */
+    private static final Pattern SAFE_SCHEMA = Pattern.compile("[A-Za-z0-9_]+");
+
+    private static final String UNION = " UNION ALL ";
+
+    /**
+     * Delay before the single query is tried again after a failure.
+     */
+    private static final long RETRY_DELAY = 10 * 60 * 1000L;
+
+    @Inject
+    @Named(PerWikiUserCountStrategy.HINT)
+    private UserCountStrategy perWikiStrategy;
+
+    @Inject
+    @Named("hibernate")
+    private XWikiStoreInterface store;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private Logger logger;
+
+    private volatile long disabledUntil;
+
+    @Override
+    public void countUsers(List<String> wikiIds, Map<String, Integer> counts, Map<String, Exception> failures)
+        throws InterruptedException
+    {
+        List<String> remainingWikis = new ArrayList<>();
+        if (isEnabled() && store instanceof XWikiHibernateBaseStore) {
+            XWikiHibernateBaseStore hibernateStore = (XWikiHibernateBaseStore) store;
+            XWikiContext xcontext = xcontextProvider.get();
+            int batchSize = Math.max(1, limitsConfiguration.getCounterBatchSize());
+
+            List<String> batchWikis = new ArrayList<>(batchSize);
+            List<String> batchSchemas = new ArrayList<>(batchSize);
+            for (String wikiId : wikiIds) {
+                String schema = hibernateStore.getSchemaFromWikiName(wikiId, xcontext);
+                if (schema != null && SAFE_SCHEMA.matcher(schema).matches()) {
+                    batchWikis.add(wikiId);
+                    batchSchemas.add(schema);
+                } else {
+                    remainingWikis.add(wikiId);
+                }
+                if (batchWikis.size() == batchSize) {
+                    countBatch(hibernateStore, xcontext, batchWikis, batchSchemas, counts, remainingWikis);
+                }
+            }
+            countBatch(hibernateStore, xcontext, batchWikis, batchSchemas, counts, remainingWikis);
+        } else {
+            remainingWikis.addAll(wikiIds);
+        }
+
+        if (!remainingWikis.isEmpty()) {
+            perWikiStrategy.countUsers(remainingWikis, counts, failures);
+        }
+    }
+
+    private void countBatch(XWikiHibernateBaseStore hibernateStore, XWikiContext xcontext, List<String> batchWikis,
+            List<String> batchSchemas, Map<String, Integer> counts, List<String> remainingWikis)
+    {
+        if (batchWikis.isEmpty()) {
+            return;
+        }
+
+        if (isEnabled()) {
+            String statement = getStatement(batchSchemas);
+            try {
+                List<Object[]> results = hibernateStore.executeRead(xcontext,
+                    session -> (List<Object[]>) session.createSQLQuery(statement).list());
+                for (Object[] result : results) {
+                    counts.put(batchWikis.get(((Number) result[0]).intValue()), ((Number) result[1]).intValue());
+                }
+            } catch (Exception e) {
+                disabledUntil = System.currentTimeMillis() + RETRY_DELAY;
+                logger.warn("Failed to count the users of several wikis with a single query, the wikis will be "
+                        + "counted one by one for the next [{}] minutes. Root cause: [{}].", RETRY_DELAY / 60000,
+                        e.toString());
+                remainingWikis.addAll(batchWikis);
+            }
+        } else {
+            remainingWikis.addAll(batchWikis);
+        }
+
+        batchWikis.clear();
+        batchSchemas.clear();
+    }
+
+    private boolean isEnabled()
+    {
+        return System.currentTimeMillis() >= disabledUntil;
+    }
+
+    private String getStatement(List<String> schemas)
+    {
+        // The index of the wiki in the batch is returned with its count, since UNION does not keep any order
+        StringBuilder statement = new StringBuilder();
+        for (int i = 0; i < schemas.size(); ++i) {
+            if (i > 0) {
+                statement.append(UNION);
+            }
+            String schema = schemas.get(i);
+            statement.append(String.format("SELECT %d, COUNT(DISTINCT obj.XWO_NAME) FROM %s.xwikiobjects obj "
+                    + "WHERE obj.XWO_CLASSNAME = 'XWiki.XWikiUsers' AND NOT EXISTS (SELECT prop.XWI_ID FROM "
+                    + "%s.xwikiintegers prop WHERE prop.XWI_ID = obj.XWO_ID AND prop.XWI_NAME = 'active' "
+                    + "AND prop.XWI_VALUE = 0)", i, schema, schema));
+        }
+        return statement.toString();
+    }
+}
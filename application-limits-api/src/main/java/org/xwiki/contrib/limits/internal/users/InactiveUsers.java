@@ -0,0 +1,259 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+/**
+ * The deactivated users of the whole farm, shared by the counters that only count the active users. The users are
+ * loaded with one query per wiki the first time they are needed, then they are kept up to date by
+ * {@link UserCounterListener}.
+ * <p>
+ * The deactivated users are kept rather than the active ones since there are usually much fewer of them: the active
+ * users of a set are then the users of the set minus its intersection with this one.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = InactiveUsers.class)
+@Singleton
+public class InactiveUsers
+{
+    private static final String INACTIVE_USERS_QUERY = "select distinct obj.name from BaseObject obj, "
+        + "IntegerProperty prop where obj.className = 'XWiki.XWikiUsers' and prop.id.id = obj.id "
+        + "and prop.id.name = 'active' and prop.value = 0";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private Logger logger;
+
+    private final Set<DocumentReference> users = ConcurrentHashMap.newKeySet();
+
+    private final Set<DocumentReference> unmodifiableUsers = Collections.unmodifiableSet(users);
+
+    private volatile boolean loaded;
+
+    /**
+     * Incremented each time the users change. Only written while holding {@link #updatesLock}.
+     */
+    private volatile long version;
+
+    /**
+     * Whether a background load has been submitted and is not done yet, so that the requests for the cached users
+     * don't submit another one each.
+     */
+    private final AtomicBoolean loadSubmitted = new AtomicBoolean();
+
+    /**
+     * The updates received while the users are loaded, applied again once the queries are done so that a user saved
+     * meanwhile is not reverted to the state that the queries have seen. {@code null} when no load is running. Guarded
+     * by {@link #updatesLock}.
+     */
+    private Map<DocumentReference, Boolean> loadUpdates;
+
+    /**
+     * The wikis deleted while the users are loaded. Guarded by {@link #updatesLock}.
+     */
+    private Set<String> loadRemovedWikis;
+
+    /**
+     * Separate from "this", that is held during the whole load, so that the saves are never blocked by the queries.
+     */
+    private final Object updatesLock = new Object();
+
+    /**
+     * @return the deactivated users of the whole farm (only the first call is costly)
+     * @throws Exception if the users cannot be loaded
+     */
+    public Set<DocumentReference> getInactiveUsers() throws Exception
+    {
+        if (!loaded) {
+            load();
+        }
+        return unmodifiableUsers;
+    }
+
+    /**
+     * Get the deactivated users without ever loading them in the current thread.
+     *
+     * @return the deactivated users of the whole farm, or {@code null} if they have not been loaded yet (they are
+     * then loaded in the background)
+     */
+    public Set<DocumentReference> getCachedInactiveUsers()
+    {
+        if (!loaded) {
+            if (loadSubmitted.compareAndSet(false, true)) {
+                backgroundExecutor.submit(this::loadInBackground);
+            }
+            return null;
+        }
+        return unmodifiableUsers;
+    }
+
+    /**
+     * Take into account that a user has been saved or deleted.
+     *
+     * @param user the reference of the user
+     * @param inactive {@code true} if the user is deactivated, {@code false} if it is active or has been deleted
+     */
+    public void update(DocumentReference user, boolean inactive)
+    {
+        synchronized (updatesLock) {
+            if (loadUpdates != null) {
+                loadUpdates.put(user, inactive);
+            }
+            // Before the load, the users are updated anyway: the load only adds the users found in the database
+            apply(user, inactive);
+        }
+    }
+
+    /**
+     * Forget the users of a wiki that has been deleted.
+     *
+     * @param wikiId the deleted wiki
+     */
+    public void removeWiki(String wikiId)
+    {
+        synchronized (updatesLock) {
+            if (loadRemovedWikis != null) {
+                loadRemovedWikis.add(wikiId);
+            }
+            if (users.removeIf(user -> wikiId.equals(user.getWikiReference().getName()))) {
+                version++;
+            }
+        }
+    }
+
+    /**
+     * @return a number that changes each time the inactive users change, so that the structures derived from them
+     *         know when to be computed again
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    private synchronized void load() throws Exception
+    {
+        if (loaded) {
+            return;
+        }
+
+        List<String> wikiIds;
+        try {
+            wikiIds = wikiDescriptorManager.getAllIds();
+        } catch (WikiManagerException e) {
+            throw new Exception("Failed to get the inactive users.", e);
+        }
+
+        synchronized (updatesLock) {
+            loadUpdates = new LinkedHashMap<>();
+            loadRemovedWikis = new HashSet<>();
+        }
+        try {
+            Set<DocumentReference> loadedUsers = new HashSet<>();
+            for (String wikiId : wikiIds) {
+                WikiReference wikiReference = new WikiReference(wikiId);
+                try {
+                    List<String> names = queryManager.createQuery(INACTIVE_USERS_QUERY, Query.HQL).setWiki(wikiId)
+                            .execute();
+                    for (String name : names) {
+                        loadedUsers.add(explicitDocumentReferenceResolver.resolve(name, wikiReference));
+                    }
+                } catch (QueryException e) {
+                    throw new Exception(String.format("Failed to get the inactive users of the wiki [%s].", wikiId),
+                            e);
+                }
+            }
+
+            synchronized (updatesLock) {
+                users.addAll(loadedUsers);
+                version++;
+                // The queries may have been executed before these updates
+                for (Map.Entry<DocumentReference, Boolean> update : loadUpdates.entrySet()) {
+                    apply(update.getKey(), update.getValue());
+                }
+                for (String wikiId : loadRemovedWikis) {
+                    users.removeIf(user -> wikiId.equals(user.getWikiReference().getName()));
+                }
+                loaded = true;
+            }
+        } finally {
+            synchronized (updatesLock) {
+                loadUpdates = null;
+                loadRemovedWikis = null;
+            }
+        }
+    }
+
+    private void apply(DocumentReference user, boolean inactive)
+    {
+        if (inactive ? users.add(user) : users.remove(user)) {
+            version++;
+        }
+    }
+
+    private void loadInBackground()
+    {
+        try {
+            load();
+        } catch (Exception e) {
+            logger.warn("Failed to load the inactive users. Root cause: [{}].", e.getMessage());
+        } finally {
+            // A failed load is tried again by the next request
+            loadSubmitted.set(false);
+        }
+    }
+}
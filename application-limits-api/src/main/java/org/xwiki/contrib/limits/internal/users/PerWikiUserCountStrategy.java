@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Count the users with one query per wiki. When the configuration allows more than one thread, the wikis are counted
+ * in parallel so that a full count takes about the time needed by the biggest wiki instead of the sum of all wikis.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named(PerWikiUserCountStrategy.HINT)
+@Singleton
+public class PerWikiUserCountStrategy implements UserCountStrategy
+{
+    /**
+     * Hint of this component, and name of this strategy in the configuration.
+     */
+    public static final String HINT = "per-wiki";
+
+    /**
+     * Count the user objects whose "active" property is not 0 (a user without this property is active). The
+     * property of each user object is looked up by the primary key of the integer properties, instead of collecting
+     * the inactive documents of the whole wiki for a {@code NOT IN} and joining the documents. The statement is HQL
+     * so that it is not translated from XWQL for each wiki, and it counts the same users as the
+     * {@link CrossWikiUserCountStrategy}. Package-private to allow the test class to run it on a real database.
+     */
+    static final String ACTIVE_USER_COUNT = "select count(distinct obj.name) from BaseObject obj "
+        + "where obj.className = 'XWiki.XWikiUsers' and not exists (select prop.id.id from IntegerProperty prop "
+        + "where prop.id.id = obj.id and prop.id.name = 'active' and prop.value = 0)";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Override
+    public void countUsers(List<String> wikiIds, Map<String, Integer> counts, Map<String, Exception> failures)
+        throws InterruptedException
+    {
+        int threads = Math.min(limitsConfiguration.getCounterThreads(), wikiIds.size());
+        if (threads > 1) {
+            countUsersInParallel(wikiIds, threads, counts, failures);
+        } else {
+            countUsersSequentially(wikiIds, counts, failures);
+        }
+    }
+
+    private void countUsersSequentially(List<String> wikiIds, Map<String, Integer> counts,
+            Map<String, Exception> failures)
+    {
+        for (String wikiId : wikiIds) {
+            try {
+                counts.put(wikiId, getUserCountOnWiki(wikiId));
+            } catch (QueryException e) {
+                failures.put(wikiId, e);
+            }
+        }
+    }
+
+    private void countUsersInParallel(List<String> wikiIds, int threads, Map<String, Integer> counts,
+            Map<String, Exception> failures) throws InterruptedException
+    {
+        ExecutorService executor = backgroundExecutor.newFixedThreadPool("user counter", threads);
+        try {
+            Map<String, Future<Integer>> futures = new LinkedHashMap<>();
+            for (String wikiId : wikiIds) {
+                futures.put(wikiId, executor.submit(backgroundExecutor.withContext(() -> getUserCountOnWiki(wikiId))));
+            }
+
+            // A query waits in the queue as long as all the threads are busy, so each wiki is given the configured
+            // timeout for every round of queries that may have to be executed before its own.
+            int rounds = (wikiIds.size() + threads - 1) / threads;
+            long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos((long) limitsConfiguration.getCounterTimeout() * rounds);
+            for (Map.Entry<String, Future<Integer>> entry : futures.entrySet()) {
+                try {
+                    counts.put(entry.getKey(),
+                            entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                } catch (TimeoutException e) {
+                    entry.getValue().cancel(true);
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int getUserCountOnWiki(String wikiId) throws QueryException
+    {
+        long start = System.nanoTime();
+        Query query = queryManager.createQuery(ACTIVE_USER_COUNT, Query.HQL).setWiki(wikiId);
+        List<Long> results = query.execute();
+        metrics.record(LimitsMetrics.USER_COUNT_QUERY, start);
+        return results.get(0).intValue();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Count the active users of several wikis with the database. The hint of the implementation to use is given by the
+ * configuration.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Role
+public interface UserCountStrategy
+{
+    /**
+     * Count the active users of some wikis. The count of a wiki that fails does not prevent the other wikis to be
+     * counted.
+     *
+     * @param wikiIds the wikis to count
+     * @param counts the map to fill with the number of active users of each wiki that has been counted
+     * @param failures the map to fill with the error that has prevented a wiki to be counted
+     * @throws InterruptedException if the thread has been interrupted while waiting for the counts
+     */
+    void countUsers(List<String> wikiIds, Map<String, Integer> counts, Map<String, Exception> failures)
+        throws InterruptedException;
+}
@@ -19,58 +19,406 @@
  */
 package org.xwiki.contrib.limits.internal.users;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.query.Query;
-import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.usage.UsageSnapshotStore;
 import org.xwiki.wiki.descriptor.WikiDescriptorManager;
 import org.xwiki.wiki.manager.WikiManagerException;
 
 /**
+ * Count the active users of the whole farm. The count is computed with some queries the first time it is needed, then
+ * it is kept up to date by {@link UserCounterListener} and periodically reconciled with the database to correct any
+ * drift (users imported without event, concurrent saves during the recount, etc...).
+ * <p>
+ * How the database is queried depends on the {@link UserCountStrategy} selected by the configuration. When the
+ * XWiki instance restarts, the cached counts start from the last known counts kept by the {@link UsageSnapshotStore},
+ * but the limits are only enforced with counts taken from the database.
+ *
  * @version $Id: $
  */
 @Component(roles = UserCounter.class)
 @Singleton
-public class UserCounter
+public class UserCounter implements Initializable
 {
+    /**
+     * Time between two reconciliations of the counter with the database, in minutes.
+     */
+    private static final long RECONCILIATION_PERIOD = 60;
+
+    /**
+     * Number of times the users are counted again when some of them are saved during the recount.
+     */
+    private static final int MAX_RECOUNTS = 3;
+
     @Inject
     private WikiDescriptorManager wikiDescriptorManager;
 
     @Inject
-    private QueryManager queryManager;
+    @Named(PerWikiUserCountStrategy.HINT)
+    private UserCountStrategy perWikiStrategy;
+
+    @Inject
+    @Named(CrossWikiUserCountStrategy.HINT)
+    private UserCountStrategy crossWikiStrategy;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Inject
+    private UsageSnapshotStore usageSnapshotStore;
 
     @Inject
     private Logger logger;
 
+    /**
+     * Number of active users for each wiki. Guarded by "this".
+     */
+    private final Map<String, Integer> countsPerWiki = new HashMap<>();
+
+    /**
+     * The changes of the counts received while the users are recounted, that the recount may or may not have seen.
+     * {@code null} when no recount is running. Guarded by "this".
+     */
+    private Map<String, Integer> recountDeltas;
+
+    /**
+     * Only one recount at a time, so that the changes received meanwhile are applied to the right one.
+     */
+    private final Object recountLock = new Object();
+
+    /**
+     * Whether a background count has been submitted and is not done yet, so that the requests for the cached counts
+     * don't submit another one each.
+     */
+    private final AtomicBoolean seedSubmitted = new AtomicBoolean();
+
+    private volatile int count;
+
+    /**
+     * Whether the counts are known, at least from the last known usage.
+     */
+    private volatile boolean seeded;
+
+    /**
+     * Whether the counts have been taken from the database since the XWiki instance has started.
+     */
+    private volatile boolean counted;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        // Start from the last known counts, so that the usage can be displayed without counting the users of every
+        // wiki (they are only used until the users are counted in the background, and never to enforce a limit)
+        Map<String, Integer> lastKnownCounts = usageSnapshotStore.getUserCounts();
+        if (!lastKnownCounts.isEmpty()) {
+            synchronized (this) {
+                countsPerWiki.putAll(lastKnownCounts);
+                count = sum(lastKnownCounts);
+                seeded = true;
+            }
+            backgroundExecutor.submit(this::reconcileInBackground);
+        }
+
+        backgroundExecutor.scheduleWithFixedDelay(this::reconcileInBackground, RECONCILIATION_PERIOD,
+                RECONCILIATION_PERIOD, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return the number of active users in the whole farm (only the first call is costly)
+     * @throws Exception if the counter cannot be initialized
+     */
     public int getUserCount() throws Exception
+    {
+        if (!counted) {
+            seed();
+        }
+        return count;
+    }
+
+    /**
+     * @param wikiId the identifier of a wiki
+     * @return the number of active users in the given wiki (only the first call is costly)
+     * @throws Exception if the counter cannot be initialized
+     * @since 2.2
+     */
+    public int getUserCount(String wikiId) throws Exception
+    {
+        if (!counted) {
+            seed();
+        }
+        synchronized (this) {
+            Integer wikiCount = countsPerWiki.get(wikiId);
+            return wikiCount != null ? wikiCount : 0;
+        }
+    }
+
+    /**
+     * Get the number of users of each wiki without ever counting them in the current thread. Until the users are
+     * counted, the last known counts are returned: they must not be used to enforce a limit.
+     *
+     * @return a copy of the number of active users of each wiki, empty if they have not been counted yet (they are
+     * then counted in the background)
+     * @since 2.2
+     */
+    public Map<String, Integer> getCachedUserCounts()
+    {
+        if (!seeded) {
+            submitSeed();
+            return Collections.emptyMap();
+        }
+        synchronized (this) {
+            return new HashMap<>(countsPerWiki);
+        }
+    }
+
+    /**
+     * Get the number of users without ever counting them in the current thread. Until the users are counted, the last
+     * known count is returned: it must not be used to enforce a limit.
+     *
+     * @return the number of active users in the whole farm, or {@code null} if they have not been counted yet (they
+     * are then counted in the background)
+     * @since 2.2
+     */
+    public Integer getCachedUserCount()
+    {
+        if (!seeded) {
+            submitSeed();
+            return null;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of users of a wiki without ever counting them in the current thread. Until the users are counted,
+     * the last known count is returned: it must not be used to enforce a limit.
+     *
+     * @param wikiId the identifier of a wiki
+     * @return the number of active users in the given wiki, or {@code null} if they have not been counted yet (they
+     * are then counted in the background)
+     * @since 2.2
+     */
+    public Integer getCachedUserCount(String wikiId)
+    {
+        if (!seeded) {
+            submitSeed();
+            return null;
+        }
+        synchronized (this) {
+            Integer wikiCount = countsPerWiki.get(wikiId);
+            return wikiCount != null ? wikiCount : 0;
+        }
+    }
+
+    /**
+     * @return a copy of the number of active users of each wiki, or {@code null} if they have not been counted since
+     * the XWiki instance has started (and they are not counted by this call)
+     * @since 2.2
+     */
+    public synchronized Map<String, Integer> getKnownUserCounts()
+    {
+        return counted ? new HashMap<>(countsPerWiki) : null;
+    }
+
+    /**
+     * Recompute the number of users of every wiki from the database. The wikis that cannot be counted keep their
+     * previous values.
+     *
+     * @throws Exception if the count fails for a wiki that has never been counted before
+     */
+    public void reconcile() throws Exception
+    {
+        synchronized (recountLock) {
+            List<String> wikiIds;
+            try {
+                wikiIds = wikiDescriptorManager.getAllIds();
+            } catch (WikiManagerException e) {
+                throw new Exception("Failed to get the user count.", e);
+            }
+
+            try {
+                for (int attempt = 1;; attempt++) {
+                    synchronized (this) {
+                        recountDeltas = new HashMap<>();
+                    }
+                    Map<String, Integer> counts = new HashMap<>();
+                    Map<String, Exception> failures = new LinkedHashMap<>();
+                    long start = System.nanoTime();
+                    try {
+                        getStrategy().countUsers(wikiIds, counts, failures);
+                    } finally {
+                        metrics.record(LimitsMetrics.USER_COUNT, start);
+                    }
+
+                    synchronized (this) {
+                        if (!recountDeltas.isEmpty() && attempt < MAX_RECOUNTS) {
+                            // The queries may or may not have seen the users saved meanwhile: counted again, since
+                            // adding their changes could count them twice
+                            continue;
+                        }
+                        // Still saved during the last recount: their changes are applied even if the queries have
+                        // already seen them, better to over-estimate the count until the next recount
+                        applyRecountDeltas(counts, failures);
+                        if (!failures.isEmpty()) {
+                            keepPreviousCounts(counts, failures);
+                        }
+                        countsPerWiki.clear();
+                        countsPerWiki.putAll(counts);
+                        count = sum(counts);
+                        seeded = true;
+                        counted = true;
+                    }
+                    logger.debug("User count [{}].", count);
+                    return;
+                }
+            } finally {
+                synchronized (this) {
+                    recountDeltas = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take into account that a user has been activated (or deactivated) in a wiki.
+     *
+     * @param wikiId the wiki holding the user
+     * @param delta 1 if the user has been activated, -1 if it has been deactivated
+     */
+    public synchronized void updateUserCount(String wikiId, int delta)
+    {
+        if (recountDeltas != null) {
+            recountDeltas.merge(wikiId, delta, Integer::sum);
+        }
+        // Before the seed, nothing else to update: the seed will count this user anyway
+        if (seeded) {
+            Integer wikiCount = countsPerWiki.get(wikiId);
+            int oldCount = wikiCount != null ? wikiCount : 0;
+            int newCount = Math.max(0, oldCount + delta);
+            countsPerWiki.put(wikiId, newCount);
+            count += newCount - oldCount;
+        }
+    }
+
+    /**
+     * Forget the users of a wiki that has been deleted.
+     *
+     * @param wikiId the deleted wiki
+     * @return the number of active users the wiki had, {@code 0} if the users have not been counted yet
+     * @since 2.2
+     */
+    public synchronized int removeWiki(String wikiId)
+    {
+        Integer wikiCount = countsPerWiki.remove(wikiId);
+        if (wikiCount != null) {
+            count -= wikiCount;
+            return wikiCount;
+        }
+        return 0;
+    }
+
+    private void seed() throws Exception
+    {
+        synchronized (recountLock) {
+            if (!counted) {
+                reconcile();
+            }
+        }
+    }
+
+    private void submitSeed()
+    {
+        if (seedSubmitted.compareAndSet(false, true)) {
+            backgroundExecutor.submit(this::seedInBackground);
+        }
+    }
+
+    private void seedInBackground()
+    {
+        try {
+            seed();
+        } catch (Exception e) {
+            logger.warn("Failed to count the users. Root cause: [{}].", e.getMessage());
+        } finally {
+            // A failed count is tried again by the next request
+            seedSubmitted.set(false);
+        }
+    }
+
+    private void reconcileInBackground()
     {
         try {
-            int count = 0;
-            for (String wikiId : wikiDescriptorManager.getAllIds()) {
-                count += getUserCountOnWiki(wikiId);
+            reconcile();
+        } catch (Exception e) {
+            logger.warn("Failed to reconcile the user counter with the database. Root cause: [{}].",
+                    e.getMessage());
+        }
+    }
+
+    private UserCountStrategy getStrategy()
+    {
+        String strategy = limitsConfiguration.getCounterStrategy();
+        if (CrossWikiUserCountStrategy.HINT.equals(strategy)) {
+            return crossWikiStrategy;
+        }
+        return perWikiStrategy;
+    }
+
+    private void applyRecountDeltas(Map<String, Integer> counts, Map<String, Exception> failures)
+    {
+        for (Map.Entry<String, Integer> delta : recountDeltas.entrySet()) {
+            // The wikis that could not be counted keep their previous counts, which already include the changes
+            if (!failures.containsKey(delta.getKey())) {
+                Integer wikiCount = counts.get(delta.getKey());
+                counts.put(delta.getKey(), Math.max(0, (wikiCount != null ? wikiCount : 0) + delta.getValue()));
             }
-            logger.debug("User count [{}].", count);
-            return count;
-        } catch (WikiManagerException | QueryException e) {
-            throw new Exception("Failed to get the user count.", e);
         }
     }
 
-    private int getUserCountOnWiki(String wikiId) throws QueryException
+    private void keepPreviousCounts(Map<String, Integer> counts, Map<String, Exception> failures) throws Exception
     {
-        Query query = queryManager.createQuery("SELECT COUNT(DISTINCT doc.fullName) FROM Document doc, "
-            + "doc.object(XWiki.XWikiUsers) AS obj WHERE doc.fullName NOT IN ("
-            + "SELECT doc.fullName FROM XWikiDocument doc, BaseObject objLimit, IntegerProperty propActive "
-            + "WHERE objLimit.name = doc.fullName AND propActive.id.id = objLimit.id AND propActive.id.name = 'active' "
-            + "AND propActive.value = 0)",
-                Query.XWQL).setWiki(wikiId);
-        List<Long> results = query.execute();
-        return results.get(0).intValue();
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            // The last known counts may be too old to be kept
+            Integer previousCount = counted ? countsPerWiki.get(failure.getKey()) : null;
+            if (previousCount == null) {
+                // Better to fail than to under-estimate the number of users
+                throw new Exception(String.format("Failed to get the user count of the wikis %s.",
+                        failures.keySet()), failure.getValue());
+            }
+            counts.put(failure.getKey(), previousCount);
+        }
+        logger.warn("Failed to count the users of the wikis {}, their previous counts are kept. Root cause: [{}].",
+                failures.keySet(), failures.values().iterator().next().toString());
+    }
+
+    private static int sum(Map<String, Integer> counts)
+    {
+        int sum = 0;
+        for (Integer wikiCount : counts.values()) {
+            sum += wikiCount;
+        }
+        return sum;
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keep the {@link UserCounter} and the {@link InactiveUsers} up to date when users are created, deleted, activated
+ * or deactivated, and give back the quota of the users that are deleted or deactivated.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named("LimitsApplication_UserCounterListener")
+@Singleton
+public class UserCounterListener implements EventListener
+{
+    private static final LocalDocumentReference USER_CLASS = new LocalDocumentReference("XWiki", "XWikiUsers");
+
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent(), new DocumentDeletedEvent(), new WikiDeletedEvent());
+
+    @Inject
+    private UserCounter userCounter;
+
+    @Inject
+    private InactiveUsers inactiveUsers;
+
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private PendingReservations pendingReservations;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @Override
+    public String getName()
+    {
+        return "XWiki Limits Application - User Counter";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof WikiDeletedEvent) {
+            String wiki = ((WikiDeletedEvent) event).getWikiId();
+            int wikiUserCount = userCounter.removeWiki(wiki);
+            inactiveUsers.removeWiki(wiki);
+            // Each instance forgets the units it has leased for the wiki
+            quotaManager.remove(QuotaManager.WIKI_USERS_PREFIX + wiki);
+            if (wikiUserCount > 0 && !remoteObservationManagerContext.isRemoteState()) {
+                quotaManager.release(QuotaManager.USERS, wikiUserCount);
+            }
+            return;
+        }
+
+        XWikiDocument document = (XWikiDocument) source;
+
+        // On deletion, the source is an empty document and the deleted one is the original document
+        boolean wasActive = isActiveUser(document.getOriginalDocument());
+        boolean isActive = isActiveUser(document);
+        // A deactivated user stops being inactive when it is activated or deleted
+        boolean isUser = isUser(document);
+        if (isUser || isUser(document.getOriginalDocument())) {
+            inactiveUsers.update(document.getDocumentReference(), isUser && !isActive);
+        }
+        if (wasActive != isActive) {
+            String wiki = document.getDocumentReference().getWikiReference().getName();
+            userCounter.updateUserCount(wiki, isActive ? 1 : -1);
+            if (isActive) {
+                // The units reserved before the save are used now
+                pendingReservations.confirm(document.getDocumentReference());
+            }
+            // The quota is shared by the cluster, so only the instance where the user has been removed gives it back
+            if (!isActive && !remoteObservationManagerContext.isRemoteState()) {
+                releaseQuotas(wiki);
+            }
+        }
+    }
+
+    private void releaseQuotas(String wiki)
+    {
+        boolean limitedWiki = limitsConfiguration.getWikiUserLimits().containsKey(wiki);
+        if (limitsConfiguration.isUserLimitSoft()) {
+            // The soft limits do not reserve the users, so there is nothing to give back: the quotas are counted
+            // again if the limits become hard
+            quotaManager.invalidate(QuotaManager.USERS);
+            if (limitedWiki) {
+                quotaManager.invalidate(QuotaManager.WIKI_USERS_PREFIX + wiki);
+            }
+        } else {
+            quotaManager.release(QuotaManager.USERS);
+            if (limitedWiki) {
+                quotaManager.release(QuotaManager.WIKI_USERS_PREFIX + wiki);
+            }
+        }
+    }
+
+    private boolean isUser(XWikiDocument document)
+    {
+        return document != null && document.getXObject(USER_CLASS) != null;
+    }
+
+    private boolean isActiveUser(XWikiDocument document)
+    {
+        if (document == null) {
+            return false;
+        }
+        BaseObject object = document.getXObject(USER_CLASS);
+        return object != null && object.getIntValue("active", 1) == 1;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.contrib.limits.internal.soft.SoftLimitVerifier;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Let a bulk import of users skip the check of the user limit on each save, and verify the limit once at the end of
+ * the import instead. The import mode only concerns the execution context in which it has been started (the thread
+ * of the import), the other saves are still checked.
+ * <p>
+ * The imported users over a limit are handled by the {@link SoftLimitVerifier}, even when the limit is hard: they are
+ * flagged, a {@link org.xwiki.contrib.limits.event.LimitExceededEvent} is fired for each of them and, if the
+ * configuration asks for it, they are deactivated.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = UserImportMode.class)
+@Singleton
+public class UserImportMode
+{
+    private static final String PROPERTY = "limits.userImportMode";
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private UserCounter userCounter;
+
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private SoftLimitVerifier softLimitVerifier;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Start the import mode in the current execution context.
+     */
+    public void start()
+    {
+        ExecutionContext context = execution.getContext();
+        if (context != null && context.getProperty(PROPERTY) == null) {
+            context.setProperty(PROPERTY, Collections.synchronizedList(new ArrayList<DocumentReference>()));
+        }
+    }
+
+    /**
+     * @return {@code true} if the import mode has been started in the current execution context
+     */
+    public boolean isStarted()
+    {
+        ExecutionContext context = execution.getContext();
+        return context != null && context.getProperty(PROPERTY) != null;
+    }
+
+    /**
+     * Take into account that a user has been created or activated without being checked, because the import mode is
+     * started in the current execution context.
+     *
+     * @param user the reference of the user
+     */
+    public void addUser(DocumentReference user)
+    {
+        List<DocumentReference> users = getUsers(execution.getContext());
+        if (users != null) {
+            users.add(user);
+        }
+    }
+
+    /**
+     * Stop the import mode in the current execution context, recount the users and verify the user limit and the
+     * user limits of the wikis.
+     *
+     * @return {@code true} if the user limits are respected after the import
+     * @throws Exception if the users cannot be counted
+     */
+    public boolean stop() throws Exception
+    {
+        ExecutionContext context = execution.getContext();
+        List<DocumentReference> users = getUsers(context);
+        if (users == null) {
+            return true;
+        }
+        context.removeProperty(PROPERTY);
+
+        // The imported users have not been reserved in the quotas, so both counts are corrected
+        userCounter.reconcile();
+        quotaManager.reset(QuotaManager.USERS, userCounter.getUserCount());
+        for (String wiki : limitsConfiguration.getWikiUserLimits().keySet()) {
+            quotaManager.reset(QuotaManager.WIKI_USERS_PREFIX + wiki, userCounter.getUserCount(wiki));
+        }
+
+        boolean respected;
+        synchronized (users) {
+            respected = softLimitVerifier.verifyUncheckedUsers(new ArrayList<>(users));
+        }
+        if (!respected) {
+            logger.warn("The import of [{}] users has exceeded the user limits.", users.size());
+        }
+        return respected;
+    }
+
+    private List<DocumentReference> getUsers(ExecutionContext context)
+    {
+        return context != null ? (List<DocumentReference>) context.getProperty(PROPERTY) : null;
+    }
+}
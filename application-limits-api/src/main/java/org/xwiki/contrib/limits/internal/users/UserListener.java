@@ -19,8 +19,11 @@
  */
 package org.xwiki.contrib.limits.internal.users;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -32,6 +35,11 @@ import org.xwiki.bridge.event.DocumentCreatingEvent;
 import org.xwiki.bridge.event.DocumentUpdatingEvent;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.contrib.limits.internal.soft.SoftLimitVerifier;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.CancelableEvent;
@@ -53,12 +61,39 @@ public class UserListener implements EventListener
 
     private static final String ACTIVE = "active";
 
+    private static final List<Event> EVENTS =
+            Arrays.<Event>asList(new DocumentCreatingEvent(), new DocumentUpdatingEvent());
+
+    /**
+     * The user class of each wiki. Looking up an object with an absolute class reference avoids resolving the
+     * reference on each save.
+     */
+    private final Map<String, DocumentReference> userClasses = new ConcurrentHashMap<>();
+
     @Inject
     private UserCounter userCounter;
 
     @Inject
     private LimitsConfiguration limitConfiguration;
 
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private PendingReservations pendingReservations;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Inject
+    private UserImportMode userImportMode;
+
+    @Inject
+    private UserSeatReservation userSeatReservation;
+
+    @Inject
+    private SoftLimitVerifier softLimitVerifier;
+
     @Inject
     private Logger logger;
 
@@ -71,7 +106,7 @@ public class UserListener implements EventListener
     @Override
     public List<Event> getEvents()
     {
-        return Arrays.asList(new DocumentCreatingEvent(), new DocumentUpdatingEvent());
+        return EVENTS;
     }
 
     @Override
@@ -79,55 +114,139 @@ public class UserListener implements EventListener
     {
         XWikiDocument document = (XWikiDocument) source;
 
-        // If there is no user object on the page, do nothing
-        if (document.getXObject(USER_CLASS) == null) {
+        // This listener receives every save of the farm: most documents have no user object, so do nothing
+        DocumentReference userClass = getUserClass(document);
+        BaseObject userObject = document.getXObject(userClass);
+        if (userObject == null) {
             return;
         }
 
         // If the event is not about activating a user (either by creating a new user or by changing the
         // "active" field of an existing user), we don't care (it is allowed to save some changes on existing users).
-        if (!isActivatingUser(document)) {
+        if (!isActive(userObject) || isOldDocumentActive(document, userClass)) {
             return;
         }
 
+        // The limit is verified once at the end of the import
+        if (userImportMode.isStarted()) {
+            userImportMode.addUser(document.getDocumentReference());
+            return;
+        }
+
+        long start = System.nanoTime();
         try {
-            long userCount = userCounter.getUserCount();
-            long userLimit = limitConfiguration.getTotalNumberOfUsersLimit();
-            if (userCount >= userLimit) {
-                logger.warn("Forbid the creation of a new user [{}] because the user limit has been reached [{}/{}].",
-                        document.getDocumentReference(), userCount, userLimit);
-                if (event instanceof CancelableEvent) {
-                    CancelableEvent cancelableEvent = (CancelableEvent) event;
-                    cancelableEvent.cancel("The user limit has been reached.");
-                } else {
-                    // Should never happen
-                    logger.error("Failed to cancel the event [{}].", event);
+            String wiki = document.getDocumentReference().getWikiReference().getName();
+            Integer wikiUserLimit = limitConfiguration.getWikiUserLimits().get(wiki);
+            if (limitConfiguration.isUserLimitSoft()) {
+                checkSoftLimits(event, document, wiki, wikiUserLimit);
+                return;
+            }
+
+            // The checks and the reservations of the new user are atomic, even across the nodes of a cluster.
+            // Only the users of the affected wiki are needed for its own limit
+            List<String> reservedQuotas = new ArrayList<>(2);
+            String wikiQuota = QuotaManager.WIKI_USERS_PREFIX + wiki;
+            if (wikiUserLimit != null) {
+                // Some seats may have been reserved for this user already
+                if (!userSeatReservation.consume(wikiQuota) && !quotaManager.tryAcquire(wikiQuota, wikiUserLimit,
+                    () -> (long) userCounter.getUserCount(wiki))) {
+                    cancel(event, document, String.format("The user limit of the wiki [%s] has been reached.", wiki),
+                            wikiUserLimit);
+                    return;
                 }
+                reservedQuotas.add(wikiQuota);
             }
+
+            if (!userSeatReservation.consume(QuotaManager.USERS)) {
+                long userLimit = limitConfiguration.getTotalNumberOfUsersLimit();
+                if (!quotaManager.tryAcquire(QuotaManager.USERS, userLimit,
+                    () -> (long) userCounter.getUserCount())) {
+                    if (wikiUserLimit != null) {
+                        quotaManager.release(wikiQuota);
+                    }
+                    cancel(event, document, "The user limit has been reached.", userLimit);
+                    return;
+                }
+            }
+            reservedQuotas.add(QuotaManager.USERS);
+
+            // The save can still be cancelled by another listener or fail: the units are given back unless the
+            // user is saved
+            pendingReservations.add(document.getDocumentReference(), reservedQuotas);
         } catch (Exception e) {
             logger.error("Failed to limit the number of users", e);
+        } finally {
+            metrics.record(LimitsMetrics.USER_CHECK, start);
+        }
+    }
+
+    /**
+     * Decide from the cached counts, without ever counting: the save is only cancelled if a limit has already been
+     * reached, otherwise the exact count is verified in the background once the user is saved.
+     */
+    private void checkSoftLimits(Event event, XWikiDocument document, String wiki, Integer wikiUserLimit)
+    {
+        if (wikiUserLimit != null) {
+            Integer wikiUserCount = userCounter.getCachedUserCount(wiki);
+            if (wikiUserCount != null && wikiUserCount >= wikiUserLimit) {
+                cancel(event, document, String.format("The user limit of the wiki [%s] has been reached.", wiki),
+                        wikiUserLimit);
+                return;
+            }
+        }
+
+        long userLimit = limitConfiguration.getTotalNumberOfUsersLimit();
+        Integer userCount = userCounter.getCachedUserCount();
+        if (userCount != null && userCount >= userLimit) {
+            cancel(event, document, "The user limit has been reached.", userLimit);
+        } else {
+            softLimitVerifier.expectUser(document.getDocumentReference());
+            // The user is not reserved in the quotas, which are counted again if the limits become hard
+            quotaManager.invalidate(QuotaManager.USERS);
+            if (wikiUserLimit != null) {
+                quotaManager.invalidate(QuotaManager.WIKI_USERS_PREFIX + wiki);
+            }
         }
     }
 
-    private boolean isActivatingUser(XWikiDocument document)
+    private void cancel(Event event, XWikiDocument document, String message, long limit)
     {
-        return isUserActive(document) && !isOldDocumentActive(document);
+        metrics.increment(LimitsMetrics.USER_REJECTIONS);
+        logger.warn("Forbid the creation of a new user [{}] because the user limit has been reached [{}].",
+                document.getDocumentReference(), limit);
+        if (event instanceof CancelableEvent) {
+            CancelableEvent cancelableEvent = (CancelableEvent) event;
+            cancelableEvent.cancel(message);
+        } else {
+            // Should never happen
+            logger.error("Failed to cancel the event [{}].", event);
+        }
+    }
+
+    private DocumentReference getUserClass(XWikiDocument document)
+    {
+        String wiki = document.getDocumentReference().getWikiReference().getName();
+        DocumentReference userClass = userClasses.get(wiki);
+        if (userClass == null) {
+            userClass = new DocumentReference(USER_CLASS, document.getDocumentReference().getWikiReference());
+            userClasses.put(wiki, userClass);
+        }
+        return userClass;
     }
 
-    private boolean isUserActive(XWikiDocument document)
+    private boolean isActive(BaseObject userObject)
     {
-        BaseObject object = document.getXObject(USER_CLASS);
-        return object.getIntValue(ACTIVE, 1) == 1;
+        return userObject.getIntValue(ACTIVE, 1) == 1;
     }
 
-    private boolean isOldDocumentActive(XWikiDocument document)
+    private boolean isOldDocumentActive(XWikiDocument document, DocumentReference userClass)
     {
         XWikiDocument originalDoc = document.getOriginalDocument();
         if (originalDoc == null) {
             // Should never happen
             return false;
         }
-        BaseObject originalObj = originalDoc.getXObject(USER_CLASS);
-        return originalObj != null && originalObj.getIntValue(ACTIVE, 1) == 1;
+        BaseObject originalObj = originalDoc.getXObject(userClass);
+        return originalObj != null && isActive(originalObj);
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Reserve the seats of a batch of users at once, so that the users of the batch are not checked one by one against
+ * the user limits. The seats are reserved for the execution context of the caller (the thread of the import) and are
+ * consumed by {@link UserListener} when the users of this context are created or activated.
+ * <p>
+ * A batch that does not fit below the user limit of the farm, or below the user limit of the wiki of its users, is
+ * rejected as a whole, before any of its users is created. The users created beyond the reserved seats are checked as
+ * usual. The seats that have not been used are given back by {@link #release()}, or by
+ * {@link UserSeatReservationListener} at the end of the request or job that has reserved them. A reservation that has
+ * not been used for {@value #EXPIRATION} milliseconds is given back too, since an execution context that is neither a
+ * request nor a job (a scheduler job, a REST call) may never end this way.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = UserSeatReservation.class)
+@Singleton
+public class UserSeatReservation implements Initializable
+{
+    /**
+     * Time after which a reservation that has not been used is given back, in milliseconds.
+     */
+    static final long EXPIRATION = 10 * 60 * 1000L;
+
+    private static final String PROPERTY = "limits.reservedUserSeats";
+
+    /**
+     * Time between two checks of the expired reservations, in minutes.
+     */
+    private static final long CHECK_PERIOD = 1;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private UserCounter userCounter;
+
+    @Inject
+    private LimitsConfiguration limitsConfiguration;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    /**
+     * The reservations that have not been released yet, whatever their execution context.
+     */
+    private final Set<Reservation> reservations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The seats reserved by an execution context, for each quota.
+     */
+    private static final class Reservation
+    {
+        private final Map<String, AtomicInteger> seats = new ConcurrentHashMap<>();
+
+        private volatile long lastUse = System.currentTimeMillis();
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        backgroundExecutor.scheduleWithFixedDelay(() -> releaseExpired(System.currentTimeMillis()), CHECK_PERIOD,
+                CHECK_PERIOD, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Reserve some seats for the users that the current execution context is going to create in the current wiki.
+     *
+     * @param seats the number of seats to reserve
+     * @return {@code true} if the seats have been reserved, {@code false} if they would exceed a user limit (in this
+     * case no seat is reserved)
+     * @throws Exception if there is no execution context or if the users cannot be counted
+     */
+    public boolean reserve(int seats) throws Exception
+    {
+        return reserve(seats, xcontextProvider.get().getWikiId());
+    }
+
+    /**
+     * Reserve some seats for the users that the current execution context is going to create in the given wiki.
+     *
+     * @param seats the number of seats to reserve
+     * @param wiki the wiki of the users
+     * @return {@code true} if the seats have been reserved, {@code false} if they would exceed the user limit of the
+     * farm or of the wiki (in this case no seat is reserved)
+     * @throws Exception if there is no execution context or if the users cannot be counted
+     */
+    public boolean reserve(int seats, String wiki) throws Exception
+    {
+        ExecutionContext context = execution.getContext();
+        if (context == null) {
+            throw new Exception("Failed to reserve some user seats without execution context.");
+        }
+        if (seats <= 0) {
+            return true;
+        }
+
+        Integer wikiUserLimit = limitsConfiguration.getWikiUserLimits().get(wiki);
+        String wikiQuota = QuotaManager.WIKI_USERS_PREFIX + wiki;
+        if (wikiUserLimit != null && !quotaManager.tryAcquire(wikiQuota, seats, wikiUserLimit,
+            () -> (long) userCounter.getUserCount(wiki))) {
+            return false;
+        }
+        if (!quotaManager.tryAcquire(QuotaManager.USERS, seats, limitsConfiguration.getTotalNumberOfUsersLimit(),
+            () -> (long) userCounter.getUserCount())) {
+            if (wikiUserLimit != null) {
+                quotaManager.release(wikiQuota, seats);
+            }
+            return false;
+        }
+
+        Reservation reservation = (Reservation) context.getProperty(PROPERTY);
+        if (reservation == null) {
+            reservation = new Reservation();
+            context.setProperty(PROPERTY, reservation);
+            reservations.add(reservation);
+        }
+        reservation.lastUse = System.currentTimeMillis();
+        addSeats(reservation, QuotaManager.USERS, seats);
+        if (wikiUserLimit != null) {
+            addSeats(reservation, wikiQuota, seats);
+        }
+        return true;
+    }
+
+    /**
+     * Use one of the seats of a quota reserved by the current execution context.
+     *
+     * @param quota the quota of the user that is created ({@link QuotaManager#USERS} or the quota of its wiki)
+     * @return {@code true} if a reserved seat has been used, {@code false} if there is no reserved seat left
+     */
+    public boolean consume(String quota)
+    {
+        ExecutionContext context = execution.getContext();
+        Reservation reservation = context != null ? (Reservation) context.getProperty(PROPERTY) : null;
+        AtomicInteger reservedSeats = reservation != null ? reservation.seats.get(quota) : null;
+        if (reservedSeats != null) {
+            int available;
+            while ((available = reservedSeats.get()) > 0) {
+                if (reservedSeats.compareAndSet(available, available - 1)) {
+                    reservation.lastUse = System.currentTimeMillis();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * End the reservation of the current execution context, whether the batch has been created or has failed: the
+     * seats that have not been used are given back, the users already created keep their seats until they are
+     * deleted.
+     *
+     * @return the number of seats of the user limit of the farm given back
+     */
+    public int release()
+    {
+        ExecutionContext context = execution.getContext();
+        Reservation reservation = context != null ? (Reservation) context.getProperty(PROPERTY) : null;
+        if (reservation == null) {
+            return 0;
+        }
+        context.removeProperty(PROPERTY);
+        return release(reservation);
+    }
+
+    /**
+     * Give back the seats of the reservations that have not been used in time. Package-private to allow the test class
+     * to expire the reservations without waiting.
+     *
+     * @param now the current time, in milliseconds
+     */
+    void releaseExpired(long now)
+    {
+        for (Reservation reservation : reservations) {
+            if (now - reservation.lastUse >= EXPIRATION) {
+                // The execution context may still use the reservation: it finds no seat left
+                release(reservation);
+            }
+        }
+    }
+
+    private int release(Reservation reservation)
+    {
+        reservations.remove(reservation);
+        int unusedSeats = 0;
+        for (Map.Entry<String, AtomicInteger> entry : reservation.seats.entrySet()) {
+            // Given back only once, even when the reservation expires while it is released
+            int unusedQuotaSeats = entry.getValue().getAndSet(0);
+            if (unusedQuotaSeats > 0) {
+                quotaManager.release(entry.getKey(), unusedQuotaSeats);
+            }
+            if (QuotaManager.USERS.equals(entry.getKey())) {
+                unusedSeats = unusedQuotaSeats;
+            }
+        }
+        return unusedSeats;
+    }
+
+    private static void addSeats(Reservation reservation, String quota, int seats)
+    {
+        reservation.seats.computeIfAbsent(quota, name -> new AtomicInteger()).addAndGet(seats);
+    }
+}
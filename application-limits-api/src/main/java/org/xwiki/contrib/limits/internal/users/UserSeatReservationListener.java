@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.ActionExecutedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.event.JobFinishedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Give back the user seats that a request or a job has reserved and not used, when the script that has reserved them
+ * has not released them itself.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named("LimitsApplication_UserSeatReservationListener")
+@Singleton
+public class UserSeatReservationListener implements EventListener
+{
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new ActionExecutedEvent(), new JobFinishedEvent());
+
+    @Inject
+    private UserSeatReservation userSeatReservation;
+
+    @Override
+    public String getName()
+    {
+        return "XWiki Limits Application - User Seat Reservation";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Notified in the thread, so with the execution context, of the request or the job that has ended
+        userSeatReservation.release();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.wikis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.usage.UsageSnapshotStore;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+
+/**
+ * Count the wikis of the farm. The count is computed from the wiki descriptors the first time it is needed, then it
+ * is kept up to date by {@link WikiListener} and periodically reconciled with the descriptors. When the XWiki instance
+ * restarts, the cached count starts from the last known count kept by the {@link UsageSnapshotStore}, but the limit is
+ * only enforced with a count taken from the descriptors.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component(roles = WikiCounter.class)
+@Singleton
+public class WikiCounter implements Initializable
+{
+    /**
+     * Time between two reconciliations of the counter with the wiki descriptors, in minutes.
+     */
+    private static final long RECONCILIATION_PERIOD = 60;
+
+    /**
+     * Number of times the wikis are counted again when some of them are created or deleted during the recount.
+     */
+    private static final int MAX_RECOUNTS = 3;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    private BackgroundExecutor backgroundExecutor;
+
+    @Inject
+    private UsageSnapshotStore usageSnapshotStore;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Whether a background count has been submitted and is not done yet, so that the requests for the cached count
+     * don't submit another one each.
+     */
+    private final AtomicBoolean seedSubmitted = new AtomicBoolean();
+
+    private volatile int count;
+
+    /**
+     * Number of updates of the count since the XWiki instance has started, to detect the updates received during a
+     * recount. Guarded by "this".
+     */
+    private long updates;
+
+    /**
+     * Sum of the updates of the count since the XWiki instance has started. Guarded by "this".
+     */
+    private int deltas;
+
+    /**
+     * Whether the count is known, at least from the last known usage.
+     */
+    private volatile boolean seeded;
+
+    /**
+     * Whether the wikis have been counted since the XWiki instance has started.
+     */
+    private volatile boolean counted;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        // Start from the last known count, only used to display the usage until the wikis are counted in the background
+        int lastKnownCount = usageSnapshotStore.getWikiCount();
+        if (lastKnownCount > 0) {
+            synchronized (this) {
+                count = lastKnownCount;
+                seeded = true;
+            }
+            backgroundExecutor.submit(this::reconcileInBackground);
+        }
+
+        backgroundExecutor.scheduleWithFixedDelay(this::reconcileInBackground, RECONCILIATION_PERIOD,
+                RECONCILIATION_PERIOD, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return the number of wikis in the farm (only the first call is costly)
+     * @throws Exception if the counter cannot be initialized
+     */
+    public int getWikiCount() throws Exception
+    {
+        if (!counted) {
+            seed();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of wikis without ever counting them in the current thread. Until the wikis are counted, the last
+     * known count is returned: it must not be used to enforce a limit.
+     *
+     * @return the number of wikis in the farm, or {@code null} if they have not been counted yet (they are then
+     * counted in the background)
+     */
+    public Integer getCachedWikiCount()
+    {
+        if (!seeded) {
+            submitSeed();
+            return null;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of wikis in the farm, or {@code null} if they have not been counted since the XWiki instance
+     * has started (and they are not counted by this call)
+     */
+    public Integer getKnownWikiCount()
+    {
+        return counted ? count : null;
+    }
+
+    /**
+     * Recompute the number of wikis from the wiki descriptors.
+     *
+     * @throws Exception if the wiki descriptors cannot be read
+     */
+    public void reconcile() throws Exception
+    {
+        for (int attempt = 1;; attempt++) {
+            long previousUpdates;
+            int previousDeltas;
+            synchronized (this) {
+                previousUpdates = updates;
+                previousDeltas = deltas;
+            }
+            int newCount;
+            try {
+                newCount = wikiDescriptorManager.getAllIds().size();
+            } catch (WikiManagerException e) {
+                throw new Exception("Failed to get the number of wikis.", e);
+            }
+
+            synchronized (this) {
+                if (updates != previousUpdates && attempt < MAX_RECOUNTS) {
+                    // The descriptors may or may not include the wikis created or deleted meanwhile
+                    continue;
+                }
+                // Still updated during the last recount: the changes are applied even if the descriptors already
+                // include them, which over-estimates the count of the created wikis until the next recount
+                count = Math.max(0, newCount + deltas - previousDeltas);
+                seeded = true;
+                counted = true;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Take into account that a wiki has been created (or deleted).
+     *
+     * @param delta 1 if a wiki has been created, -1 if a wiki has been deleted
+     */
+    public synchronized void updateWikiCount(int delta)
+    {
+        updates++;
+        deltas += delta;
+        // Before the seed, nothing else to update: the seed will count this wiki anyway
+        if (seeded) {
+            count = Math.max(0, count + delta);
+        }
+    }
+
+    private synchronized void seed() throws Exception
+    {
+        if (!counted) {
+            reconcile();
+        }
+    }
+
+    private void submitSeed()
+    {
+        if (seedSubmitted.compareAndSet(false, true)) {
+            backgroundExecutor.submit(this::seedInBackground);
+        }
+    }
+
+    private void seedInBackground()
+    {
+        try {
+            seed();
+        } catch (Exception e) {
+            logger.warn("Failed to count the wikis. Root cause: [{}].", e.getMessage());
+        } finally {
+            // A failed count is tried again by the next request
+            seedSubmitted.set(false);
+        }
+    }
+
+    private void reconcileInBackground()
+    {
+        try {
+            reconcile();
+        } catch (Exception e) {
+            logger.warn("Failed to reconcile the wiki counter with the wiki descriptors. Root cause: [{}].",
+                    e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.wikis;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.WikiCreatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+/**
+ * Keep the {@link WikiCounter} up to date when wikis are created or deleted, and give back the quota of the wikis
+ * that are deleted.
+ *
+ * @version $Id: $
+ * @since 2.2
+ */
+@Component
+@Named("LimitsApplication_WikiListener")
+@Singleton
+public class WikiListener implements EventListener
+{
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new WikiCreatedEvent(), new WikiDeletedEvent());
+
+    @Inject
+    private WikiCounter wikiCounter;
+
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private PendingReservations pendingReservations;
+
+    @Inject
+    private RemoteObservationManagerContext remoteObservationManagerContext;
+
+    @Override
+    public String getName()
+    {
+        return "XWiki Limits Application - Wiki Listener";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof WikiCreatedEvent) {
+            wikiCounter.updateWikiCount(1);
+            // The unit reserved before the creation is used now
+            pendingReservations.confirm(new WikiReference(((WikiCreatedEvent) event).getWikiId()));
+            return;
+        }
+
+        wikiCounter.updateWikiCount(-1);
+        // The quota is shared by the cluster, so only the instance where the wiki has been deleted gives it back
+        if (!remoteObservationManagerContext.isRemoteState()) {
+            quotaManager.release(QuotaManager.WIKIS);
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package org.xwiki.contrib.limits.internal.wikis;
 
+import java.util.Collections;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -26,11 +28,13 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.platform.wiki.creationjob.WikiCreationException;
 import org.xwiki.platform.wiki.creationjob.WikiCreationRequest;
 import org.xwiki.platform.wiki.creationjob.WikiCreationStep;
-import org.xwiki.wiki.descriptor.WikiDescriptorManager;
-import org.xwiki.wiki.manager.WikiManagerException;
 
 /**
  * Add a step to the wiki creation job that verifies if the number of wikis is reached.
@@ -43,23 +47,42 @@ import org.xwiki.wiki.manager.WikiManagerException;
 public class WikisLimitStep implements WikiCreationStep
 {
     @Inject
-    private WikiDescriptorManager wikiDescriptorManager;
+    private WikiCounter wikiCounter;
 
     @Inject
     private LimitsConfiguration configuration;
 
+    @Inject
+    private QuotaManager quotaManager;
+
+    @Inject
+    private PendingReservations pendingReservations;
+
+    @Inject
+    private LimitsMetrics metrics;
+
     @Override
     public void execute(WikiCreationRequest request) throws WikiCreationException
     {
+        int limit = configuration.getWikisNumberLimit();
+        boolean acquired;
+        long start = System.nanoTime();
         try {
-            int limit = configuration.getWikisNumberLimit();
-            if (wikiDescriptorManager.getAllIds().size() >= limit) {
-                throw new WikiCreationException(
-                        String.format("The number of wikis has reached the limit [%d].", limit));
-            }
-        } catch (WikiManagerException e) {
+            // The check and the reservation of the new wiki are atomic, even across the nodes of a cluster
+            acquired = quotaManager.tryAcquire(QuotaManager.WIKIS, limit,
+                () -> (long) wikiCounter.getWikiCount());
+        } catch (Exception e) {
             throw new WikiCreationException("Failed to get the number of wikis.", e);
+        } finally {
+            metrics.record(LimitsMetrics.WIKI_CHECK, start);
+        }
+        if (!acquired) {
+            metrics.increment(LimitsMetrics.WIKI_REJECTIONS);
+            throw new WikiCreationException(
+                    String.format("The number of wikis has reached the limit [%d].", limit));
         }
+        // The next steps can still fail: the unit is given back unless the wiki is created
+        pendingReservations.add(new WikiReference(request.getWikiId()), Collections.singletonList(QuotaManager.WIKIS));
     }
 
     @Override
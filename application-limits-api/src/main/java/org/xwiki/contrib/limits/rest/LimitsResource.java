@@ -19,27 +19,42 @@
  */
 package org.xwiki.contrib.limits.rest;
 
-import java.io.StringWriter;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.contrib.limits.internal.usage.UsageCollector;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.rest.XWikiRestComponent;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.xpn.xwiki.XWikiContext;
 
 /**
+ * The limits are rendered once for each version of the configuration and served with an ETag, so polling this
+ * resource costs no serialization.
+ *
  * @version $Id: $
  */
 @Component
@@ -51,14 +66,82 @@ public class LimitsResource implements XWikiRestComponent
     @Inject
     private LimitsConfiguration configuration;
 
+    @Inject
+    private UsageCollector usageCollector;
+
+    @Inject
+    private LimitsMetrics metrics;
+
+    @Inject
+    private ContextualAuthorizationManager authorizationManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
     @Inject
     private Logger logger;
 
+    /**
+     * Writers are immutable and thread-safe, unlike their configuration.
+     */
+    private final ObjectWriter compactWriter = new ObjectMapper().writerFor(LimitsRepresentation.class);
+
+    private final ObjectWriter prettyWriter = compactWriter.withDefaultPrettyPrinter();
+
+    private final ObjectWriter usageWriter = new ObjectMapper().writer();
+
+    private volatile RenderedLimits renderedLimits;
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getLimits(@QueryParam("pretty") @DefaultValue("true") boolean pretty,
+            @Context Request request) throws Exception
+    {
+        RenderedLimits limits = getRenderedLimits();
+        byte[] content = pretty ? limits.pretty : limits.compact;
+        EntityTag entityTag = pretty ? limits.prettyTag : limits.compactTag;
+        if (entityTag == null) {
+            // The configuration has no version (its file could not be read), so it cannot be identified by a tag
+            return Response.ok(content).build();
+        }
+        // Handles the lists of tags and the weak tags of If-None-Match
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(entityTag);
+        if (notModified != null) {
+            return notModified.tag(entityTag).build();
+        }
+        return Response.ok(content).tag(entityTag).build();
+    }
+
+    /**
+     * The usage is collected from the counters and may be as old as the maximum staleness allowed by the
+     * configuration, so calling this resource never counts all the users.
+     */
     @GET
+    @Path("/usage")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getLimits() throws Exception
+    public Response getUsage(@QueryParam("pretty") @DefaultValue("true") boolean pretty) throws Exception
+    {
+        Response denied = checkAdminAccess();
+        if (denied != null) {
+            return denied;
+        }
+        ObjectWriter writer = pretty ? usageWriter.withDefaultPrettyPrinter() : usageWriter;
+        return Response.ok(writer.writeValueAsBytes(usageCollector.getUsage())).build();
+    }
+
+    /**
+     * The metrics of the enforcement of the limits, in the Prometheus text format.
+     */
+    @GET
+    @Path("/metrics")
+    @Produces("text/plain; version=0.0.4")
+    public Response getMetrics()
     {
-        return Response.ok().entity(toJson(configuration)).build();
+        Response denied = checkAdminAccess();
+        if (denied != null) {
+            return denied;
+        }
+        return Response.ok(metrics.toPrometheus()).build();
     }
 
     @POST
@@ -73,12 +156,103 @@ public class LimitsResource implements XWikiRestComponent
         }
     }
 
-    private String toJson(Object object) throws Exception
+    /**
+     * The usage and the metrics describe the whole farm, so they are reserved to the administrators.
+     *
+     * @return the response to send when the current user is not allowed, {@code null} otherwise
+     */
+    private Response checkAdminAccess()
+    {
+        if (authorizationManager.hasAccess(Right.ADMIN) || authorizationManager.hasAccess(Right.PROGRAM)) {
+            return null;
+        }
+        // Unauthorized asks the guest to authenticate, while an authenticated user is simply not allowed
+        boolean guest = xcontextProvider.get().getUserReference() == null;
+        Response.Status status = guest ? Response.Status.UNAUTHORIZED : Response.Status.FORBIDDEN;
+        return Response.status(status).build();
+    }
+
+    private RenderedLimits getRenderedLimits() throws Exception
+    {
+        RenderedLimits limits = renderedLimits;
+        String version = configuration.getVersion();
+        if (limits == null || version == null || !version.equals(limits.version)) {
+            LimitsRepresentation representation = new LimitsRepresentation(configuration);
+            limits = new RenderedLimits(version, compactWriter.writeValueAsBytes(representation),
+                    prettyWriter.writeValueAsBytes(representation));
+            // Don't keep a rendering that may mix two versions of the configuration
+            if (version != null && version.equals(configuration.getVersion())) {
+                renderedLimits = limits;
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * The limits exposed by this resource. The configuration has many more getters (counters, quotas, etc...) that
+     * are not part of this resource.
+     */
+    private static final class LimitsRepresentation
+    {
+        private final int totalNumberOfUsersLimit;
+
+        private final int wikisNumberLimit;
+
+        private final Map<DocumentReference, Number> groupsLimits;
+
+        private final Map<String, Object> customLimits;
+
+        LimitsRepresentation(LimitsConfiguration configuration)
+        {
+            this.totalNumberOfUsersLimit = configuration.getTotalNumberOfUsersLimit();
+            this.wikisNumberLimit = configuration.getWikisNumberLimit();
+            this.groupsLimits = configuration.getGroupsLimits();
+            this.customLimits = configuration.getCustomLimits();
+        }
+
+        public int getTotalNumberOfUsersLimit()
+        {
+            return totalNumberOfUsersLimit;
+        }
+
+        public int getWikisNumberLimit()
+        {
+            return wikisNumberLimit;
+        }
+
+        public Map<DocumentReference, Number> getGroupsLimits()
+        {
+            return groupsLimits;
+        }
+
+        public Map<String, Object> getCustomLimits()
+        {
+            return customLimits;
+        }
+    }
+
+    /**
+     * The limits rendered for a given version of the configuration.
+     */
+    private static final class RenderedLimits
     {
-        StringWriter stringWriter = new StringWriter();
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
-        objectMapper.writeValue(stringWriter, object);
-        return stringWriter.toString();
+        private final String version;
+
+        private final byte[] compact;
+
+        private final byte[] pretty;
+
+        private final EntityTag compactTag;
+
+        private final EntityTag prettyTag;
+
+        RenderedLimits(String version, byte[] compact, byte[] pretty)
+        {
+            this.version = version;
+            this.compact = compact;
+            this.pretty = pretty;
+            this.compactTag = version != null ? new EntityTag(version + "-compact") : null;
+            this.prettyTag = version != null ? new EntityTag(version + "-pretty") : null;
+        }
     }
 }
@@ -20,6 +20,7 @@
 package org.xwiki.contrib.limits.script;
 
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,9 +28,15 @@ import javax.inject.Singleton;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.soft.SoftLimitVerifier;
 import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.contrib.limits.internal.users.UserImportMode;
+import org.xwiki.contrib.limits.internal.users.UserSeatReservation;
+import org.xwiki.contrib.limits.internal.wikis.WikiCounter;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
 /**
  * Script services to get the current limits and some information to handle them.
@@ -47,6 +54,21 @@ public class LimitsScriptServices implements ScriptService
     @Inject
     private UserCounter userCounter;
 
+    @Inject
+    private WikiCounter wikiCounter;
+
+    @Inject
+    private UserImportMode userImportMode;
+
+    @Inject
+    private UserSeatReservation userSeatReservation;
+
+    @Inject
+    private SoftLimitVerifier softLimitVerifier;
+
+    @Inject
+    private ContextualAuthorizationManager authorizationManager;
+
     /**
      * @return the maximum number of users that the XWiki instance is allowed to handle
      */
@@ -64,7 +86,7 @@ public class LimitsScriptServices implements ScriptService
     }
 
     /**
-     * @return the total number of users in the wiki (this operation is costly)
+     * @return the total number of users in the wiki (only the first call is costly, the count is cached then)
      * @throws Exception if somethign bad happen
      */
     public int getUserCount() throws Exception
@@ -72,6 +94,38 @@ public class LimitsScriptServices implements ScriptService
         return userCounter.getUserCount();
     }
 
+    /**
+     * @return an unmodifiable map of wiki identifiers associated to the number of users that these wikis are allowed
+     * to contain
+     * @since 2.2
+     */
+    public Map<String, Integer> getWikiUserLimits()
+    {
+        return limitsConfiguration.getWikiUserLimits();
+    }
+
+    /**
+     * @return the number of users of each wiki (only the first call is costly, the counts are cached then)
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public Map<String, Integer> getUserCounts() throws Exception
+    {
+        // Make sure the users have been counted
+        userCounter.getUserCount();
+        return userCounter.getCachedUserCounts();
+    }
+
+    /**
+     * @return the total number of wikis (only the first call is costly, the count is cached then)
+     * @throws Exception if something bad happens
+     * @since 2.2
+     */
+    public int getWikiCount() throws Exception
+    {
+        return wikiCounter.getWikiCount();
+    }
+
     /**
      * @return an unmodifiable map of group references associated to the number of users that groups are allowed
      * to contain
@@ -81,6 +135,24 @@ public class LimitsScriptServices implements ScriptService
         return limitsConfiguration.getGroupsLimits();
     }
 
+    /**
+     * @return the users that have been accepted over a soft user limit, as found by the background verification
+     * @since 2.2
+     */
+    public Set<DocumentReference> getUsersOverSoftLimit()
+    {
+        return softLimitVerifier.getFlaggedUsers();
+    }
+
+    /**
+     * @return the groups that have been found over their soft limits by the background verification
+     * @since 2.2
+     */
+    public Set<DocumentReference> getGroupsOverSoftLimit()
+    {
+        return softLimitVerifier.getFlaggedGroups();
+    }
+
     /**
      * @return an unmodifiable map of custom limits (that could a number or a date) that the developer is responsible
      * to implement
@@ -100,4 +172,74 @@ public class LimitsScriptServices implements ScriptService
         limitsConfiguration.reload();
     }
 
+    /**
+     * Start a bulk import of users: until {@link #endUserImport()} is called, the users created by the current thread
+     * are not checked one by one against the user limit. Requires programming rights.
+     *
+     * @throws Exception if the current user does not have programming rights
+     * @since 2.2
+     */
+    public void startUserImport() throws Exception
+    {
+        authorizationManager.checkAccess(Right.PROGRAM);
+        userImportMode.start();
+    }
+
+    /**
+     * End a bulk import of users started by {@link #startUserImport()}, recount the users and verify the user limits.
+     *
+     * @return {@code true} if the user limits are respected after the import, {@code false} if one has been exceeded
+     * @throws Exception if the users cannot be counted
+     * @since 2.2
+     */
+    public boolean endUserImport() throws Exception
+    {
+        return userImportMode.stop();
+    }
+
+    /**
+     * Reserve some seats for a batch of users that the current thread is going to create in the current wiki, so that
+     * they are not checked one by one against the user limits. Requires programming rights.
+     *
+     * @param seats the number of users of the batch
+     * @return {@code true} if the seats have been reserved, {@code false} if the batch would exceed the user limit (in
+     * this case no seat is reserved and the batch should not be created)
+     * @throws Exception if the current user does not have programming rights or if the users cannot be counted
+     * @since 2.2
+     */
+    public boolean reserveUserSeats(int seats) throws Exception
+    {
+        authorizationManager.checkAccess(Right.PROGRAM);
+        return userSeatReservation.reserve(seats);
+    }
+
+    /**
+     * Reserve some seats for a batch of users that the current thread is going to create in the given wiki, so that
+     * they are not checked one by one against the user limit of the farm and the user limit of the wiki. Requires
+     * programming rights.
+     *
+     * @param seats the number of users of the batch
+     * @param wiki the wiki of the users of the batch
+     * @return {@code true} if the seats have been reserved, {@code false} if the batch would exceed a user limit (in
+     * this case no seat is reserved and the batch should not be created)
+     * @throws Exception if the current user does not have programming rights or if the users cannot be counted
+     * @since 2.2
+     */
+    public boolean reserveUserSeats(int seats, String wiki) throws Exception
+    {
+        authorizationManager.checkAccess(Right.PROGRAM);
+        return userSeatReservation.reserve(seats, wiki);
+    }
+
+    /**
+     * End the reservation made by {@link #reserveUserSeats(int)}, once the batch has been created or has failed. The
+     * seats are also given back at the end of the current request if this method is not called.
+     *
+     * @return the number of reserved seats that have not been used and have been given back
+     * @since 2.2
+     */
+    public int releaseUserSeats()
+    {
+        return userSeatReservation.release();
+    }
 }
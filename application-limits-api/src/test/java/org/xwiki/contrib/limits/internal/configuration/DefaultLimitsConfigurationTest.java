@@ -19,30 +19,93 @@
  */
 package org.xwiki.contrib.limits.internal.configuration;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @version $Id: $
  */
 public class DefaultLimitsConfigurationTest
 {
+    /**
+     * Time to wait for the watcher to notice a modification of the file, in milliseconds.
+     */
+    private static final int WATCH_TIMEOUT = 10000;
+
     @Rule
     public MockitoComponentMockingRule<DefaultLimitsConfiguration> mocker =
             new MockitoComponentMockingRule<>(DefaultLimitsConfiguration.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<ExecutorService> executors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        BackgroundExecutor backgroundExecutor = mocker.getInstance(BackgroundExecutor.class);
+        when(backgroundExecutor.newFixedThreadPool(anyString(), anyInt())).thenAnswer(invocation -> {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executors.add(executor);
+            return executor;
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (ExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private Path copyToFolder(String resource, Path target) throws Exception
+    {
+        Path source = Paths.get(getClass().getResource(resource).toURI());
+        return Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
     @Test
     public void test() throws Exception
     {
@@ -51,6 +114,7 @@ public class DefaultLimitsConfigurationTest
 
         assertEquals(42, config.getTotalNumberOfUsersLimit());
         assertEquals(12, config.getWikisNumberLimit());
+        assertEquals(64, config.getVersion().length());
 
         Map<DocumentReference, Number> limits = config.getGroupsLimits();
         assertEquals(2, limits.size());
@@ -63,6 +127,16 @@ public class DefaultLimitsConfigurationTest
         assertEquals(Long.valueOf(36), customLimits.get("number-of-applications"));
         assertEquals("Some string limit (do whatever you want with it)", customLimits.get("custom-string"));
 
+        assertEquals(Collections.singletonMap("subwiki", 5), config.getWikiUserLimits());
+
+        assertEquals(4, config.getCounterThreads());
+        assertEquals(10, config.getCounterTimeout());
+        assertEquals("cross-wiki", config.getCounterStrategy());
+        assertEquals(20, config.getCounterBatchSize());
+        assertEquals("database", config.getQuotaStore());
+        assertEquals(10, config.getQuotaLeaseSize());
+        assertEquals(30, config.getUsageMaxStaleness());
+
         DefaultLimitsConfiguration.configFile = Paths.get(getClass().getResource("/limits2.xml").toURI());
         config.reload();
 
@@ -77,6 +151,60 @@ public class DefaultLimitsConfigurationTest
         assertEquals(4, limits.get(new DocumentReference("xwiki", "XWiki", "GroupC")));
         customLimits = config.getCustomLimits();
         assertEquals(0, customLimits.size());
+
+        // Default values
+        assertFalse(config.isUserLimitSoft());
+        assertFalse(config.isDeactivatingUsersOverLimit());
+        assertFalse(config.isCountingActiveGroupMembersOnly());
+        assertTrue(config.getWikiUserLimits().isEmpty());
+        assertEquals(1, config.getCounterThreads());
+        assertEquals(60, config.getCounterTimeout());
+        assertNull(config.getCounterStrategy());
+        assertEquals(50, config.getCounterBatchSize());
+        assertNull(config.getQuotaStore());
+        assertEquals(1, config.getQuotaLeaseSize());
+        assertEquals(60, config.getUsageMaxStaleness());
+    }
+
+    @Test
+    public void testGroupLimitsOfSubwikis() throws Exception
+    {
+        DefaultLimitsConfiguration.configFile = Paths.get(getClass().getResource("/limits3.xml").toURI());
+        // The references with a wiki are parsed by the resolver
+        DocumentReferenceResolver<String> resolver =
+                mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        when(resolver.resolve(eq("subwiki:Teams.Support.GroupA"), anyVararg())).thenReturn(
+                new DocumentReference("subwiki", Arrays.asList("Teams", "Support"), "GroupA"));
+        when(resolver.resolve(eq("*:XWiki.GroupB"), anyVararg())).thenReturn(
+                new DocumentReference("*", "XWiki", "GroupB"));
+        when(resolver.resolve(eq("subwiki:XWiki.GroupB"), anyVararg())).thenReturn(
+                new DocumentReference("subwiki", "XWiki", "GroupB"));
+        LimitsConfiguration config = mocker.getComponentUnderTest();
+
+        assertEquals(5, config.getGroupsLimits().size());
+        assertEquals(10, config.getGroupLimit(new DocumentReference("xwiki", "XWiki", "GroupA")));
+        // Without wiki, the dots are part of the name of the group, as in the previous versions
+        assertEquals(50, config.getGroupLimit(new DocumentReference("xwiki", "XWiki", "Team.Leads")));
+        assertEquals(20, config.getGroupLimit(
+                new DocumentReference("subwiki", Arrays.asList("Teams", "Support"), "GroupA")));
+        assertNull(config.getGroupLimit(new DocumentReference("subwiki", "XWiki", "GroupA")));
+
+        // The limit of a given wiki wins over the limit of every wiki
+        assertEquals(30, config.getGroupLimit(new DocumentReference("xwiki", "XWiki", "GroupB")));
+        assertEquals(30, config.getGroupLimit(new DocumentReference("otherwiki", "XWiki", "GroupB")));
+        assertEquals(40, config.getGroupLimit(new DocumentReference("subwiki", "XWiki", "GroupB")));
+        assertNull(config.getGroupLimit(new DocumentReference("otherwiki", "Main", "GroupB")));
+
+        assertNull(config.getGroupLimit(new DocumentReference("xwiki", "Main", "WebHome")));
+
+        // Soft limits
+        assertTrue(config.isUserLimitSoft());
+        assertTrue(config.isDeactivatingUsersOverLimit());
+        assertTrue(config.isGroupLimitSoft(new DocumentReference("otherwiki", "XWiki", "GroupB")));
+        assertFalse(config.isGroupLimitSoft(new DocumentReference("subwiki", "XWiki", "GroupB")));
+        assertFalse(config.isGroupLimitSoft(new DocumentReference("xwiki", "XWiki", "GroupA")));
+
+        assertTrue(config.isCountingActiveGroupMembersOnly());
     }
 
     @Test
@@ -180,4 +308,112 @@ public class DefaultLimitsConfigurationTest
                 caught.getCause().getMessage());
     }
 
+    @Test
+    public void testWhenConfigFileIsMissing() throws Exception
+    {
+        DefaultLimitsConfiguration.configFile = folder.getRoot().toPath().resolve("missing.xml");
+
+        InitializationException caught = null;
+        try {
+            mocker.getComponentUnderTest();
+        } catch (ComponentLookupException e) {
+            if (e.getCause() instanceof InitializationException) {
+                caught = (InitializationException) e.getCause();
+            }
+        }
+
+        assertNotNull(caught);
+        assertEquals(String.format("Failed to read the configuration file for the Limits Application [%s].",
+                        DefaultLimitsConfiguration.configFile),
+                caught.getCause().getMessage());
+    }
+
+    @Test
+    public void testVersionIsTheHashOfTheParsedContent() throws Exception
+    {
+        Path file = folder.getRoot().toPath().resolve("limits.xml");
+        DefaultLimitsConfiguration.configFile = copyToFolder("/limits1.xml", file);
+        DefaultLimitsConfiguration config = mocker.getComponentUnderTest();
+        assertEquals(DigestUtils.sha256Hex(Files.readAllBytes(file)), config.getVersion());
+
+        copyToFolder("/limits2.xml", file);
+        config.reload(true);
+
+        assertEquals(202, config.getTotalNumberOfUsersLimit());
+        assertEquals(DigestUtils.sha256Hex(Files.readAllBytes(file)), config.getVersion());
+    }
+
+    @Test
+    public void testReloadWithInvalidConfigKeepsPreviousOne() throws Exception
+    {
+        DefaultLimitsConfiguration.configFile = Paths.get(getClass().getResource("/limits1.xml").toURI());
+        LimitsConfiguration config = mocker.getComponentUnderTest();
+        Map<DocumentReference, Number> limits = config.getGroupsLimits();
+
+        DefaultLimitsConfiguration.configFile = Paths.get(getClass().getResource("/limitsError4.xml").toURI());
+        Exception caught = null;
+        try {
+            config.reload();
+        } catch (Exception e) {
+            caught = e;
+        }
+
+        assertNotNull(caught);
+        assertEquals(42, config.getTotalNumberOfUsersLimit());
+        assertSame(limits, config.getGroupsLimits());
+        assertEquals(3, config.getCustomLimits().size());
+    }
+
+    @Test
+    public void testReloadWhenFileIsModified() throws Exception
+    {
+        Path file = folder.getRoot().toPath().resolve("limits.xml");
+        DefaultLimitsConfiguration.configFile = copyToFolder("/limits1.xml", file);
+        LimitsConfiguration config = mocker.getComponentUnderTest();
+        assertEquals(42, config.getTotalNumberOfUsersLimit());
+
+        copyToFolder("/limits2.xml", file);
+
+        verify(mocker.getMockedLogger(), timeout(WATCH_TIMEOUT)).info(
+                eq("The configuration of the Limits Application has been reloaded. Changes: {}."), any());
+        assertEquals(202, config.getTotalNumberOfUsersLimit());
+        assertEquals(89, config.getWikisNumberLimit());
+    }
+
+    @Test
+    public void testReloadIsSkippedWhenContentIsUnchanged() throws Exception
+    {
+        Path file = folder.getRoot().toPath().resolve("limits.xml");
+        DefaultLimitsConfiguration.configFile = copyToFolder("/limits1.xml", file);
+        DefaultLimitsConfiguration config = mocker.getComponentUnderTest();
+        Map<DocumentReference, Number> limits = config.getGroupsLimits();
+
+        // The file is touched but its content is the same
+        copyToFolder("/limits1.xml", file);
+        config.reload(false);
+        assertSame(limits, config.getGroupsLimits());
+
+        // Unless the reload is forced
+        config.reload(true);
+        assertNotSame(limits, config.getGroupsLimits());
+        assertEquals(limits, config.getGroupsLimits());
+    }
+
+    @Test
+    public void testReloadWhenFileBecomesInvalidKeepsPreviousOne() throws Exception
+    {
+        Path file = folder.getRoot().toPath().resolve("limits.xml");
+        DefaultLimitsConfiguration.configFile = copyToFolder("/limits1.xml", file);
+        LimitsConfiguration config = mocker.getComponentUnderTest();
+        Map<DocumentReference, Number> limits = config.getGroupsLimits();
+
+        copyToFolder("/limitsError4.xml", file);
+
+        verify(mocker.getMockedLogger(), timeout(WATCH_TIMEOUT)).error(
+                eq("Failed to reload the modified configuration of the Limits Application, the previous "
+                        + "configuration is kept."), any(Exception.class));
+        assertEquals(42, config.getTotalNumberOfUsersLimit());
+        assertSame(limits, config.getGroupsLimits());
+        assertEquals(3, config.getCustomLimits().size());
+    }
 }
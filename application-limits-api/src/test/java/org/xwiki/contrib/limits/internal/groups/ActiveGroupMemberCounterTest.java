@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.users.InactiveUsers;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verify that {@link GroupMemberCounter} does not count the deactivated users when the configuration asks to count
+ * only the active group members.
+ *
+ * @version $Id: $
+ */
+public class ActiveGroupMemberCounterTest
+{
+    @Rule
+    public MockitoComponentMockingRule<GroupMemberCounter> mocker =
+            new MockitoComponentMockingRule<>(GroupMemberCounter.class);
+
+    private DocumentReference group = new DocumentReference("xwiki", "XWiki", "SomeGroup");
+
+    private DocumentReference userA = new DocumentReference("xwiki", "XWiki", "UserA");
+
+    private DocumentReference userB = new DocumentReference("xwiki", "XWiki", "UserB");
+
+    private DocumentReference userC = new DocumentReference("xwiki", "XWiki", "UserC");
+
+    private DocumentReference userD = new DocumentReference("xwiki", "XWiki", "UserD");
+
+    private GroupMembershipIndex groupMembershipIndex;
+
+    private InactiveUsers inactiveUsers;
+
+    private LimitsConfiguration limitsConfiguration;
+
+    /**
+     * The dictionary of the index, which returns the members as bit sets.
+     */
+    private final MemberDictionary dictionary = new MemberDictionary();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        groupMembershipIndex = mocker.getInstance(GroupMembershipIndex.class);
+        inactiveUsers = mocker.getInstance(InactiveUsers.class);
+        limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+
+        Set<DocumentReference> members = members(userA, userB, userC);
+        when(groupMembershipIndex.getMembers(group)).thenReturn(members);
+        when(groupMembershipIndex.getCachedMembers(group)).thenReturn(members);
+        // UserD is not a member of the group
+        when(inactiveUsers.getInactiveUsers()).thenReturn(new HashSet<>(Arrays.asList(userB, userD)));
+    }
+
+    @Test
+    public void getUserCountExcludesDeactivatedMembers() throws Exception
+    {
+        when(limitsConfiguration.isCountingActiveGroupMembersOnly()).thenReturn(true);
+
+        assertEquals(2, mocker.getComponentUnderTest().getUserCount(group));
+    }
+
+    @Test
+    public void getUserCountCountsEveryMemberByDefault() throws Exception
+    {
+        assertEquals(3, mocker.getComponentUnderTest().getUserCount(group));
+    }
+
+    @Test
+    public void getCachedUserCountExcludesDeactivatedMembersOnceLoaded() throws Exception
+    {
+        when(limitsConfiguration.isCountingActiveGroupMembersOnly()).thenReturn(true);
+        GroupMemberCounter groupMemberCounter = mocker.getComponentUnderTest();
+
+        // The inactive users are not loaded yet: every member is counted
+        assertEquals(Long.valueOf(3), groupMemberCounter.getCachedUserCount(group));
+
+        when(inactiveUsers.getCachedInactiveUsers()).thenReturn(Collections.singleton(userB));
+        assertEquals(Long.valueOf(2), groupMemberCounter.getCachedUserCount(group));
+    }
+
+    @Test
+    public void getAddedUsersExcludesDeactivatedUsers() throws Exception
+    {
+        when(limitsConfiguration.isCountingActiveGroupMembersOnly()).thenReturn(true);
+        DocumentReference subGroup = new DocumentReference("xwiki", "XWiki", "SubGroup");
+        DocumentReference userE = new DocumentReference("xwiki", "XWiki", "UserE");
+        Set<DocumentReference> addedMembers = Collections.singleton(subGroup);
+        when(groupMembershipIndex.getMembersNotIn(addedMembers, group))
+                .thenReturn(members(userD, userE));
+
+        assertEquals(Collections.singleton(userE),
+                mocker.getComponentUnderTest().getAddedUsers(group, addedMembers));
+    }
+
+    @Test
+    public void getUserCountExcludesTheUsersDeactivatedSinceTheLastCount() throws Exception
+    {
+        when(limitsConfiguration.isCountingActiveGroupMembersOnly()).thenReturn(true);
+        GroupMemberCounter groupMemberCounter = mocker.getComponentUnderTest();
+        assertEquals(2, groupMemberCounter.getUserCount(group));
+
+        when(inactiveUsers.getInactiveUsers()).thenReturn(new HashSet<>(Arrays.asList(userA, userB, userD)));
+        when(inactiveUsers.getVersion()).thenReturn(1L);
+        assertEquals(1, groupMemberCounter.getUserCount(group));
+    }
+
+    private Set<DocumentReference> members(DocumentReference... users)
+    {
+        BitSet ids = new BitSet();
+        for (DocumentReference user : users) {
+            ids.set(dictionary.getId(user));
+        }
+        return new MemberSet(dictionary, ids);
+    }
+}
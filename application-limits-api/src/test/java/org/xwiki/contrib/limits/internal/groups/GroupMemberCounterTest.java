@@ -19,35 +19,26 @@
  */
 package org.xwiki.contrib.limits.internal.groups;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
-import javax.inject.Provider;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
-import org.xwiki.component.util.DefaultParameterizedType;
-import org.xwiki.context.Execution;
-import org.xwiki.context.ExecutionContext;
 import org.xwiki.contrib.limits.LimitsConfiguration;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
-import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.observation.event.CancelableEvent;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
-import com.xpn.xwiki.XWiki;
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -64,11 +55,6 @@ public class GroupMemberCounterTest
 
     private GroupMemberCounter groupMemberCounter;
     private LimitsConfiguration limitsConfiguration;
-    private DocumentReferenceResolver<String> documentReferenceResolver;
-    private Provider<Execution> executionProvider;
-    private Execution execution;
-    private XWikiContext xcontext;
-    private XWiki xwiki;
 
     /**
      * Group to test
@@ -100,22 +86,10 @@ public class GroupMemberCounterTest
     {
         groupMemberCounter = mocker.getInstance(GroupMemberCounter.class);
         limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
-        documentReferenceResolver = mock(DocumentReferenceResolver.class);
-        mocker.registerComponent(DocumentReferenceResolver.TYPE_STRING, "current", documentReferenceResolver);
-        executionProvider =
-                mocker.registerMockComponent(new DefaultParameterizedType(null, Provider.class, Execution.class));
-        execution = mock(Execution.class);
-        when(executionProvider.get()).thenReturn(execution);
-
-        ExecutionContext executionContext = mock(ExecutionContext.class);
-        when(execution.getContext()).thenReturn(executionContext);
-
-        xcontext = mock(XWikiContext.class);
-        when(executionContext.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY)).thenReturn(xcontext);
-        xwiki = mock(XWiki.class);
-        when(xcontext.getWiki()).thenReturn(xwiki);
 
         groupLimits = new HashMap<>();
+        when(limitsConfiguration.getGroupLimit(any(DocumentReference.class))).thenAnswer(
+                invocation -> groupLimits.get(invocation.getArguments()[0]));
         when(limitsConfiguration.getGroupsLimits()).thenReturn(groupLimits);
 
         // Event
@@ -123,7 +97,7 @@ public class GroupMemberCounterTest
     }
 
     /**
-     * Create some mocks to fake a group document holding some member objects, that can work with ReferenceUserIterator.
+     * Create some mocks to fake a group document holding some members.
      *
      * @param groupReference the reference of the group document to mock
      * @param users a list of users that the group document is holding (but not saved yet)
@@ -136,47 +110,21 @@ public class GroupMemberCounterTest
     private XWikiDocument mockGroup(DocumentReference groupReference, List<DocumentReference> users, long oldCount)
             throws Exception
     {
-        // The list of objects that the group document is supposed to hold
-        List<BaseObject> userObjs = new ArrayList<>(users.size());
-        for (DocumentReference user : users) {
-            BaseObject userObj = null;
-            if (user != null) {
-                userObj = mock(BaseObject.class);
-                when(userObj.getStringValue("member")).thenReturn(user.toString());
-                // Also mock the user
-                mockUser(user);
-            }
-            userObjs.add(userObj);
-        }
-
-        // The old count
-        when(groupMemberCounter.getUserCount(groupReference)).thenReturn(Long.valueOf(oldCount));
-
         // The document to return
         XWikiDocument doc = mock(XWikiDocument.class);
         when(doc.getDocumentReference()).thenReturn(groupReference);
-        when(doc.getXObjects(new DocumentReference("xwiki", "XWiki", "XWikiGroups"))).thenReturn(
-                userObjs);
+        when(groupMemberCounter.isGroup(doc)).thenReturn(true);
 
-        return doc;
-    }
+        // The new count (the members are resolved by the GroupMembershipIndex)
+        Set<DocumentReference> members = new HashSet<>(users);
+        members.remove(null);
+        when(groupMemberCounter.getUserCount(doc)).thenReturn(Long.valueOf(members.size()));
+        when(groupMemberCounter.getAddedUsers(doc)).thenReturn(members);
 
-    /**
-     * Mock a user document holding a XWiki.XWikiUsers object.
-     * @param user the reference of the user
-     * @throws XWikiException if an error occurs
-     */
-    private void mockUser(DocumentReference user) throws XWikiException
-    {
-        when(documentReferenceResolver.resolve(user.toString())).thenReturn(user);
-
-        XWikiDocument userDoc = mock(XWikiDocument.class);
-        when(xwiki.getDocument(eq(user), eq(xcontext))).thenReturn(userDoc);
+        // The old count
+        when(groupMemberCounter.getUserCount(groupReference)).thenReturn(Long.valueOf(oldCount));
 
-        LocalDocumentReference userClassReference = new LocalDocumentReference("XWiki", "XWikiUsers");
-        BaseObject userDocObj = mock(BaseObject.class);
-        when(userDoc.getXObject(eq(userClassReference))).thenReturn(userDocObj);
-        when(userDoc.getDocumentReference()).thenReturn(user);
+        return doc;
     }
 
     @Test
@@ -232,4 +180,93 @@ public class GroupMemberCounterTest
         verify(event, never()).cancel(anyString());
     }
 
+    /**
+     * When no user is added, the group cannot exceed its limit and nothing needs to be counted.
+     */
+    @Test
+    public void onEvent_WhenNoUserIsAdded() throws Exception
+    {
+        // Limits
+        groupLimits.put(groupReference, 1);
+
+        // Content of the group
+        XWikiDocument groupDoc = mockGroup(groupReference, Arrays.asList(userA, userB), 2);
+        when(groupMemberCounter.getAddedUsers(groupDoc)).thenReturn(Collections.<DocumentReference>emptySet());
+
+        // Run the test
+        mocker.getComponentUnderTest().onEvent(event, groupDoc, null);
+
+        // Verify
+        verify(event, never()).cancel(anyString());
+        verify(groupMemberCounter, never()).getUserCount(any(XWikiDocument.class));
+        verify(groupMemberCounter, never()).getUserCount(any(DocumentReference.class));
+    }
+
+    /**
+     * Adding some users to a subgroup adds them to the limited groups containing it.
+     */
+    @Test
+    public void onEvent_WhenLimitOfParentGroupIsReached() throws Exception
+    {
+        // Limits
+        groupLimits.put(groupReference, 2);
+
+        // Content of the sub group, that is not limited itself
+        DocumentReference subGroupReference = new DocumentReference("xwiki", "XWiki", "SubGroup");
+        XWikiDocument subGroupDoc = mockGroup(subGroupReference, Arrays.asList(userA, userB), 0);
+        Set<DocumentReference> addedMembers = new HashSet<>(Arrays.asList(userA, userB));
+        when(groupMemberCounter.getLimitedAncestors(subGroupReference))
+                .thenReturn(Collections.singleton(groupReference));
+        when(groupMemberCounter.getAddedMembers(subGroupDoc)).thenReturn(addedMembers);
+        when(groupMemberCounter.getAddedUsers(groupReference, addedMembers)).thenReturn(addedMembers);
+        when(groupMemberCounter.getUserCount(groupReference)).thenReturn(1L);
+
+        // Run the test
+        mocker.getComponentUnderTest().onEvent(event, subGroupDoc, null);
+
+        // Verify
+        verify(event).cancel(
+                "The limit of number of users in the group [xwiki:XWiki.SomeGroup] has been reached [3/2].");
+    }
+
+    /**
+     * The limited groups containing a document are only looked for when the document is a group.
+     */
+    @Test
+    public void onEvent_WhenTheDocumentIsNotAGroup() throws Exception
+    {
+        // Limits
+        groupLimits.put(groupReference, 2);
+
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getDocumentReference()).thenReturn(userA);
+
+        // Run the test
+        mocker.getComponentUnderTest().onEvent(event, doc, null);
+
+        // Verify
+        verify(event, never()).cancel(anyString());
+        verify(groupMemberCounter, never()).getLimitedAncestors(any(DocumentReference.class));
+        verify(groupMemberCounter).preloadLimitedGroups("xwiki");
+    }
+
+    /**
+     * The limited groups containing a group are not looked for when its own limit cancels the save.
+     */
+    @Test
+    public void onEvent_WhenLimitIsReachedDoesNotLookForParentGroups() throws Exception
+    {
+        // Limits
+        groupLimits.put(groupReference, 1);
+
+        // Content of the group
+        XWikiDocument groupDoc = mockGroup(groupReference, Arrays.asList(userA, userB), 1);
+
+        // Run the test
+        mocker.getComponentUnderTest().onEvent(event, groupDoc, null);
+
+        // Verify
+        verify(event).cancel(anyString());
+        verify(groupMemberCounter, never()).getLimitedAncestors(any(DocumentReference.class));
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.groups;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anySet;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class GroupMembershipIndexTest
+{
+    @Rule
+    public MockitoComponentMockingRule<GroupMembershipIndex> mocker =
+            new MockitoComponentMockingRule<>(GroupMembershipIndex.class);
+
+    private DocumentReferenceResolver<String> explicitDocumentReferenceResolver;
+
+    private XWikiContext xcontext;
+
+    private XWiki xwiki;
+
+    private DocumentReference group = new DocumentReference("xwiki", "XWiki", "SomeGroup");
+
+    private DocumentReference subGroup = new DocumentReference("xwiki", "XWiki", "SubGroup");
+
+    private DocumentReference userA = new DocumentReference("xwiki", "XWiki", "UserA");
+
+    private DocumentReference userB = new DocumentReference("xwiki", "XWiki", "UserB");
+
+    private DocumentReference userC = new DocumentReference("xwiki", "XWiki", "UserC");
+
+    @Before
+    public void setUp() throws Exception
+    {
+        explicitDocumentReferenceResolver = mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        Provider<XWikiContext> xcontextProvider =
+                mocker.registerMockComponent(new DefaultParameterizedType(null, Provider.class, XWikiContext.class));
+        xcontext = mock(XWikiContext.class);
+        when(xcontextProvider.get()).thenReturn(xcontext);
+        xwiki = mock(XWiki.class);
+        when(xcontext.getWiki()).thenReturn(xwiki);
+
+        mockUser(userA);
+        mockUser(userB);
+        mockUser(userC);
+        when(xwiki.getDocument(group, xcontext)).thenReturn(mockGroup(group, userA, subGroup));
+        when(xwiki.getDocument(subGroup, xcontext)).thenReturn(mockGroup(subGroup, userB, userA, group));
+    }
+
+    private XWikiDocument mockGroup(DocumentReference groupReference, DocumentReference... members)
+    {
+        List<BaseObject> memberObjs = new ArrayList<>();
+        for (DocumentReference member : members) {
+            BaseObject memberObj = mock(BaseObject.class);
+            when(memberObj.getStringValue("member")).thenReturn(member.getName());
+            when(explicitDocumentReferenceResolver.resolve(member.getName(), groupReference)).thenReturn(member);
+            memberObjs.add(memberObj);
+        }
+
+        XWikiDocument groupDoc = mock(XWikiDocument.class);
+        when(groupDoc.getDocumentReference()).thenReturn(groupReference);
+        when(groupDoc.getXObjects(new DocumentReference("xwiki", "XWiki", "XWikiGroups"))).thenReturn(memberObjs);
+        return groupDoc;
+    }
+
+    private void mockUser(DocumentReference user) throws Exception
+    {
+        XWikiDocument userDoc = mock(XWikiDocument.class);
+        when(userDoc.getDocumentReference()).thenReturn(user);
+        when(userDoc.getXObject(new LocalDocumentReference("XWiki", "XWikiUsers"))).thenReturn(mock(BaseObject.class));
+        when(xwiki.getDocument(user, xcontext)).thenReturn(userDoc);
+    }
+
+    @Test
+    public void getMembersOfNestedGroups() throws Exception
+    {
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+
+        assertEquals(new HashSet<>(Arrays.asList(userA, userB)), index.getMembers(group));
+        assertEquals(new HashSet<>(Arrays.asList(userA, userB)), index.getMembers(subGroup));
+
+        // Each document has been loaded only once
+        verify(xwiki, times(1)).getDocument(group, xcontext);
+        verify(xwiki, times(1)).getDocument(subGroup, xcontext);
+        verify(xwiki, times(1)).getDocument(userA, xcontext);
+        verify(xwiki, times(1)).getDocument(userB, xcontext);
+    }
+
+    @Test
+    public void updateOfASubGroupInvalidatesItsAncestors() throws Exception
+    {
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+        assertEquals(2, index.getMembers(group).size());
+
+        index.update(mockGroup(subGroup, userB, userC));
+
+        assertEquals(new HashSet<>(Arrays.asList(userA, userB, userC)), index.getMembers(group));
+        // The saved version of the sub group has been used
+        verify(xwiki, times(1)).getDocument(subGroup, xcontext);
+    }
+
+    @Test
+    public void getMembersOfUnsavedGroup() throws Exception
+    {
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+
+        assertEquals(new HashSet<>(Arrays.asList(userA, userB, userC)),
+                index.getMembers(mockGroup(group, userC, subGroup)));
+    }
+
+    @Test
+    public void getMembersNotInGroup() throws Exception
+    {
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+
+        Set<DocumentReference> addedUsers = index.getMembersNotIn(Arrays.asList(userC, subGroup), group);
+        assertEquals(Collections.singleton(userC), addedUsers);
+        assertTrue(addedUsers.contains(userC));
+        assertFalse(addedUsers.contains(userA));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getMembersResolvedWithQueries() throws Exception
+    {
+        Map<DocumentReference, Set<DocumentReference>> groups = new HashMap<>();
+        groups.put(group, new HashSet<>(Arrays.asList(userA, subGroup)));
+        groups.put(subGroup, new HashSet<>(Arrays.asList(userB, userA, group)));
+        Set<DocumentReference> users = new HashSet<>(Arrays.asList(userA, userB, userC));
+
+        GroupMemberResolver groupMemberResolver = mocker.getInstance(GroupMemberResolver.class);
+        when(groupMemberResolver.resolve(anyCollection(), anyMap(), anySet())).thenAnswer(
+                invocation -> {
+                    Object[] arguments = invocation.getArguments();
+                    for (DocumentReference reference : (Collection<DocumentReference>) arguments[0]) {
+                        if (groups.containsKey(reference)) {
+                            ((Map<DocumentReference, Set<DocumentReference>>) arguments[1]).put(reference,
+                                    groups.get(reference));
+                        } else if (users.contains(reference)) {
+                            ((Set<DocumentReference>) arguments[2]).add(reference);
+                        }
+                    }
+                    return true;
+                });
+
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+        assertEquals(new HashSet<>(Arrays.asList(userA, userB)), index.getMembers(group));
+
+        // One resolution for each level of nesting (the group, its members, the members of the sub group), and no
+        // document loaded
+        verify(groupMemberResolver, times(3)).resolve(anyCollection(), anyMap(), anySet());
+        verify(xwiki, never()).getDocument(any(DocumentReference.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void getLimitedAncestors() throws Exception
+    {
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getGroupsLimits()).thenReturn(Collections.<DocumentReference, Number>singletonMap(
+                group, 5));
+        when(limitsConfiguration.getGroupLimit(group)).thenReturn(5);
+
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+
+        assertEquals(Collections.singleton(group), index.getLimitedAncestors(subGroup));
+        assertEquals(Collections.singleton(group), index.getLimitedAncestors(userB));
+        assertEquals(Collections.emptySet(), index.getLimitedAncestors(userC));
+
+        // The limited groups are loaded again after a clear
+        index.clear();
+        assertEquals(Collections.singleton(group), index.getLimitedAncestors(userB));
+        verify(xwiki, times(2)).getDocument(group, xcontext);
+    }
+
+    @Test
+    public void isGroup() throws Exception
+    {
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+
+        assertTrue(index.isGroup(mockGroup(group, userA)));
+        assertFalse(index.isGroup(xwiki.getDocument(userA, xcontext)));
+    }
+
+    @Test
+    public void preloadLimitedGroups() throws Exception
+    {
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getGroupsLimits()).thenReturn(Collections.<DocumentReference, Number>singletonMap(
+                group, 5));
+        when(limitsConfiguration.getGroupLimit(group)).thenReturn(5);
+        when(limitsConfiguration.getVersion()).thenReturn("1");
+        BackgroundExecutor backgroundExecutor = mocker.getInstance(BackgroundExecutor.class);
+
+        GroupMembershipIndex index = mocker.getComponentUnderTest();
+        index.preloadLimitedGroups("xwiki");
+        // Already being loaded
+        index.preloadLimitedGroups("xwiki");
+
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(backgroundExecutor).submit(task.capture());
+        task.getValue().run();
+        verify(xwiki).getDocument(group, xcontext);
+
+        // Already loaded
+        index.preloadLimitedGroups("xwiki");
+        verify(backgroundExecutor).submit(any(Runnable.class));
+
+        // Nothing left to load to find the limited ancestors
+        assertEquals(Collections.singleton(group), index.getLimitedAncestors(subGroup));
+        verify(xwiki).getDocument(group, xcontext);
+
+        // Loaded again when the configuration changes
+        when(limitsConfiguration.getVersion()).thenReturn("2");
+        index.preloadLimitedGroups("xwiki");
+        verify(backgroundExecutor, times(2)).submit(any(Runnable.class));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @version $Id: $
+ */
+public class PendingReservationsTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PendingReservations> mocker =
+            new MockitoComponentMockingRule<>(PendingReservations.class);
+
+    private final DocumentReference user = new DocumentReference("subwiki", "XWiki", "Alice");
+
+    @Test
+    public void confirmedReservationIsKept() throws Exception
+    {
+        PendingReservations pendingReservations = mocker.getComponentUnderTest();
+        pendingReservations.add(user, Arrays.asList(QuotaManager.WIKI_USERS_PREFIX + "subwiki", QuotaManager.USERS));
+        pendingReservations.confirm(user);
+
+        pendingReservations.releaseExpired(System.currentTimeMillis() + PendingReservations.EXPIRATION);
+
+        QuotaManager quotaManager = mocker.getInstance(QuotaManager.class);
+        verify(quotaManager, never()).release(anyString());
+        // Counted as pending until the user is created
+        verify(quotaManager).updatePending(QuotaManager.USERS, 1);
+        verify(quotaManager).updatePending(QuotaManager.USERS, -1);
+    }
+
+    @Test
+    public void expiredReservationIsGivenBack() throws Exception
+    {
+        PendingReservations pendingReservations = mocker.getComponentUnderTest();
+        pendingReservations.add(user, Arrays.asList(QuotaManager.WIKI_USERS_PREFIX + "subwiki", QuotaManager.USERS));
+        pendingReservations.add(new WikiReference("newwiki"), Collections.singletonList(QuotaManager.WIKIS));
+
+        // Not expired yet
+        pendingReservations.releaseExpired(System.currentTimeMillis());
+        QuotaManager quotaManager = mocker.getInstance(QuotaManager.class);
+        verify(quotaManager, never()).release(anyString());
+
+        pendingReservations.releaseExpired(System.currentTimeMillis() + PendingReservations.EXPIRATION);
+        verify(quotaManager).release(QuotaManager.WIKI_USERS_PREFIX + "subwiki");
+        verify(quotaManager).release(QuotaManager.USERS);
+        verify(quotaManager).release(QuotaManager.WIKIS);
+
+        // Given back only once
+        pendingReservations.releaseExpired(System.currentTimeMillis() + 2 * PendingReservations.EXPIRATION);
+        verify(quotaManager, times(1)).release(QuotaManager.USERS);
+        verify(quotaManager, times(1)).updatePending(QuotaManager.WIKIS, -1);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.quota;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.environment.Environment;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class QuotaManagerTest
+{
+    @Rule
+    public MockitoComponentMockingRule<QuotaManager> mocker = new MockitoComponentMockingRule<>(QuotaManager.class);
+
+    @Rule
+    public TemporaryFolder permanentDirectory = new TemporaryFolder();
+
+    private QuotaStore store;
+
+    private LimitsConfiguration limitsConfiguration;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        store = mocker.getInstance(QuotaStore.class, MemoryQuotaStore.HINT);
+        limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(1);
+        Environment environment = mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(permanentDirectory.getRoot());
+    }
+
+    @Test
+    public void tryAcquireInitializesTheStoreOnce() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 1, 10)).thenReturn(true, false);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 9L));
+        assertFalse(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 10L));
+
+        verify(store, times(1)).initialize(QuotaManager.USERS, 9L);
+    }
+
+    @Test
+    public void initializationOnlyGivesBackThePreviousLeases() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 1, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+
+        // The count of this instance may lag behind the other instances sharing the quota
+        verify(store).clearLeased(eq(QuotaManager.USERS), anyString());
+        verify(store, never()).reset(anyString(), anyLong());
+    }
+
+    @Test
+    public void tryAcquireConsumesTheLeasedUnits() throws Exception
+    {
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(3);
+        when(store.tryAcquire(QuotaManager.USERS, 3, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 0L));
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 0L));
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 0L));
+
+        verify(store, times(1)).tryAcquire(QuotaManager.USERS, 3, 10);
+        verify(store, never()).tryAcquire(anyString(), eq(1L), anyLong());
+    }
+
+    @Test
+    public void tryAcquireGivesBackTheLeasedUnitsWhenTheLimitIsLowered() throws Exception
+    {
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(3);
+        when(store.tryAcquire(QuotaManager.USERS, 3, 10)).thenReturn(true);
+        when(store.tryAcquire(QuotaManager.USERS, 1, 5)).thenReturn(false);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+        // The 2 units left may exceed the new limit
+        assertFalse(quotaManager.tryAcquire(QuotaManager.USERS, 5, () -> 5L));
+
+        verify(store).release(QuotaManager.USERS, 2);
+        verify(store).setLeased(eq(QuotaManager.USERS), anyString(), eq(0L));
+    }
+
+    @Test
+    public void releaseKeepsTheUnitLocally() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 1, 10)).thenReturn(true, false);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 9L));
+        quotaManager.release(QuotaManager.USERS);
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 9L));
+
+        verify(store, times(1)).tryAcquire(QuotaManager.USERS, 1, 10);
+        verify(store, never()).release(anyString(), anyLong());
+    }
+
+    @Test
+    public void tryAcquireSeveralUnitsIsAllOrNothing() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 5, 10)).thenReturn(false);
+        when(store.tryAcquire(QuotaManager.USERS, 4, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertFalse(quotaManager.tryAcquire(QuotaManager.USERS, 5, 10, () -> 6L));
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 4, 10, () -> 6L));
+
+        verify(store, times(1)).initialize(QuotaManager.USERS, 6L);
+    }
+
+    @Test
+    public void releaseGivesBackTheUnitsOverTheLeaseSize() throws Exception
+    {
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(2);
+        when(store.tryAcquire(QuotaManager.USERS, 2, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 0L));
+        // One unit is still leased, so only one more can be kept locally
+        quotaManager.release(QuotaManager.USERS, 3);
+
+        verify(store).release(QuotaManager.USERS, 2);
+        verify(store).setLeased(eq(QuotaManager.USERS), anyString(), eq(2L));
+    }
+
+    @Test
+    public void resetKeepsTheLeasedUnits() throws Exception
+    {
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(3);
+        when(store.tryAcquire(QuotaManager.USERS, 3, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+        quotaManager.reset(QuotaManager.USERS, 5);
+
+        // The store adds the leases recorded by all the instances to the exact count
+        verify(store, times(2)).setLeased(eq(QuotaManager.USERS), anyString(), eq(2L));
+        verify(store).reset(QuotaManager.USERS, 5L);
+    }
+
+    @Test
+    public void resetKeepsThePendingUnits() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 1, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+        // The user is not created yet, so it is not part of the exact count
+        quotaManager.updatePending(QuotaManager.USERS, 1);
+        quotaManager.reset(QuotaManager.USERS, 4);
+
+        verify(store, times(2)).setLeased(eq(QuotaManager.USERS), anyString(), eq(1L));
+        verify(store).reset(QuotaManager.USERS, 4L);
+
+        quotaManager.updatePending(QuotaManager.USERS, -1);
+        verify(store).setLeased(eq(QuotaManager.USERS), anyString(), eq(0L));
+    }
+
+    @Test
+    public void tryAcquireInitializesTheNewStoreWhenTheStoreChanges() throws Exception
+    {
+        QuotaStore databaseStore = mocker.getInstance(QuotaStore.class, DatabaseQuotaStore.HINT);
+        when(limitsConfiguration.getQuotaLeaseSize()).thenReturn(3);
+        when(store.tryAcquire(QuotaManager.USERS, 3, 10)).thenReturn(true);
+        when(databaseStore.tryAcquire(QuotaManager.USERS, 3, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+
+        when(limitsConfiguration.getQuotaStore()).thenReturn(DatabaseQuotaStore.HINT);
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 5L));
+
+        // The units leased from the memory store are not consumed after the change
+        verify(databaseStore).initialize(QuotaManager.USERS, 5L);
+        verify(databaseStore).tryAcquire(QuotaManager.USERS, 3, 10);
+        verify(store, times(1)).tryAcquire(QuotaManager.USERS, 3, 10);
+        // The new store has not counted the users created through the previous one
+        verify(databaseStore).reset(QuotaManager.USERS, 5L);
+    }
+
+    @Test
+    public void tryAcquireInitializesTheQuotaAgainOnceInvalidated() throws Exception
+    {
+        when(store.tryAcquire(QuotaManager.USERS, 1, 10)).thenReturn(true);
+
+        QuotaManager quotaManager = mocker.getComponentUnderTest();
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 4L));
+        // Some users have been created while the limit was soft
+        quotaManager.invalidate(QuotaManager.USERS);
+        assertTrue(quotaManager.tryAcquire(QuotaManager.USERS, 10, () -> 7L));
+
+        verify(store, never()).reset(QuotaManager.USERS, 4L);
+        verify(store).reset(QuotaManager.USERS, 7L);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.soft;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.inject.Provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.event.LimitExceededEvent;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class SoftLimitVerifierTest
+{
+    @Rule
+    public MockitoComponentMockingRule<SoftLimitVerifier> mocker =
+            new MockitoComponentMockingRule<>(SoftLimitVerifier.class);
+
+    private DocumentReference userA = new DocumentReference("xwiki", "XWiki", "UserA");
+
+    private DocumentReference userB = new DocumentReference("xwiki", "XWiki", "UserB");
+
+    private DocumentReference userC = new DocumentReference("xwiki", "XWiki", "UserC");
+
+    private UserCounter userCounter;
+
+    private LimitsConfiguration limitsConfiguration;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Run the verifications in the current thread
+        BackgroundExecutor backgroundExecutor = mocker.getInstance(BackgroundExecutor.class);
+        when(backgroundExecutor.submit(any(Runnable.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        });
+
+        limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getTotalNumberOfUsersLimit()).thenReturn(10);
+        when(limitsConfiguration.getWikiUserLimits()).thenReturn(Collections.<String, Integer>emptyMap());
+
+        userCounter = mocker.getInstance(UserCounter.class);
+    }
+
+    @Test
+    public void verifyUsersWhenLimitIsExceeded() throws Exception
+    {
+        when(userCounter.getUserCount()).thenReturn(11);
+
+        SoftLimitVerifier verifier = mocker.getComponentUnderTest();
+        verifier.expectUser(userA);
+        // Not expected: not verified
+        verifier.onSaved(userB);
+        verifier.onSaved(userA);
+
+        verify(userCounter).reconcile();
+        assertEquals(Collections.singleton(userA), verifier.getFlaggedUsers());
+        ObservationManager observationManager = mocker.getInstance(ObservationManager.class);
+        verify(observationManager).notify(any(LimitExceededEvent.class), eq(userA));
+        verify(observationManager, never()).notify(any(LimitExceededEvent.class), eq(userB));
+    }
+
+    @Test
+    public void verifyUsersWhenLimitIsRespected() throws Exception
+    {
+        SoftLimitVerifier verifier = mocker.getComponentUnderTest();
+        when(userCounter.getUserCount()).thenReturn(11);
+        verifier.expectUser(userA);
+        verifier.onSaved(userA);
+        assertEquals(1, verifier.getFlaggedUsers().size());
+
+        // The flags are cleared once the limit is respected again
+        when(userCounter.getUserCount()).thenReturn(10);
+        verifier.expectUser(userC);
+        verifier.onSaved(userC);
+        assertTrue(verifier.getFlaggedUsers().isEmpty());
+    }
+
+    @Test
+    public void verifyUncheckedUsersFlagsTheLastUsers() throws Exception
+    {
+        when(userCounter.getUserCount()).thenReturn(12);
+
+        SoftLimitVerifier verifier = mocker.getComponentUnderTest();
+        assertFalse(verifier.verifyUncheckedUsers(Arrays.asList(userA, userB, userC)));
+
+        // The counts are up to date: the caller has counted the users again
+        verify(userCounter, never()).reconcile();
+        assertEquals(2, verifier.getFlaggedUsers().size());
+        assertTrue(verifier.getFlaggedUsers().containsAll(Arrays.asList(userB, userC)));
+        ObservationManager observationManager = mocker.getInstance(ObservationManager.class);
+        verify(observationManager, never()).notify(any(LimitExceededEvent.class), eq(userA));
+    }
+
+    @Test
+    public void usersOverTheLimitAreDeactivatedBySuperadmin() throws Exception
+    {
+        when(userCounter.getUserCount()).thenReturn(11);
+        when(limitsConfiguration.isDeactivatingUsersOverLimit()).thenReturn(true);
+
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        XWikiContext xcontext = mock(XWikiContext.class);
+        when(xcontextProvider.get()).thenReturn(xcontext);
+        when(xcontext.getMainXWiki()).thenReturn("xwiki");
+        XWiki xwiki = mock(XWiki.class);
+        when(xcontext.getWiki()).thenReturn(xwiki);
+        XWikiDocument userDocument = mock(XWikiDocument.class);
+        when(xwiki.getDocument(userA, xcontext)).thenReturn(userDocument);
+        XWikiDocument clonedDocument = mock(XWikiDocument.class);
+        when(userDocument.clone()).thenReturn(clonedDocument);
+        BaseObject userObject = mock(BaseObject.class);
+        when(clonedDocument.getXObject(new DocumentReference("xwiki", "XWiki", "XWikiUsers"))).thenReturn(userObject);
+
+        mocker.getComponentUnderTest().verifyUncheckedUsers(Collections.singletonList(userA));
+
+        // The background thread has no user: the save is authored by superadmin, then the user is restored
+        InOrder inOrder = inOrder(xcontext, userObject, xwiki);
+        inOrder.verify(xcontext).setUserReference(new DocumentReference("xwiki", "XWiki", "superadmin"));
+        inOrder.verify(userObject).setIntValue("active", 0);
+        inOrder.verify(xwiki).saveDocument(clonedDocument,
+                "Deactivated because the limit [users] has been exceeded [11/10].", true, xcontext);
+        inOrder.verify(xcontext).setUserReference(null);
+    }
+
+    @Test
+    public void expectedUserIsNotVerifiedOnceExpired() throws Exception
+    {
+        when(userCounter.getUserCount()).thenReturn(11);
+
+        SoftLimitVerifier verifier = mocker.getComponentUnderTest();
+        verifier.expectUser(userA);
+        verifier.expectGroup(userB);
+        // The save of the user A has been cancelled, so the user A is never saved
+        verifier.removeExpired(System.currentTimeMillis() + SoftLimitVerifier.EXPIRATION);
+
+        verifier.onSaved(userA);
+        verifier.onSaved(userB);
+        verify(userCounter, never()).reconcile();
+        assertTrue(verifier.getFlaggedUsers().isEmpty());
+    }
+}
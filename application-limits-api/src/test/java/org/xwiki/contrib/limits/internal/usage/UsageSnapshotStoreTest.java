@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.usage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberCounter;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.contrib.limits.internal.wikis.WikiCounter;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class UsageSnapshotStoreTest
+{
+    @Rule
+    public MockitoComponentMockingRule<UsageSnapshotStore> mocker =
+            new MockitoComponentMockingRule<>(UsageSnapshotStore.class);
+
+    private File permanentDirectory = new File("target/test-permanent-directory");
+
+    private DocumentReference group = new DocumentReference("xwiki", "XWiki", "GroupA");
+
+    private UserCounter userCounter;
+
+    private WikiCounter wikiCounter;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        FileUtils.deleteDirectory(permanentDirectory);
+        Environment environment = mocker.getInstance(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(permanentDirectory);
+
+        userCounter = mock(UserCounter.class);
+        Provider<UserCounter> userCounterProvider =
+                mocker.registerMockComponent(new DefaultParameterizedType(null, Provider.class, UserCounter.class));
+        when(userCounterProvider.get()).thenReturn(userCounter);
+
+        wikiCounter = mock(WikiCounter.class);
+        Provider<WikiCounter> wikiCounterProvider =
+                mocker.registerMockComponent(new DefaultParameterizedType(null, Provider.class, WikiCounter.class));
+        when(wikiCounterProvider.get()).thenReturn(wikiCounter);
+
+        GroupMemberCounter groupMemberCounter = mock(GroupMemberCounter.class);
+        Provider<GroupMemberCounter> groupMemberCounterProvider = mocker.registerMockComponent(
+                new DefaultParameterizedType(null, Provider.class, GroupMemberCounter.class));
+        when(groupMemberCounterProvider.get()).thenReturn(groupMemberCounter);
+        when(groupMemberCounter.getCachedUserCount(group)).thenReturn(4L);
+
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getGroupsLimits()).thenReturn(Collections.<DocumentReference, Number>singletonMap(
+                group, 5));
+
+        EntityReferenceSerializer<String> serializer = mocker.getInstance(EntityReferenceSerializer.TYPE_STRING);
+        when(serializer.serialize(group)).thenReturn("xwiki:XWiki.GroupA");
+        DocumentReferenceResolver<String> resolver = mocker.getInstance(DocumentReferenceResolver.TYPE_STRING);
+        when(resolver.resolve("xwiki:XWiki.GroupA")).thenReturn(group);
+    }
+
+    @Test
+    public void saveAndRestore() throws Exception
+    {
+        UsageSnapshotStore store = mocker.getComponentUnderTest();
+        // Nothing has been saved yet
+        assertTrue(store.getUserCounts().isEmpty());
+        assertEquals(0, store.getWikiCount());
+
+        Map<String, Integer> userCounts = new HashMap<>();
+        userCounts.put("xwiki", 3);
+        userCounts.put("subwiki", 2);
+        when(userCounter.getKnownUserCounts()).thenReturn(userCounts);
+        when(wikiCounter.getKnownWikiCount()).thenReturn(2);
+        store.save();
+
+        // As done when the XWiki instance restarts
+        store.initialize();
+        assertEquals(userCounts, store.getUserCounts());
+        assertEquals(2, store.getWikiCount());
+        assertEquals(Collections.singletonMap(group, 4L), store.getGroupCounts());
+    }
+
+    @Test
+    public void saveWhenNothingIsKnown() throws Exception
+    {
+        UsageSnapshotStore store = mocker.getComponentUnderTest();
+        when(userCounter.getKnownUserCounts()).thenReturn(null);
+        when(wikiCounter.getKnownWikiCount()).thenReturn(null);
+        store.save();
+
+        store.initialize();
+        assertTrue(store.getUserCounts().isEmpty());
+        assertEquals(0, store.getWikiCount());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class CrossWikiUserCountStrategyTest
+{
+    @Rule
+    public MockitoComponentMockingRule<CrossWikiUserCountStrategy> mocker =
+            new MockitoComponentMockingRule<>(CrossWikiUserCountStrategy.class);
+
+    private XWikiHibernateStore store;
+
+    private UserCountStrategy perWikiStrategy;
+
+    @BeforeComponent
+    public void registerStore() throws Exception
+    {
+        // The strategy needs a Hibernate store, which is not what the default mock of the store role would be
+        store = mock(XWikiHibernateStore.class);
+        mocker.registerComponent(XWikiStoreInterface.class, "hibernate", store);
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        perWikiStrategy = mocker.getInstance(UserCountStrategy.class, PerWikiUserCountStrategy.HINT);
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getCounterBatchSize()).thenReturn(10);
+
+        when(store.getSchemaFromWikiName(eq("xwiki"), any(XWikiContext.class))).thenReturn("xwiki");
+        when(store.getSchemaFromWikiName(eq("subwiki"), any(XWikiContext.class))).thenReturn("subwiki");
+    }
+
+    @Test
+    public void countUsersWithASingleQuery() throws Exception
+    {
+        when(store.executeRead(any(XWikiContext.class), any(HibernateCallback.class))).thenReturn(
+            Arrays.asList(new Object[] { 0, 10L }, new Object[] { 1, 5L }));
+
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Exception> failures = new HashMap<>();
+        mocker.getComponentUnderTest().countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+
+        assertEquals(Integer.valueOf(10), counts.get("xwiki"));
+        assertEquals(Integer.valueOf(5), counts.get("subwiki"));
+        assertTrue(failures.isEmpty());
+        verify(store).executeRead(any(XWikiContext.class), any(HibernateCallback.class));
+        verify(perWikiStrategy, never()).countUsers(any(), anyMapOf(String.class, Integer.class),
+            anyMapOf(String.class, Exception.class));
+    }
+
+    @Test
+    public void countUsersOneByOneWhenTheSchemaIsNotSafe() throws Exception
+    {
+        when(store.getSchemaFromWikiName(eq("subwiki"), any(XWikiContext.class))).thenReturn("sub-wiki");
+        when(store.executeRead(any(XWikiContext.class), any(HibernateCallback.class))).thenReturn(
+            Collections.singletonList(new Object[] { 0, 10L }));
+
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Exception> failures = new HashMap<>();
+        mocker.getComponentUnderTest().countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+
+        assertEquals(Integer.valueOf(10), counts.get("xwiki"));
+        verify(perWikiStrategy).countUsers(Collections.singletonList("subwiki"), counts, failures);
+    }
+
+    @Test
+    public void countUsersOneByOneForAWhileWhenTheQueryFails() throws Exception
+    {
+        when(store.executeRead(any(XWikiContext.class), any(HibernateCallback.class))).thenThrow(
+            new XWikiException());
+
+        CrossWikiUserCountStrategy strategy = mocker.getComponentUnderTest();
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Exception> failures = new HashMap<>();
+        strategy.countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+        strategy.countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+
+        // The second count does not try the single query again
+        verify(store, times(1)).executeRead(any(XWikiContext.class), any(HibernateCallback.class));
+        verify(perWikiStrategy, times(2)).countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+        verify(mocker.getMockedLogger()).warn(anyString(), eq(10L), anyString());
+    }
+}
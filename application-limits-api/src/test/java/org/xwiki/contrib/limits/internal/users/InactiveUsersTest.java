@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class InactiveUsersTest
+{
+    @Rule
+    public MockitoComponentMockingRule<InactiveUsers> mocker = new MockitoComponentMockingRule<>(InactiveUsers.class);
+
+    private final DocumentReference alice = new DocumentReference("xwiki", "XWiki", "Alice");
+
+    private final DocumentReference bob = new DocumentReference("xwiki", "XWiki", "Bob");
+
+    private final DocumentReference carol = new DocumentReference("subwiki", "XWiki", "Carol");
+
+    private Query query;
+
+    /**
+     * Executed while the users are loaded.
+     */
+    private Runnable duringLoad;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        WikiDescriptorManager wikiDescriptorManager = mocker.getInstance(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(Arrays.asList("xwiki", "subwiki"));
+
+        DocumentReferenceResolver<String> resolver =
+                mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "explicit");
+        when(resolver.resolve("XWiki.Alice", new WikiReference("xwiki"))).thenReturn(alice);
+        when(resolver.resolve("XWiki.Carol", new WikiReference("subwiki"))).thenReturn(carol);
+
+        query = mock(Query.class);
+        QueryManager queryManager = mocker.getInstance(QueryManager.class);
+        when(queryManager.createQuery(anyString(), eq(Query.HQL))).thenReturn(query);
+        Query mainWikiQuery = mock(Query.class);
+        when(query.setWiki("xwiki")).thenReturn(mainWikiQuery);
+        when(mainWikiQuery.execute()).thenAnswer(invocation -> {
+            if (duringLoad != null) {
+                duringLoad.run();
+            }
+            return Collections.singletonList("XWiki.Alice");
+        });
+        Query subWikiQuery = mock(Query.class);
+        when(query.setWiki("subwiki")).thenReturn(subWikiQuery);
+        when(subWikiQuery.execute()).thenReturn(Collections.<Object>singletonList("XWiki.Carol"));
+    }
+
+    @Test
+    public void getInactiveUsers() throws Exception
+    {
+        InactiveUsers inactiveUsers = mocker.getComponentUnderTest();
+        // Not loaded yet
+        assertNull(inactiveUsers.getCachedInactiveUsers());
+
+        assertEquals(new HashSet<>(Arrays.asList(alice, carol)), inactiveUsers.getInactiveUsers());
+
+        inactiveUsers.update(bob, true);
+        inactiveUsers.update(alice, false);
+        assertEquals(new HashSet<>(Arrays.asList(bob, carol)), inactiveUsers.getCachedInactiveUsers());
+
+        inactiveUsers.removeWiki("subwiki");
+        assertEquals(Collections.singleton(bob), inactiveUsers.getInactiveUsers());
+    }
+
+    @Test
+    public void getCachedInactiveUsersSubmitsOneLoadAtATime() throws Exception
+    {
+        InactiveUsers inactiveUsers = mocker.getComponentUnderTest();
+
+        assertNull(inactiveUsers.getCachedInactiveUsers());
+        assertNull(inactiveUsers.getCachedInactiveUsers());
+
+        // The submitted load has not run yet
+        verify(mocker.getInstance(BackgroundExecutor.class), times(1)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void loadKeepsUpdatesReceivedDuringTheQueries() throws Exception
+    {
+        InactiveUsers inactiveUsers = mocker.getComponentUnderTest();
+        // Alice is activated after the query has found her, and Bob deactivated after the query has missed him
+        duringLoad = () -> {
+            inactiveUsers.update(alice, false);
+            inactiveUsers.update(bob, true);
+        };
+
+        assertEquals(new HashSet<>(Arrays.asList(bob, carol)), inactiveUsers.getInactiveUsers());
+    }
+
+    @Test
+    public void loadKeepsWikisDeletedDuringTheQueries() throws Exception
+    {
+        InactiveUsers inactiveUsers = mocker.getComponentUnderTest();
+        duringLoad = () -> inactiveUsers.removeWiki("subwiki");
+
+        assertEquals(Collections.singleton(alice), inactiveUsers.getInactiveUsers());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class PerWikiUserCountStrategyTest
+{
+    @Rule
+    public MockitoComponentMockingRule<PerWikiUserCountStrategy> mocker =
+            new MockitoComponentMockingRule<>(PerWikiUserCountStrategy.class);
+
+    private Query mainWikiQuery;
+
+    private Query subWikiQuery;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        QueryManager queryManager = mocker.getInstance(QueryManager.class);
+        Query query = mock(Query.class);
+        when(queryManager.createQuery(anyString(), eq(Query.HQL))).thenReturn(query);
+        mainWikiQuery = mock(Query.class);
+        when(query.setWiki("xwiki")).thenReturn(mainWikiQuery);
+        when(mainWikiQuery.execute()).thenReturn(Collections.<Object>singletonList(10L));
+        subWikiQuery = mock(Query.class);
+        when(query.setWiki("subwiki")).thenReturn(subWikiQuery);
+        when(subWikiQuery.execute()).thenReturn(Collections.<Object>singletonList(5L));
+    }
+
+    @Test
+    public void countUsersSequentially() throws Exception
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Exception> failures = new HashMap<>();
+        mocker.getComponentUnderTest().countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+
+        assertEquals(2, counts.size());
+        assertEquals(Integer.valueOf(10), counts.get("xwiki"));
+        assertEquals(Integer.valueOf(5), counts.get("subwiki"));
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void countUsersWhenAWikiFails() throws Exception
+    {
+        QueryException error = new QueryException("error", mainWikiQuery, null);
+        when(mainWikiQuery.execute()).thenThrow(error);
+
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, Exception> failures = new HashMap<>();
+        mocker.getComponentUnderTest().countUsers(Arrays.asList("xwiki", "subwiki"), counts, failures);
+
+        assertEquals(Collections.singletonMap("subwiki", 5), counts);
+        assertEquals(Collections.singletonMap("xwiki", error), failures);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Run the query counting the active users of a wiki, before and after its rewrite, on an embedded HSQLDB database, to
+ * verify that both count the same users. How fast they are is measured by the benchmarks.
+ *
+ * @version $Id: $
+ */
+public class UserCountQueryTest
+{
+    /**
+     * The HQL statement the former XWQL query of {@link PerWikiUserCountStrategy} was translated to.
+     */
+    private static final String FORMER_ACTIVE_USER_COUNT = "select count(distinct doc.fullName) "
+        + "from XWikiDocument doc, BaseObject obj where obj.name = doc.fullName and obj.className = 'XWiki.XWikiUsers' "
+        + "and doc.fullName not in (select doc2.fullName from XWikiDocument doc2, BaseObject objLimit, "
+        + "IntegerProperty propActive where objLimit.name = doc2.fullName and propActive.id.id = objLimit.id "
+        + "and propActive.id.name = 'active' and propActive.value = 0)";
+
+    private static final String USER_CLASS = "XWiki.XWikiUsers";
+
+    private static final String ACTIVE = "active";
+
+    /**
+     * A document, as mapped by the test mapping.
+     */
+    public static class Document
+    {
+        private long id;
+
+        private String fullName;
+    }
+
+    /**
+     * An object, as mapped by the test mapping.
+     */
+    public static class XObject
+    {
+        private long id;
+
+        private String name;
+
+        private String className;
+    }
+
+    /**
+     * An integer property of an object, as mapped by the test mapping.
+     */
+    public static class XIntegerProperty implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private long id;
+
+        private String name;
+
+        private Integer value;
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof XIntegerProperty)) {
+                return false;
+            }
+            XIntegerProperty other = (XIntegerProperty) object;
+            return id == other.id && Objects.equals(name, other.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(id, name);
+        }
+    }
+
+    private SessionFactory sessionFactory;
+
+    private Session session;
+
+    private long nextId;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Configuration configuration = new Configuration();
+        configuration.setProperty(AvailableSettings.DRIVER, "org.hsqldb.jdbc.JDBCDriver");
+        configuration.setProperty(AvailableSettings.URL, "jdbc:hsqldb:mem:userCountQueryTest");
+        configuration.setProperty(AvailableSettings.USER, "SA");
+        configuration.setProperty(AvailableSettings.PASS, "");
+        configuration.setProperty(AvailableSettings.DIALECT, "org.hibernate.dialect.HSQLDialect");
+        configuration.setProperty(AvailableSettings.HBM2DDL_AUTO, "create-drop");
+        configuration.addResource("userCountQuery.hbm.xml");
+        sessionFactory = configuration.buildSessionFactory(
+                new StandardServiceRegistryBuilder().applySettings(configuration.getProperties()).build());
+        session = sessionFactory.openSession();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        session.close();
+        sessionFactory.close();
+    }
+
+    @Test
+    public void bothQueriesCountTheSameUsers() throws Exception
+    {
+        Transaction transaction = session.beginTransaction();
+        // An active user
+        saveUser("XWiki.Alice", 1);
+        // A deactivated user
+        saveUser("XWiki.Bob", 0);
+        // A user without the active property is active
+        saveUser("XWiki.Carol", null);
+        // A user with some other objects holding integer properties, as the preferences
+        long dave = saveUser("XWiki.Dave", 1);
+        saveProperty(saveObject("XWiki.Dave", "XWiki.XWikiPreferences"), "editbox_width", 80);
+        // A user holding two user objects is counted once
+        saveUser("XWiki.Eve", 1);
+        saveProperty(saveObject("XWiki.Eve", USER_CLASS), ACTIVE, 1);
+        // A document that is not a user, with an integer property named as the active property of the users
+        saveDocument("Main.WebHome");
+        saveProperty(saveObject("Main.WebHome", "Some.Class"), ACTIVE, 1);
+        transaction.commit();
+
+        assertEquals(4L, count(FORMER_ACTIVE_USER_COUNT));
+        assertEquals(4L, count(PerWikiUserCountStrategy.ACTIVE_USER_COUNT));
+
+        // Deactivate a user
+        transaction = session.beginTransaction();
+        XIntegerProperty property = new XIntegerProperty();
+        property.id = dave;
+        property.name = ACTIVE;
+        property = (XIntegerProperty) session.get("IntegerProperty", property);
+        property.value = 0;
+        transaction.commit();
+
+        assertEquals(3L, count(FORMER_ACTIVE_USER_COUNT));
+        assertEquals(3L, count(PerWikiUserCountStrategy.ACTIVE_USER_COUNT));
+    }
+
+    /**
+     * The only case in which the queries differ: an inactive property held by an object of another class used to
+     * exclude the user.
+     */
+    @Test
+    public void inactivePropertyOfAnotherClassDoesNotDeactivateTheUser() throws Exception
+    {
+        Transaction transaction = session.beginTransaction();
+        saveUser("XWiki.Alice", 1);
+        saveProperty(saveObject("XWiki.Alice", "Some.Class"), ACTIVE, 0);
+        transaction.commit();
+
+        assertEquals(0L, count(FORMER_ACTIVE_USER_COUNT));
+        assertEquals(1L, count(PerWikiUserCountStrategy.ACTIVE_USER_COUNT));
+    }
+
+    /**
+     * @return the identifier of the user object
+     */
+    private long saveUser(String fullName, Integer active)
+    {
+        saveDocument(fullName);
+        long objectId = saveObject(fullName, USER_CLASS);
+        if (active != null) {
+            saveProperty(objectId, ACTIVE, active);
+        }
+        return objectId;
+    }
+
+    private void saveDocument(String fullName)
+    {
+        Document document = new Document();
+        document.id = nextId++;
+        document.fullName = fullName;
+        session.save("XWikiDocument", document);
+    }
+
+    private long saveObject(String fullName, String className)
+    {
+        XObject object = new XObject();
+        object.id = nextId++;
+        object.name = fullName;
+        object.className = className;
+        session.save("BaseObject", object);
+        return object.id;
+    }
+
+    private void saveProperty(long objectId, String name, int value)
+    {
+        XIntegerProperty property = new XIntegerProperty();
+        property.id = objectId;
+        property.name = name;
+        property.value = value;
+        session.save("IntegerProperty", property);
+    }
+
+    private long count(String statement)
+    {
+        return ((Number) session.createQuery(statement).uniqueResult()).longValue();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verify that {@link UserCounterListener} keeps the {@link UserCounter} and the {@link InactiveUsers} up to date.
+ *
+ * @version $Id: $
+ */
+public class UserCounterListenerTest
+{
+    @Rule
+    public MockitoComponentMockingRule<UserCounterListener> mocker =
+            new MockitoComponentMockingRule<>(UserCounterListener.class);
+
+    private final DocumentReference user = new DocumentReference("subwiki", "XWiki", "Alice");
+
+    /**
+     * @param active the value of the active property, or {@code null} if the document is not a user
+     */
+    private XWikiDocument mockDocument(Integer active)
+    {
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(user);
+        if (active != null) {
+            BaseObject userObject = mock(BaseObject.class);
+            when(userObject.getIntValue("active", 1)).thenReturn(active);
+            when(document.getXObject(new LocalDocumentReference("XWiki", "XWikiUsers"))).thenReturn(userObject);
+        }
+        return document;
+    }
+
+    private XWikiDocument mockSavedDocument(Integer oldActive, Integer newActive)
+    {
+        XWikiDocument document = mockDocument(newActive);
+        XWikiDocument originalDocument = mockDocument(oldActive);
+        when(document.getOriginalDocument()).thenReturn(originalDocument);
+        return document;
+    }
+
+    @Test
+    public void deactivatedUserBecomesInactive() throws Exception
+    {
+        mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), mockSavedDocument(1, 0), null);
+
+        verify(mocker.getInstance(InactiveUsers.class)).update(user, true);
+        verify(mocker.getInstance(UserCounter.class)).updateUserCount("subwiki", -1);
+    }
+
+    @Test
+    public void activatedUserStopsBeingInactive() throws Exception
+    {
+        mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), mockSavedDocument(0, 1), null);
+
+        verify(mocker.getInstance(InactiveUsers.class)).update(user, false);
+        verify(mocker.getInstance(UserCounter.class)).updateUserCount("subwiki", 1);
+        verify(mocker.getInstance(PendingReservations.class)).confirm(user);
+    }
+
+    @Test
+    public void deletedInactiveUserStopsBeingInactive() throws Exception
+    {
+        // On deletion, the source is an empty document
+        mocker.getComponentUnderTest().onEvent(new DocumentDeletedEvent(), mockSavedDocument(0, null), null);
+
+        verify(mocker.getInstance(InactiveUsers.class)).update(user, false);
+        // The user was not counted
+        verify(mocker.getInstance(UserCounter.class), never()).updateUserCount(anyString(), anyInt());
+    }
+
+    @Test
+    public void otherDocumentsAreIgnored() throws Exception
+    {
+        mocker.getComponentUnderTest().onEvent(new DocumentUpdatedEvent(), mockSavedDocument(null, null), null);
+
+        verify(mocker.getInstance(InactiveUsers.class), never()).update(any(DocumentReference.class), anyBoolean());
+        verify(mocker.getInstance(UserCounter.class), never()).updateUserCount(anyString(), anyInt());
+    }
+
+    @Test
+    public void deletedWikiIsForgotten() throws Exception
+    {
+        mocker.getComponentUnderTest().onEvent(new WikiDeletedEvent("subwiki"), null, null);
+
+        verify(mocker.getInstance(InactiveUsers.class)).removeWiki("subwiki");
+        verify(mocker.getInstance(UserCounter.class)).removeWiki("subwiki");
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.usage.UsageSnapshotStore;
+import org.xwiki.query.QueryException;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class UserCounterTest
+{
+    @Rule
+    public MockitoComponentMockingRule<UserCounter> mocker = new MockitoComponentMockingRule<>(UserCounter.class);
+
+    private UserCountStrategy perWikiStrategy;
+
+    private UserCountStrategy crossWikiStrategy;
+
+    private LimitsConfiguration limitsConfiguration;
+
+    /**
+     * When true, the count of the main wiki fails.
+     */
+    private boolean mainWikiFails;
+
+    /**
+     * The number of users of the subwiki seen by the queries.
+     */
+    private int subwikiCount = 5;
+
+    /**
+     * Executed while the users are counted.
+     */
+    private Runnable duringCount;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        WikiDescriptorManager wikiDescriptorManager = mocker.getInstance(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(Arrays.asList("xwiki", "subwiki"));
+
+        limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+
+        Answer<Void> answer = new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                Map<String, Integer> counts = (Map<String, Integer>) invocation.getArguments()[1];
+                Map<String, Exception> failures = (Map<String, Exception>) invocation.getArguments()[2];
+                if (mainWikiFails) {
+                    failures.put("xwiki", new QueryException("error", null, null));
+                } else {
+                    counts.put("xwiki", 10);
+                }
+                if (duringCount != null) {
+                    duringCount.run();
+                }
+                counts.put("subwiki", subwikiCount);
+                return null;
+            }
+        };
+        perWikiStrategy = mocker.getInstance(UserCountStrategy.class, PerWikiUserCountStrategy.HINT);
+        doAnswer(answer).when(perWikiStrategy).countUsers(anyListOf(String.class),
+                anyMapOf(String.class, Integer.class), anyMapOf(String.class, Exception.class));
+        crossWikiStrategy = mocker.getInstance(UserCountStrategy.class, CrossWikiUserCountStrategy.HINT);
+        doAnswer(answer).when(crossWikiStrategy).countUsers(anyListOf(String.class),
+                anyMapOf(String.class, Integer.class), anyMapOf(String.class, Exception.class));
+    }
+
+    @Test
+    public void getUserCountIsOnlyComputedOnce() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        assertEquals(15, userCounter.getUserCount());
+        assertEquals(15, userCounter.getUserCount());
+
+        verify(perWikiStrategy, times(1)).countUsers(any(List.class), any(Map.class), any(Map.class));
+    }
+
+    @Test
+    public void getCachedUserCountSubmitsOneCountAtATime() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        assertNull(userCounter.getCachedUserCount());
+        assertNull(userCounter.getCachedUserCount("subwiki"));
+        assertEquals(0, userCounter.getCachedUserCounts().size());
+
+        // The submitted count has not run yet
+        verify(mocker.getInstance(BackgroundExecutor.class), times(1)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void getUserCountWithCrossWikiStrategy() throws Exception
+    {
+        when(limitsConfiguration.getCounterStrategy()).thenReturn("cross-wiki");
+
+        assertEquals(15, mocker.getComponentUnderTest().getUserCount());
+
+        verify(crossWikiStrategy).countUsers(any(List.class), any(Map.class), any(Map.class));
+        verify(perWikiStrategy, never()).countUsers(any(List.class), any(Map.class), any(Map.class));
+    }
+
+    @Test
+    public void updateUserCount() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        // Not seeded yet: ignored
+        userCounter.updateUserCount("xwiki", 1);
+        assertEquals(15, userCounter.getUserCount());
+
+        userCounter.updateUserCount("xwiki", 1);
+        userCounter.updateUserCount("subwiki", -1);
+        userCounter.updateUserCount("newwiki", 1);
+        assertEquals(16, userCounter.getUserCount());
+
+        assertEquals(4, userCounter.removeWiki("subwiki"));
+        assertEquals(12, userCounter.getUserCount());
+
+        // The reconciliation corrects the drift
+        userCounter.reconcile();
+        assertEquals(15, userCounter.getUserCount());
+    }
+
+    @Test
+    public void reconcileKeepsUpdatesReceivedDuringTheCount() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+        assertEquals(15, userCounter.getUserCount());
+
+        duringCount = () -> userCounter.updateUserCount("subwiki", 1);
+        userCounter.reconcile();
+
+        assertEquals(16, userCounter.getUserCount());
+        assertEquals(6, userCounter.getUserCount("subwiki"));
+    }
+
+    @Test
+    public void reconcileCountsAgainTheUsersSavedDuringTheRecount() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+        assertEquals(15, userCounter.getUserCount());
+
+        // The queries see the new user
+        duringCount = () -> {
+            subwikiCount = 6;
+            userCounter.updateUserCount("subwiki", 1);
+            duringCount = null;
+        };
+        userCounter.reconcile();
+
+        assertEquals(16, userCounter.getUserCount());
+        verify(perWikiStrategy, times(3)).countUsers(any(List.class), any(Map.class), any(Map.class));
+    }
+
+    @Test
+    public void reconcileKeepsPreviousCountOfFailingWikis() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+        assertEquals(15, userCounter.getUserCount());
+
+        userCounter.updateUserCount("xwiki", 1);
+        mainWikiFails = true;
+        userCounter.reconcile();
+
+        assertEquals(16, userCounter.getUserCount());
+    }
+
+    @Test
+    public void getUserCountFailsWhenAWikiCannotBeCounted() throws Exception
+    {
+        mainWikiFails = true;
+
+        Exception caught = null;
+        try {
+            mocker.getComponentUnderTest().getUserCount();
+        } catch (Exception e) {
+            caught = e;
+        }
+
+        assertNotNull(caught);
+        assertEquals("Failed to get the user count of the wikis [xwiki].", caught.getMessage());
+    }
+
+    @Test
+    public void getUserCountOfAWiki() throws Exception
+    {
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        assertEquals(5, userCounter.getUserCount("subwiki"));
+        assertEquals(0, userCounter.getUserCount("unknown"));
+
+        userCounter.updateUserCount("subwiki", 1);
+        assertEquals(6, userCounter.getUserCount("subwiki"));
+        assertEquals(16, userCounter.getUserCount());
+    }
+
+    @Test
+    public void lastKnownCountsAreNotEnforced() throws Exception
+    {
+        Map<String, Integer> lastKnownCounts = new HashMap<>();
+        lastKnownCounts.put("xwiki", 2);
+        lastKnownCounts.put("subwiki", 1);
+        UsageSnapshotStore usageSnapshotStore = mocker.getInstance(UsageSnapshotStore.class);
+        when(usageSnapshotStore.getUserCounts()).thenReturn(lastKnownCounts);
+
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        // Displayed, but neither counted nor saved again
+        assertEquals(Integer.valueOf(3), userCounter.getCachedUserCount());
+        assertEquals(Integer.valueOf(1), userCounter.getCachedUserCount("subwiki"));
+        assertNull(userCounter.getKnownUserCounts());
+        verify(perWikiStrategy, never()).countUsers(any(List.class), any(Map.class), any(Map.class));
+
+        // The users are counted to enforce the limits
+        assertEquals(15, userCounter.getUserCount());
+        assertEquals(5, userCounter.getUserCount("subwiki"));
+        assertEquals(Integer.valueOf(15), userCounter.getCachedUserCount());
+        assertEquals(2, userCounter.getKnownUserCounts().size());
+    }
+
+    @Test
+    public void lastKnownCountsAreNotKeptWhenAWikiCannotBeCounted() throws Exception
+    {
+        UsageSnapshotStore usageSnapshotStore = mocker.getInstance(UsageSnapshotStore.class);
+        when(usageSnapshotStore.getUserCounts()).thenReturn(Collections.singletonMap("xwiki", 2));
+        mainWikiFails = true;
+
+        UserCounter userCounter = mocker.getComponentUnderTest();
+
+        Exception caught = null;
+        try {
+            userCounter.getUserCount();
+        } catch (Exception e) {
+            caught = e;
+        }
+
+        assertNotNull(caught);
+        assertEquals("Failed to get the user count of the wikis [xwiki].", caught.getMessage());
+    }
+}
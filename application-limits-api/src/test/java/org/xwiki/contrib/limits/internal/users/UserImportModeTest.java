@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.contrib.limits.internal.soft.SoftLimitVerifier;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class UserImportModeTest
+{
+    @Rule
+    public MockitoComponentMockingRule<UserImportMode> mocker =
+            new MockitoComponentMockingRule<>(UserImportMode.class);
+
+    private UserCounter userCounter;
+
+    private SoftLimitVerifier softLimitVerifier;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Execution execution = mocker.getInstance(Execution.class);
+        when(execution.getContext()).thenReturn(new ExecutionContext());
+
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getTotalNumberOfUsersLimit()).thenReturn(10);
+        Map<String, Integer> wikiUserLimits = new HashMap<>();
+        wikiUserLimits.put("subwiki", 5);
+        wikiUserLimits.put("otherwiki", 3);
+        when(limitsConfiguration.getWikiUserLimits()).thenReturn(wikiUserLimits);
+
+        userCounter = mocker.getInstance(UserCounter.class);
+        when(userCounter.getUserCount()).thenReturn(8);
+        when(userCounter.getUserCount("subwiki")).thenReturn(4);
+        when(userCounter.getUserCount("otherwiki")).thenReturn(2);
+
+        softLimitVerifier = mocker.getInstance(SoftLimitVerifier.class);
+        when(softLimitVerifier.verifyUncheckedUsers(anyListOf(DocumentReference.class))).thenReturn(true);
+    }
+
+    @Test
+    public void stopResetsTheQuotas() throws Exception
+    {
+        UserImportMode userImportMode = mocker.getComponentUnderTest();
+        userImportMode.start();
+        assertTrue(userImportMode.isStarted());
+
+        assertTrue(userImportMode.stop());
+        assertFalse(userImportMode.isStarted());
+
+        verify(userCounter).reconcile();
+        QuotaManager quotaManager = mocker.getInstance(QuotaManager.class);
+        verify(quotaManager).reset(QuotaManager.USERS, 8);
+        verify(quotaManager).reset(QuotaManager.WIKI_USERS_PREFIX + "subwiki", 4);
+        verify(quotaManager).reset(QuotaManager.WIKI_USERS_PREFIX + "otherwiki", 2);
+        verify(softLimitVerifier).verifyUncheckedUsers(Collections.<DocumentReference>emptyList());
+    }
+
+    @Test
+    public void stopWhenTheImportExceedsTheUserLimits() throws Exception
+    {
+        DocumentReference alice = new DocumentReference("subwiki", "XWiki", "Alice");
+        DocumentReference bob = new DocumentReference("subwiki", "XWiki", "Bob");
+        List<DocumentReference> users = Arrays.asList(alice, bob);
+        when(softLimitVerifier.verifyUncheckedUsers(users)).thenReturn(false);
+
+        UserImportMode userImportMode = mocker.getComponentUnderTest();
+        userImportMode.start();
+        userImportMode.addUser(alice);
+        userImportMode.addUser(bob);
+
+        // The users over the limits are handled like the users accepted over a soft limit
+        assertFalse(userImportMode.stop());
+        verify(mocker.getMockedLogger()).warn("The import of [{}] users has exceeded the user limits.", 2);
+    }
+
+    @Test
+    public void addUserIsIgnoredWhenTheImportModeIsNotStarted() throws Exception
+    {
+        UserImportMode userImportMode = mocker.getComponentUnderTest();
+        userImportMode.addUser(new DocumentReference("subwiki", "XWiki", "Alice"));
+
+        assertTrue(userImportMode.stop());
+    }
+}
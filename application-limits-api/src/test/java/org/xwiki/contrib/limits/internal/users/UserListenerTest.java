@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.quota.PendingReservations;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class UserListenerTest
+{
+    private static final String WIKI_QUOTA = QuotaManager.WIKI_USERS_PREFIX + "subwiki";
+
+    @Rule
+    public MockitoComponentMockingRule<UserListener> mocker = new MockitoComponentMockingRule<>(UserListener.class);
+
+    private final DocumentReference user = new DocumentReference("subwiki", "XWiki", "Alice");
+
+    private XWikiDocument document;
+
+    private QuotaManager quotaManager;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        LimitsConfiguration limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getTotalNumberOfUsersLimit()).thenReturn(10);
+        when(limitsConfiguration.getWikiUserLimits()).thenReturn(Collections.singletonMap("subwiki", 5));
+        quotaManager = mocker.getInstance(QuotaManager.class);
+
+        // A new active user
+        document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(user);
+        BaseObject userObject = mock(BaseObject.class);
+        when(userObject.getIntValue("active", 1)).thenReturn(1);
+        when(document.getXObject(new DocumentReference("subwiki", "XWiki", "XWikiUsers"))).thenReturn(userObject);
+        when(document.getOriginalDocument()).thenReturn(mock(XWikiDocument.class));
+    }
+
+    @Test
+    public void onEventWhenTheWikiUserLimitIsReached() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(WIKI_QUOTA), eq(5L), any(Callable.class))).thenReturn(false);
+
+        DocumentCreatingEvent event = new DocumentCreatingEvent();
+        mocker.getComponentUnderTest().onEvent(event, document, null);
+
+        assertTrue(event.isCanceled());
+        // The user limit of the whole instance is not even checked
+        verify(quotaManager, never()).tryAcquire(eq(QuotaManager.USERS), eq(10L), any(Callable.class));
+    }
+
+    @Test
+    public void onEventWhenTheUserLimitIsReachedGivesBackTheWikiQuota() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(WIKI_QUOTA), eq(5L), any(Callable.class))).thenReturn(true);
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(10L), any(Callable.class))).thenReturn(false);
+
+        DocumentCreatingEvent event = new DocumentCreatingEvent();
+        mocker.getComponentUnderTest().onEvent(event, document, null);
+
+        assertTrue(event.isCanceled());
+        verify(quotaManager).release(WIKI_QUOTA);
+        verify(mocker.getInstance(PendingReservations.class), never()).add(any(DocumentReference.class),
+                anyListOf(String.class));
+    }
+
+    @Test
+    public void onEventWhenTheLimitsAreRespected() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(WIKI_QUOTA), eq(5L), any(Callable.class))).thenReturn(true);
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(10L), any(Callable.class))).thenReturn(true);
+
+        DocumentCreatingEvent event = new DocumentCreatingEvent();
+        mocker.getComponentUnderTest().onEvent(event, document, null);
+
+        assertFalse(event.isCanceled());
+        verify(quotaManager, never()).release(anyString());
+        // Given back if the user is not saved in the end
+        verify(mocker.getInstance(PendingReservations.class)).add(user, Arrays.asList(WIKI_QUOTA,
+                QuotaManager.USERS));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.users;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import javax.inject.Provider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.XWikiContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class UserSeatReservationTest
+{
+    @Rule
+    public MockitoComponentMockingRule<UserSeatReservation> mocker =
+            new MockitoComponentMockingRule<>(UserSeatReservation.class);
+
+    private QuotaManager quotaManager;
+
+    private LimitsConfiguration limitsConfiguration;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Execution execution = mocker.getInstance(Execution.class);
+        when(execution.getContext()).thenReturn(new ExecutionContext());
+        limitsConfiguration = mocker.getInstance(LimitsConfiguration.class);
+        when(limitsConfiguration.getTotalNumberOfUsersLimit()).thenReturn(10);
+        quotaManager = mocker.getInstance(QuotaManager.class);
+        Provider<XWikiContext> xcontextProvider = mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        XWikiContext xcontext = mock(XWikiContext.class);
+        when(xcontextProvider.get()).thenReturn(xcontext);
+        when(xcontext.getWikiId()).thenReturn("subwiki");
+    }
+
+    @Test
+    public void reserveConsumeAndRelease() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(3), eq(10L), any(Callable.class))).thenReturn(true);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertTrue(userSeatReservation.reserve(3));
+        assertTrue(userSeatReservation.consume(QuotaManager.USERS));
+        assertTrue(userSeatReservation.consume(QuotaManager.USERS));
+
+        // The unused seat is given back, and only once
+        assertEquals(1, userSeatReservation.release());
+        verify(quotaManager).release(QuotaManager.USERS, 1);
+        assertEquals(0, userSeatReservation.release());
+        assertFalse(userSeatReservation.consume(QuotaManager.USERS));
+    }
+
+    @Test
+    public void consumeBeyondTheReservedSeats() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(1), eq(10L), any(Callable.class))).thenReturn(true);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertTrue(userSeatReservation.reserve(1));
+        assertTrue(userSeatReservation.consume(QuotaManager.USERS));
+        // The next users are checked as usual
+        assertFalse(userSeatReservation.consume(QuotaManager.USERS));
+
+        assertEquals(0, userSeatReservation.release());
+        verify(quotaManager, never()).release(anyString(), anyInt());
+    }
+
+    @Test
+    public void reserveOverTheLimit() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(11), eq(10L), any(Callable.class)))
+                .thenReturn(false);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertFalse(userSeatReservation.reserve(11));
+        assertFalse(userSeatReservation.consume(QuotaManager.USERS));
+        assertEquals(0, userSeatReservation.release());
+    }
+
+    @Test
+    public void reserveTheSeatsOfTheWiki() throws Exception
+    {
+        String wikiQuota = QuotaManager.WIKI_USERS_PREFIX + "subwiki";
+        when(limitsConfiguration.getWikiUserLimits()).thenReturn(Collections.singletonMap("subwiki", 5));
+        when(quotaManager.tryAcquire(eq(wikiQuota), eq(3), eq(5L), any(Callable.class))).thenReturn(true);
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(3), eq(10L), any(Callable.class))).thenReturn(true);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertTrue(userSeatReservation.reserve(3));
+        assertTrue(userSeatReservation.consume(wikiQuota));
+        assertTrue(userSeatReservation.consume(QuotaManager.USERS));
+        assertFalse(userSeatReservation.consume(QuotaManager.WIKI_USERS_PREFIX + "otherwiki"));
+
+        assertEquals(2, userSeatReservation.release());
+        verify(quotaManager).release(wikiQuota, 2);
+        verify(quotaManager).release(QuotaManager.USERS, 2);
+    }
+
+    @Test
+    public void reserveOverTheLimitOfTheFarmGivesBackTheSeatsOfTheWiki() throws Exception
+    {
+        String wikiQuota = QuotaManager.WIKI_USERS_PREFIX + "subwiki";
+        when(limitsConfiguration.getWikiUserLimits()).thenReturn(Collections.singletonMap("subwiki", 5));
+        when(quotaManager.tryAcquire(eq(wikiQuota), eq(3), eq(5L), any(Callable.class))).thenReturn(true);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertFalse(userSeatReservation.reserve(3));
+
+        verify(quotaManager).release(wikiQuota, 3);
+        assertFalse(userSeatReservation.consume(wikiQuota));
+    }
+
+    @Test
+    public void expiredReservationIsGivenBack() throws Exception
+    {
+        when(quotaManager.tryAcquire(eq(QuotaManager.USERS), eq(3), eq(10L), any(Callable.class))).thenReturn(true);
+
+        UserSeatReservation userSeatReservation = mocker.getComponentUnderTest();
+        assertTrue(userSeatReservation.reserve(3, "xwiki"));
+        assertTrue(userSeatReservation.consume(QuotaManager.USERS));
+
+        // Not expired yet
+        userSeatReservation.releaseExpired(System.currentTimeMillis());
+        verify(quotaManager, never()).release(anyString(), anyInt());
+
+        // The execution context never ends, as in a scheduler job
+        userSeatReservation.releaseExpired(System.currentTimeMillis() + UserSeatReservation.EXPIRATION);
+        verify(quotaManager).release(QuotaManager.USERS, 2);
+        assertFalse(userSeatReservation.consume(QuotaManager.USERS));
+
+        // Given back only once
+        assertEquals(0, userSeatReservation.release());
+        verify(quotaManager, times(1)).release(QuotaManager.USERS, 2);
+    }
+}
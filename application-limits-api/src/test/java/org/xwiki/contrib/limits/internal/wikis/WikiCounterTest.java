@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.wikis;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.usage.UsageSnapshotStore;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id: $
+ */
+public class WikiCounterTest
+{
+    @Rule
+    public MockitoComponentMockingRule<WikiCounter> mocker = new MockitoComponentMockingRule<>(WikiCounter.class);
+
+    @Test
+    public void getCachedWikiCountSubmitsOneCountAtATime() throws Exception
+    {
+        WikiCounter wikiCounter = mocker.getComponentUnderTest();
+
+        assertNull(wikiCounter.getCachedWikiCount());
+        assertNull(wikiCounter.getCachedWikiCount());
+
+        // The submitted count has not run yet
+        verify(mocker.getInstance(BackgroundExecutor.class), times(1)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void getWikiCount() throws Exception
+    {
+        WikiDescriptorManager wikiDescriptorManager = mocker.getInstance(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(Arrays.asList("xwiki", "subwiki"));
+
+        WikiCounter wikiCounter = mocker.getComponentUnderTest();
+        // Ignored: the wiki will be counted by the seed
+        wikiCounter.updateWikiCount(1);
+        assertEquals(2, wikiCounter.getWikiCount());
+
+        wikiCounter.updateWikiCount(1);
+        assertEquals(3, wikiCounter.getWikiCount());
+        wikiCounter.updateWikiCount(-1);
+        assertEquals(2, wikiCounter.getWikiCount());
+
+        verify(wikiDescriptorManager, times(1)).getAllIds();
+    }
+
+    @Test
+    public void reconcileCountsAgainTheWikisCreatedDuringTheRecount() throws Exception
+    {
+        WikiDescriptorManager wikiDescriptorManager = mocker.getInstance(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(Arrays.asList("xwiki", "subwiki"));
+        WikiCounter wikiCounter = mocker.getComponentUnderTest();
+        assertEquals(2, wikiCounter.getWikiCount());
+
+        // The descriptors have been read before the new wiki was created
+        when(wikiDescriptorManager.getAllIds()).thenAnswer(invocation -> {
+            wikiCounter.updateWikiCount(1);
+            return Arrays.asList("xwiki", "subwiki");
+        }).thenReturn(Arrays.asList("xwiki", "subwiki", "newwiki"));
+        wikiCounter.reconcile();
+
+        assertEquals(3, wikiCounter.getWikiCount());
+        verify(wikiDescriptorManager, times(3)).getAllIds();
+    }
+
+    @Test
+    public void lastKnownCountIsNotEnforced() throws Exception
+    {
+        WikiDescriptorManager wikiDescriptorManager = mocker.getInstance(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(Arrays.asList("xwiki", "subwiki"));
+        UsageSnapshotStore usageSnapshotStore = mocker.getInstance(UsageSnapshotStore.class);
+        when(usageSnapshotStore.getWikiCount()).thenReturn(5);
+
+        WikiCounter wikiCounter = mocker.getComponentUnderTest();
+
+        // Displayed, but neither counted nor saved again
+        assertEquals(Integer.valueOf(5), wikiCounter.getCachedWikiCount());
+        assertNull(wikiCounter.getKnownWikiCount());
+        verify(wikiDescriptorManager, never()).getAllIds();
+
+        // The wikis are counted to enforce the limit
+        assertEquals(2, wikiCounter.getWikiCount());
+        assertEquals(Integer.valueOf(2), wikiCounter.getCachedWikiCount());
+        assertEquals(Integer.valueOf(2), wikiCounter.getKnownWikiCount());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberCounter;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberListener;
+import org.xwiki.contrib.limits.internal.groups.GroupMemberResolver;
+import org.xwiki.contrib.limits.internal.groups.GroupMembershipIndex;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure the expansion of the members of a group and the check of a group limit when a member is added, for a flat
+ * group of many users and for a deep tree of nested groups.
+ *
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupBenchmark
+{
+    private static final String WIKI = "xwiki";
+
+    private static final String SPACE = "XWiki";
+
+    /**
+     * "flat": one group of 10,000 users. "nested": a tree of groups, 6 subgroups per group on 4 levels, each leaf
+     * group holding 10 users (12,960 users).
+     */
+    @Param({ "flat", "nested" })
+    public String shape;
+
+    private final Map<DocumentReference, XWikiDocument> documents = new HashMap<>();
+
+    private final DocumentReference root = new DocumentReference(WIKI, SPACE, "RootGroup");
+
+    private GroupMembershipIndex index;
+
+    private GroupMemberCounter counter;
+
+    private GroupMemberListener listener;
+
+    /**
+     * The root group with one more user, as received by the listener before it is saved.
+     */
+    private XWikiDocument updatedRoot;
+
+    private int userIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        if ("flat".equals(shape)) {
+            documents.put(root, StandIns.newGroup(root, newUsers(10000)));
+        } else {
+            newGroupTree(root, 4, 6, 10);
+        }
+
+        XWikiContext xcontext = mock(XWikiContext.class);
+        XWiki xwiki = mock(XWiki.class);
+        when(xcontext.getWiki()).thenReturn(xwiki);
+        when(xwiki.getDocument(any(DocumentReference.class), any(XWikiContext.class))).thenAnswer(
+            invocation -> documents.get(invocation.getArguments()[0]));
+
+        LimitsConfiguration configuration = new StandIns.StandInConfiguration(Integer.MAX_VALUE, Integer.MAX_VALUE,
+            Collections.<DocumentReference, Number>singletonMap(root, Integer.MAX_VALUE), 1);
+
+        DocumentReferenceResolver<String> resolver = (name, parameters) -> new DocumentReference(WIKI, SPACE, name);
+        index = new GroupMembershipIndex();
+        StandIns.inject(index, "explicitDocumentReferenceResolver", resolver);
+        StandIns.inject(index, "xcontextProvider", (Provider<XWikiContext>) () -> xcontext);
+        StandIns.inject(index, "metrics", StandIns.newMetrics());
+        // The documents are loaded, as when the members cannot be resolved with queries
+        StandIns.inject(index, "groupMemberResolver", mock(GroupMemberResolver.class));
+        StandIns.inject(index, "limitsConfiguration", configuration);
+
+        counter = StandIns.inject(new GroupMemberCounter(), "groupMembershipIndex", index);
+        StandIns.inject(counter, "limitsConfiguration", configuration);
+
+        listener = StandIns.injectLogger(new GroupMemberListener());
+        StandIns.inject(listener, "groupMemberCounter", counter);
+        StandIns.inject(listener, "limitsConfiguration", configuration);
+        StandIns.inject(listener, "metrics", StandIns.newMetrics());
+
+        XWikiDocument savedRoot = documents.get(root);
+        List<DocumentReference> members = new ArrayList<>(index.getDirectMembers(savedRoot));
+        DocumentReference newUser = new DocumentReference(WIKI, SPACE, "NewUser");
+        documents.put(newUser, StandIns.newUser(newUser, true));
+        members.add(newUser);
+        updatedRoot = StandIns.newGroup(root, members);
+        updatedRoot.setOriginalDocument(savedRoot);
+    }
+
+    /**
+     * Expand the members of the root group when nothing is known yet (first check after a start or a wiki deletion).
+     */
+    @Benchmark
+    public Object coldMembers() throws Exception
+    {
+        index.clear();
+        return index.getMembers(root);
+    }
+
+    /**
+     * Expand the members of the root group when they are already known.
+     */
+    @Benchmark
+    public Object warmMembers() throws Exception
+    {
+        return index.getMembers(root);
+    }
+
+    /**
+     * Count the users of the root group, as the usage resource does.
+     */
+    @Benchmark
+    public long userCount() throws Exception
+    {
+        return counter.getUserCount(root);
+    }
+
+    /**
+     * Check the limit of the root group when a user is added to it.
+     */
+    @Benchmark
+    public void addUser(Blackhole blackhole)
+    {
+        DocumentUpdatingEvent event = new DocumentUpdatingEvent();
+        listener.onEvent(event, updatedRoot, null);
+        blackhole.consume(event.isCanceled());
+    }
+
+    private List<DocumentReference> newUsers(int count)
+    {
+        List<DocumentReference> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            DocumentReference user = new DocumentReference(WIKI, SPACE, "User" + userIndex++);
+            documents.put(user, StandIns.newUser(user, true));
+            users.add(user);
+        }
+        return users;
+    }
+
+    private void newGroupTree(DocumentReference group, int depth, int fanOut, int usersPerLeaf)
+    {
+        List<DocumentReference> members;
+        if (depth == 0) {
+            members = newUsers(usersPerLeaf);
+        } else {
+            members = new ArrayList<>(fanOut);
+            for (int i = 0; i < fanOut; i++) {
+                DocumentReference subGroup = new DocumentReference(WIKI, SPACE, group.getName() + '_' + i);
+                newGroupTree(subGroup, depth - 1, fanOut, usersPerLeaf);
+                members.add(subGroup);
+            }
+        }
+        documents.put(group, StandIns.newGroup(group, members));
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.limits.LimitsConfiguration;
+import org.xwiki.contrib.limits.internal.metrics.LimitsMetrics;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * In-memory stand-ins for the parts of XWiki that the benchmarks do not measure, and helpers to assemble the
+ * components without a component manager.
+ *
+ * @version $Id: $
+ */
+public final class StandIns
+{
+    /**
+     * Reference of the class of the group members, in the main wiki.
+     */
+    public static final DocumentReference GROUPS_CLASS = new DocumentReference("xwiki", "XWiki", "XWikiGroups");
+
+    private StandIns()
+    {
+    }
+
+    /**
+     * Set a field that is normally injected by the component manager.
+     *
+     * @param component the component
+     * @param fieldName the name of the field
+     * @param value the value to inject
+     * @param <T> the type of the component
+     * @return the component
+     */
+    public static <T> T inject(T component, String fieldName, Object value)
+    {
+        ReflectionUtils.setFieldValue(component, fieldName, value);
+        return component;
+    }
+
+    /**
+     * @param component a component
+     * @param <T> the type of the component
+     * @return the component, with a logger that discards everything
+     */
+    public static <T> T injectLogger(T component)
+    {
+        return inject(component, "logger", NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * @return the metrics, really recorded, so that the benchmarks include their cost
+     */
+    public static LimitsMetrics newMetrics()
+    {
+        return injectLogger(new LimitsMetrics());
+    }
+
+    /**
+     * @param reference the reference of the group
+     * @param members the direct members of the group
+     * @return a saved group document
+     */
+    public static XWikiDocument newGroup(DocumentReference reference, List<DocumentReference> members)
+    {
+        List<BaseObject> objects = new ArrayList<>(members.size());
+        for (DocumentReference member : members) {
+            BaseObject object = new BaseObject();
+            object.setStringValue("member", member.getName());
+            objects.add(object);
+        }
+        return new StandInDocument(reference, objects, null);
+    }
+
+    /**
+     * @param reference the reference of the user
+     * @param active whether the user is active
+     * @return a saved user document
+     */
+    public static XWikiDocument newUser(DocumentReference reference, boolean active)
+    {
+        BaseObject object = new BaseObject();
+        object.setIntValue("active", active ? 1 : 0);
+        return new StandInDocument(reference, Collections.<BaseObject>emptyList(), object);
+    }
+
+    /**
+     * A document answering the few calls made by the Limits Application without resolving any reference (which
+     * would require a component manager).
+     */
+    public static class StandInDocument extends XWikiDocument
+    {
+        private final List<BaseObject> groupObjects;
+
+        private final BaseObject userObject;
+
+        /**
+         * @param reference the reference of the document
+         * @param groupObjects the XWikiGroups objects of the document
+         * @param userObject the XWikiUsers object of the document, or {@code null}
+         */
+        public StandInDocument(DocumentReference reference, List<BaseObject> groupObjects, BaseObject userObject)
+        {
+            super(reference);
+            this.groupObjects = groupObjects;
+            this.userObject = userObject;
+            setNew(false);
+        }
+
+        @Override
+        public List<BaseObject> getXObjects(DocumentReference classReference)
+        {
+            return GROUPS_CLASS.getName().equals(classReference.getName()) ? groupObjects : null;
+        }
+
+        @Override
+        public BaseObject getXObject(DocumentReference classReference)
+        {
+            return getXObject((EntityReference) classReference);
+        }
+
+        @Override
+        public BaseObject getXObject(EntityReference classReference)
+        {
+            return "XWikiUsers".equals(classReference.extractReference(EntityType.DOCUMENT).getName()) ? userObject
+                    : null;
+        }
+    }
+
+    /**
+     * A configuration that never changes.
+     */
+    public static class StandInConfiguration implements LimitsConfiguration
+    {
+        private final int users;
+
+        private final int wikis;
+
+        private final Map<DocumentReference, Number> groups;
+
+        private final int leaseSize;
+
+        /**
+         * @param users the user limit
+         * @param wikis the wiki limit
+         * @param groups the group limits
+         * @param leaseSize the number of quota units reserved at once
+         */
+        public StandInConfiguration(int users, int wikis, Map<DocumentReference, Number> groups, int leaseSize)
+        {
+            this.users = users;
+            this.wikis = wikis;
+            this.groups = groups;
+            this.leaseSize = leaseSize;
+        }
+
+        @Override
+        public void reload()
+        {
+            // Nothing to reload
+        }
+
+        @Override
+        public int getTotalNumberOfUsersLimit()
+        {
+            return users;
+        }
+
+        @Override
+        public boolean isUserLimitSoft()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDeactivatingUsersOverLimit()
+        {
+            return false;
+        }
+
+        @Override
+        public int getWikisNumberLimit()
+        {
+            return wikis;
+        }
+
+        @Override
+        public Map<DocumentReference, Number> getGroupsLimits()
+        {
+            return groups;
+        }
+
+        @Override
+        public Number getGroupLimit(DocumentReference group)
+        {
+            return groups.get(group);
+        }
+
+        @Override
+        public boolean isGroupLimitSoft(DocumentReference group)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCountingActiveGroupMembersOnly()
+        {
+            return false;
+        }
+
+        @Override
+        public Map<String, Object> getCustomLimits()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, Integer> getWikiUserLimits()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public int getCounterThreads()
+        {
+            return 1;
+        }
+
+        @Override
+        public int getCounterTimeout()
+        {
+            return 60;
+        }
+
+        @Override
+        public String getCounterStrategy()
+        {
+            return null;
+        }
+
+        @Override
+        public int getCounterBatchSize()
+        {
+            return 50;
+        }
+
+        @Override
+        public String getQuotaStore()
+        {
+            return null;
+        }
+
+        @Override
+        public int getQuotaLeaseSize()
+        {
+            return leaseSize;
+        }
+
+        @Override
+        public int getUsageMaxStaleness()
+        {
+            return 60;
+        }
+
+        @Override
+        public String getVersion()
+        {
+            return "benchmark";
+        }
+    }
+}
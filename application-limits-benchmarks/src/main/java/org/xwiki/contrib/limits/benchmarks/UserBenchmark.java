@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xwiki.bridge.event.DocumentCreatingEvent;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.contrib.limits.internal.BackgroundExecutor;
+import org.xwiki.contrib.limits.internal.quota.MemoryQuotaStore;
+import org.xwiki.contrib.limits.internal.quota.QuotaManager;
+import org.xwiki.contrib.limits.internal.users.PerWikiUserCountStrategy;
+import org.xwiki.contrib.limits.internal.users.UserCountStrategy;
+import org.xwiki.contrib.limits.internal.users.UserCounter;
+import org.xwiki.contrib.limits.internal.users.UserListener;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure the check of the user limit when a document is saved, and the full count of the users of 1,000 wikis
+ * (with a query manager answering immediately, so that only the overhead of the Limits Application is measured).
+ *
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserBenchmark
+{
+    private static final int WIKIS = 1000;
+
+    /**
+     * Number of quota units reserved at once.
+     */
+    @Param({ "1", "10" })
+    public int leaseSize;
+
+    /**
+     * Number of threads counting the wikis in parallel.
+     */
+    @Param({ "1", "4" })
+    public int counterThreads;
+
+    private UserListener listener;
+
+    private UserCounter userCounter;
+
+    private XWikiDocument page;
+
+    private XWikiDocument newUser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        StandIns.StandInConfiguration configuration = new StandIns.StandInConfiguration(Integer.MAX_VALUE,
+            Integer.MAX_VALUE, Collections.<DocumentReference, Number>emptyMap(), leaseSize)
+        {
+            @Override
+            public int getCounterThreads()
+            {
+                return counterThreads;
+            }
+        };
+
+        List<String> wikiIds = new ArrayList<>(WIKIS);
+        for (int i = 0; i < WIKIS; i++) {
+            wikiIds.add("wiki" + i);
+        }
+        WikiDescriptorManager wikiDescriptorManager = mock(WikiDescriptorManager.class);
+        when(wikiDescriptorManager.getAllIds()).thenReturn(wikiIds);
+
+        Query query = mock(Query.class);
+        when(query.setWiki(anyString())).thenReturn(query);
+        when(query.<Long>execute()).thenReturn(Collections.singletonList(10L));
+        QueryManager queryManager = mock(QueryManager.class);
+        when(queryManager.createQuery(anyString(), anyString())).thenReturn(query);
+
+        // Only used for the thread pools counting the wikis in parallel, so it is not initialized
+        BackgroundExecutor backgroundExecutor = StandIns.injectLogger(new BackgroundExecutor());
+        StandIns.inject(backgroundExecutor, "execution", mock(Execution.class));
+        StandIns.inject(backgroundExecutor, "executionContextManager", mock(ExecutionContextManager.class));
+
+        UserCountStrategy strategy = new PerWikiUserCountStrategy();
+        StandIns.inject(strategy, "queryManager", queryManager);
+        StandIns.inject(strategy, "backgroundExecutor", backgroundExecutor);
+        StandIns.inject(strategy, "limitsConfiguration", configuration);
+        StandIns.inject(strategy, "metrics", StandIns.newMetrics());
+
+        userCounter = StandIns.injectLogger(new UserCounter());
+        StandIns.inject(userCounter, "wikiDescriptorManager", wikiDescriptorManager);
+        StandIns.inject(userCounter, "perWikiStrategy", strategy);
+        StandIns.inject(userCounter, "crossWikiStrategy", strategy);
+        StandIns.inject(userCounter, "backgroundExecutor", backgroundExecutor);
+        StandIns.inject(userCounter, "limitsConfiguration", configuration);
+        StandIns.inject(userCounter, "metrics", StandIns.newMetrics());
+
+        QuotaManager quotaManager = StandIns.injectLogger(new QuotaManager());
+        StandIns.inject(quotaManager, "memoryStore", new MemoryQuotaStore());
+        StandIns.inject(quotaManager, "limitsConfiguration", configuration);
+        StandIns.inject(quotaManager, "backgroundExecutor", backgroundExecutor);
+
+        listener = StandIns.injectLogger(new UserListener());
+        StandIns.inject(listener, "userCounter", userCounter);
+        StandIns.inject(listener, "limitConfiguration", configuration);
+        StandIns.inject(listener, "quotaManager", quotaManager);
+        StandIns.inject(listener, "metrics", StandIns.newMetrics());
+
+        page = StandIns.newGroup(new DocumentReference("xwiki", "Main", "WebHome"),
+            Collections.<DocumentReference>emptyList());
+        newUser = StandIns.newUser(new DocumentReference("xwiki", "XWiki", "NewUser"), true);
+        newUser.setNew(true);
+        // The original version of a new document is empty
+        newUser.setOriginalDocument(StandIns.newGroup(newUser.getDocumentReference(),
+            Collections.<DocumentReference>emptyList()));
+    }
+
+    /**
+     * Save a document that is not a user: the most frequent case.
+     */
+    @Benchmark
+    public void savePage(Blackhole blackhole)
+    {
+        DocumentCreatingEvent event = new DocumentCreatingEvent();
+        listener.onEvent(event, page, null);
+        blackhole.consume(event.isCanceled());
+    }
+
+    /**
+     * Create a new active user, which reserves a unit of the user quota.
+     */
+    @Benchmark
+    public void createUser(Blackhole blackhole)
+    {
+        DocumentCreatingEvent event = new DocumentCreatingEvent();
+        listener.onEvent(event, newUser, null);
+        blackhole.consume(event.isCanceled());
+    }
+
+    /**
+     * Count the users of all the wikis, as done when the counter is seeded or reconciled.
+     */
+    @Benchmark
+    public int countUsers() throws Exception
+    {
+        userCounter.reconcile();
+        return userCounter.getUserCount();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the query counting the active users of a wiki before and after its rewrite, on an embedded HSQLDB
+ * database holding the XWiki tables involved (documents, objects and integer properties) and a large number of users.
+ * The statements are the SQL equivalents of the former XWQL query and of the current HQL query of
+ * {@link org.xwiki.contrib.limits.internal.users.PerWikiUserCountStrategy}. The setup fails if both statements do not
+ * count the same users.
+ *
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserCountQueryBenchmark
+{
+    /**
+     * The former query: the documents having a user object, minus the documents of the whole wiki having an inactive
+     * object.
+     */
+    private static final String NOT_IN_QUERY = "SELECT COUNT(DISTINCT doc.XWD_FULLNAME) FROM xwikidoc doc "
+        + "JOIN xwikiobjects obj ON obj.XWO_NAME = doc.XWD_FULLNAME AND obj.XWO_CLASSNAME = 'XWiki.XWikiUsers' "
+        + "WHERE doc.XWD_FULLNAME NOT IN (SELECT doc2.XWD_FULLNAME FROM xwikidoc doc2, xwikiobjects obj2, "
+        + "xwikiintegers prop WHERE obj2.XWO_NAME = doc2.XWD_FULLNAME AND prop.XWI_ID = obj2.XWO_ID "
+        + "AND prop.XWI_NAME = 'active' AND prop.XWI_VALUE = 0)";
+
+    /**
+     * The rewritten query: the user objects without an inactive property, looked up by primary key.
+     */
+    private static final String NOT_EXISTS_QUERY = "SELECT COUNT(DISTINCT obj.XWO_NAME) FROM xwikiobjects obj "
+        + "WHERE obj.XWO_CLASSNAME = 'XWiki.XWikiUsers' AND NOT EXISTS (SELECT prop.XWI_ID FROM xwikiintegers prop "
+        + "WHERE prop.XWI_ID = obj.XWO_ID AND prop.XWI_NAME = 'active' AND prop.XWI_VALUE = 0)";
+
+    /**
+     * One user out of this number is inactive, and one out of this number has no "active" property at all.
+     */
+    private static final int INACTIVE_RATIO = 10;
+
+    /**
+     * Number of users of the wiki.
+     */
+    @Param({ "10000", "200000" })
+    public int users;
+
+    private Connection connection;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException
+    {
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:limits" + users, "SA", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE xwikidoc (XWD_ID BIGINT PRIMARY KEY, XWD_FULLNAME VARCHAR(255), "
+                + "XWD_LANGUAGE VARCHAR(5))");
+            statement.execute("CREATE INDEX DOC_FULLNAME ON xwikidoc (XWD_FULLNAME)");
+            statement.execute("CREATE TABLE xwikiobjects (XWO_ID BIGINT PRIMARY KEY, XWO_NAME VARCHAR(255), "
+                + "XWO_CLASSNAME VARCHAR(255))");
+            statement.execute("CREATE INDEX OBJ_NAME ON xwikiobjects (XWO_NAME)");
+            statement.execute("CREATE INDEX OBJ_CLASSNAME ON xwikiobjects (XWO_CLASSNAME)");
+            statement.execute("CREATE TABLE xwikiintegers (XWI_ID BIGINT, XWI_NAME VARCHAR(255), XWI_VALUE INT, "
+                + "PRIMARY KEY (XWI_ID, XWI_NAME))");
+        }
+        seed();
+
+        long notInCount = count(NOT_IN_QUERY);
+        long notExistsCount = count(NOT_EXISTS_QUERY);
+        if (notInCount != notExistsCount) {
+            throw new IllegalStateException(String.format(
+                "The rewritten query counts [%d] users instead of [%d].", notExistsCount, notInCount));
+        }
+    }
+
+    private void seed() throws SQLException
+    {
+        connection.setAutoCommit(false);
+        try (PreparedStatement doc = connection.prepareStatement("INSERT INTO xwikidoc VALUES (?, ?, '')");
+            PreparedStatement obj = connection.prepareStatement("INSERT INTO xwikiobjects VALUES (?, ?, ?)");
+            PreparedStatement prop = connection.prepareStatement("INSERT INTO xwikiintegers VALUES (?, ?, ?)")) {
+            for (int i = 0; i < users; i++) {
+                String fullName = "XWiki.User" + i;
+                doc.setLong(1, i);
+                doc.setString(2, fullName);
+                doc.addBatch();
+
+                // The user object, plus some other object with integer properties, as the user preferences
+                obj.setLong(1, 2L * i);
+                obj.setString(2, fullName);
+                obj.setString(3, "XWiki.XWikiUsers");
+                obj.addBatch();
+                obj.setLong(1, 2L * i + 1);
+                obj.setString(2, fullName);
+                obj.setString(3, "XWiki.XWikiPreferences");
+                obj.addBatch();
+
+                if (i % INACTIVE_RATIO != 1) {
+                    prop.setLong(1, 2L * i);
+                    prop.setString(2, "active");
+                    prop.setInt(3, i % INACTIVE_RATIO == 0 ? 0 : 1);
+                    prop.addBatch();
+                }
+                prop.setLong(1, 2L * i + 1);
+                prop.setString(2, "editbox_width");
+                prop.setInt(3, 80);
+                prop.addBatch();
+            }
+            doc.executeBatch();
+            obj.executeBatch();
+            prop.executeBatch();
+        }
+        connection.commit();
+    }
+
+    private long count(String query) throws SQLException
+    {
+        try (Statement statement = connection.createStatement(); ResultSet result = statement.executeQuery(query)) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    /**
+     * Count the users with the former query.
+     */
+    @Benchmark
+    public long countWithNotIn() throws SQLException
+    {
+        return count(NOT_IN_QUERY);
+    }
+
+    /**
+     * Count the users with the rewritten query.
+     */
+    @Benchmark
+    public long countWithNotExists() throws SQLException
+    {
+        return count(NOT_EXISTS_QUERY);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.limits.internal.configuration;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.contrib.limits.benchmarks.StandIns;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Measure the reload of a large configuration file, with thousands of group limits and custom limits. This benchmark
+ * is in the package of {@link DefaultLimitsConfiguration} to be able to set the path of the configuration file.
+ *
+ * @version $Id: $
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark
+{
+    /**
+     * Number of group limits, and of custom limits, in the configuration file.
+     */
+    @Param({ "100", "5000" })
+    public int limits;
+
+    private Path file;
+
+    private DefaultLimitsConfiguration configuration;
+
+    private DocumentReference group;
+
+    private DocumentReference otherDocument;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        file = Files.createTempFile("limits", ".xml");
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<limits>\n");
+            writer.write("  <number-of-users>1000</number-of-users>\n  <number-of-wikis>100</number-of-wikis>\n");
+            writer.write("  <groups>\n");
+            for (int i = 0; i < limits; i++) {
+                // Some groups are limited in every wiki
+                String wiki = i % 10 == 1 ? "*:" : "";
+                writer.write(String.format("    <limit group=\"%sGroup%d\">%d</limit>\n", wiki, i, i));
+            }
+            writer.write("  </groups>\n  <custom>\n");
+            for (int i = 0; i < limits; i++) {
+                if (i % 2 == 0) {
+                    writer.write(String.format("    <limit name=\"number%d\" type=\"long\">%d</limit>\n", i, i));
+                } else {
+                    writer.write(String.format("    <limit name=\"string%d\" type=\"string\">value %d</limit>\n", i,
+                        i));
+                }
+            }
+            writer.write("  </custom>\n</limits>\n");
+        }
+
+        DefaultLimitsConfiguration.configFile = file;
+        // Not initialized, so the file is not watched
+        configuration = StandIns.injectLogger(new DefaultLimitsConfiguration());
+        configuration.reload();
+
+        group = new DocumentReference("xwiki", "XWiki", "Group" + limits / 2);
+        otherDocument = new DocumentReference("xwiki", "Main", "WebHome");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Reload the configuration, as done by the script and REST APIs.
+     */
+    @Benchmark
+    public Object reload() throws Exception
+    {
+        configuration.reload();
+        return configuration.getGroupsLimits();
+    }
+
+    /**
+     * Look up a group limit, as done each time a group is saved.
+     */
+    @Benchmark
+    public Object getGroupLimit()
+    {
+        return configuration.getGroupLimit(group);
+    }
+
+    /**
+     * Look up the limit of a document that is not a limited group, as done each time any document is saved.
+     */
+    @Benchmark
+    public Object getGroupLimitOfOtherDocument()
+    {
+        return configuration.getGroupLimit(otherDocument);
+    }
+}